@@ -0,0 +1,60 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Client side crypto of the login handshake (step 2 of InverterAuthenticator):
+ * PBKDF2 of the password, then client/server keys, signatures and the proof.
+ * "cold" derives the salted password every time, "cached" like a renewed session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticatorBenchmark {
+
+	// rounds handed out by the inverter in /auth/start
+	@Param({ "29000" })
+	public int rounds;
+
+	private final String password = "benchmark-password";
+	private final String salt = Base64.getEncoder().encodeToString("0123456789abcdef".getBytes(StandardCharsets.UTF_8));
+	private final String authMessage = "n=user,r=clientnonce,r=servernonce,s=" + salt + ",i=29000,c=biws,r=servernonce";
+
+	@Benchmark
+	public void cold(Blackhole bh) throws Exception {
+		proof(InverterAuthenticator.getPBKDF2Hash(password, Base64.getDecoder().decode(salt), rounds), bh);
+	}
+
+	@Benchmark
+	public void cached(Blackhole bh) throws Exception {
+		proof(InverterAuthenticator.getSaltedPassword(password, salt, rounds), bh);
+	}
+
+	private void proof(byte[] saltedPassword, Blackhole bh) throws Exception {
+		byte[] clientKey = InverterAuthenticator.getHMACSha256(saltedPassword, "Client Key");
+		byte[] serverKey = InverterAuthenticator.getHMACSha256(saltedPassword, "Server Key");
+		byte[] storedKey = InverterAuthenticator.getSha256Hash(clientKey);
+		byte[] clientSignature = InverterAuthenticator.getHMACSha256(storedKey, authMessage);
+		byte[] serverSignature = InverterAuthenticator.getHMACSha256(serverKey, authMessage);
+		bh.consume(InverterAuthenticator.createClientProof(clientSignature, clientKey));
+		bh.consume(serverSignature);
+	}
+
+}
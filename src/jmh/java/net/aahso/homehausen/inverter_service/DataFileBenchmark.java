@@ -0,0 +1,71 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Appending to the data file, what DataPointWriter does with the data points of
+ * saveDataPointToFile: single data points, and batches of one flush interval
+ * (10 s at 3 s polls), each written with one flush. No fsync, that measures the disk.
+ * The file starts over with every iteration, it grows by some 100 MB per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataFileBenchmark {
+
+	private static final int BATCH = 4;
+
+	private Path dir;
+	private DataFileWriter writer;
+	private DataPoint dp;
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("datafile-bench");
+		writer = DataFileWriter.open(dir.resolve(DataPointWriter.DATA_FILE), SampleSchema.DEFAULT);
+		int[] values = new int[SampleSchema.DEFAULT.size()];
+		for (int m = 0; m < values.length; m++) values[m] = 1000 + m * 137;
+		dp = new DataPoint(SampleSchema.DEFAULT, System.currentTimeMillis() / 1000, values);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		writer.close();
+		Files.deleteIfExists(writer.getPath());
+		Files.deleteIfExists(dir);
+	}
+
+	@Benchmark
+	public void appendSingle() throws IOException {
+		writer.append(dp);
+		writer.flush();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void appendBatch() throws IOException {
+		for (int i = 0; i < BATCH; i++) writer.append(dp);
+		writer.flush();
+	}
+
+}
@@ -0,0 +1,50 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * Data point to JSON, as for REST responses and /data/stream frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataPointJsonBenchmark {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private DataPoint dp;
+
+	@Setup
+	public void setup() {
+		int[] values = new int[SampleSchema.DEFAULT.size()];
+		for (int m = 0; m < values.length; m++) values[m] = 1000 + m * 137;
+		dp = new DataPoint(SampleSchema.DEFAULT, System.currentTimeMillis() / 1000, values);
+	}
+
+	@Benchmark
+	public byte[] toJsonBytes() throws JsonProcessingException {
+		return objectMapper.writeValueAsBytes(dp);
+	}
+
+	@Benchmark
+	public String toJsonString() throws JsonProcessingException {
+		return objectMapper.writeValueAsString(dp);
+	}
+
+}
@@ -0,0 +1,65 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * REST reads of recent data on a full buffer: /latestDataPoints and /latestAverage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LatestDataBenchmark {
+
+	// seconds asked for
+	@Param({ "30", "120", "3600" })
+	public int seconds;
+
+	private final SampleSchema schema = SampleSchema.DEFAULT;
+	private DataPointBuffer buffer;
+	private WindowAggregator aggregator;
+	private long now;
+
+	@Setup
+	public void setup() {
+		// one hour at 3 seconds, like app.buffer.capacity
+		buffer = new DataPointBuffer(schema, 1200);
+		aggregator = new WindowAggregator(schema);
+		now = System.currentTimeMillis() / 1000;
+		for (int i = 1199; i >= 0; i--) {
+			int[] values = new int[schema.size()];
+			for (int m = 0; m < values.length; m++) values[m] = (i * 31 + m * 7) % 5000;
+			DataPoint dp = new DataPoint(schema, now - i * 3L, values);
+			buffer.add(dp);
+			aggregator.add(dp);
+		}
+	}
+
+	@Benchmark
+	public List<DataPoint> latestDataPoints() {
+		return buffer.since(now - seconds);
+	}
+
+	@Benchmark
+	public DataPoint latestAverage() {
+		WindowStats stats = new WindowStats(schema);
+		if (!aggregator.query(Math.min(seconds, WindowAggregator.MAX_WINDOW_SECONDS), now, stats)) return null;
+		return stats.getAverage();
+	}
+
+}
@@ -0,0 +1,53 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Recorded /processdata response to data point, what Inverter.extractDataFromJson
+ * does on every poll.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessDataBenchmark {
+
+	private final SampleSchema schema = SampleSchema.DEFAULT;
+	private byte[] response;
+	private ProcessDataParser parser;
+	private ProcessData data;
+
+	@Setup
+	public void setup() throws IOException {
+		try (InputStream in = ProcessDataBenchmark.class.getResourceAsStream("/processdata.json")) {
+			response = in.readAllBytes();
+		}
+		parser = new ProcessDataParser(schema.getSources());
+		data = new ProcessData(schema.getSources().size());
+	}
+
+	@Benchmark
+	public DataPoint extractDataFromJson() throws IOException {
+		parser.parse(response, data);
+		if (!data.isComplete()) throw new IOException("Incomplete processdata response");
+		int[] values = new int[schema.size()];
+		schema.compute(data, values);
+		return new DataPoint(schema, System.currentTimeMillis() / 1000, values);
+	}
+
+}
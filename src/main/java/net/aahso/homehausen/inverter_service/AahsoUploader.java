@@ -0,0 +1,349 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/*
+ * Uploads data points to aahso.net from a durable outbox.
+ *
+ * The data pump only offers data points to a bounded queue and never waits for
+ * the disk or the network; if the queue is full, data points are dropped and
+ * counted (like DataPointWriter). The sender thread moves them into the outbox
+ * and drains it in batches of up to app.aahso.batchsize data points, oldest
+ * first; a batch is removed from the outbox only after aahso.net accepted it.
+ * Failed uploads are retried with exponential backoff and jitter, the queue is
+ * still moved into the outbox meanwhile, and after an outage the sender catches
+ * up batch after batch.
+ *
+ * A batch of one is posted as a single JSON object (what send_data.php has
+ * always received), larger batches as a JSON array of these objects. Batching
+ * is off by default (app.aahso.batchsize=1).
+ */
+@Component
+public class AahsoUploader {
+
+	private static final String API_URL = "/send_data.php";
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	// injected
+	private final WebClient aahsoWebClient;
+	private final Path dataDir;
+	private final SampleSchema schema;
+	private final int batchSize;
+	private final Duration timeout;
+	private final long retryMillis;
+	private final long maxRetryMillis;
+	private final TaskExecutor taskExecutor;
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final BlockingQueue<DataPoint> queue;
+	private volatile Outbox outbox;
+	private volatile String sessionID = "";
+
+	private volatile boolean running = true;
+	private volatile Thread workerThread;
+	// shutdown interrupts the sender only while it waits: an interrupt during file I/O
+	// would close the outbox channels (ClosedByInterruptException)
+	private final Object waitLock = new Object();
+	private boolean waiting;
+	// counted down when the upload task ends (see DataPointWriter)
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	// counters
+	private final AtomicLong uploaded = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+	private final Timer uploadTimer;
+
+	public AahsoUploader(@Qualifier("aahsoWebClient") WebClient aahsoWebClient,
+					@Value("${app.datadir}") String dataDir, SampleSchema schema,
+					@Value("${app.aahso.batchsize:1}") int batchSize,
+					@Value("${app.aahso.queuesize:1000}") int queueSize,
+					@Value("${app.aahso.timeout:10000}") long timeoutMillis,
+					@Value("${app.aahso.retry:5000}") long retryMillis,
+					@Value("${app.aahso.maxretry:300000}") long maxRetryMillis,
+					TaskExecutor taskExecutor, MeterRegistry registry) {
+		this.aahsoWebClient = aahsoWebClient;
+		this.dataDir = Path.of(dataDir);
+		this.schema = schema;
+		this.batchSize = Math.max(1, batchSize);
+		this.queue = new ArrayBlockingQueue<DataPoint>(queueSize);
+		this.timeout = Duration.ofMillis(timeoutMillis);
+		this.retryMillis = retryMillis;
+		this.maxRetryMillis = Math.max(retryMillis, maxRetryMillis);
+		this.taskExecutor = taskExecutor;
+
+		this.uploadTimer = Timer.builder("inverter.upload")
+				.description("Accepted uploads of a batch to aahso.net")
+				.register(registry);
+		Gauge.builder("inverter.upload.pending", this, AahsoUploader::getPending)
+				.description("Data points in the outbox waiting for upload").register(registry);
+		Gauge.builder("inverter.upload.queue", queue, BlockingQueue::size)
+				.description("Data points waiting for the outbox").register(registry);
+		FunctionCounter.builder("inverter.upload.failures", failures, AtomicLong::get)
+				.description("Failed uploads to aahso.net").register(registry);
+		FunctionCounter.builder("inverter.upload.lost", lost, AtomicLong::get)
+				.description("Data points dropped with a full queue or not written to the outbox").register(registry);
+	}
+
+	// hand data point over to the sender thread; never blocks
+	public boolean offer(DataPoint dp) {
+		if (outbox != null && queue.offer(dp)) return true;
+		if (lost.incrementAndGet() % 100 == 1) {
+			logger.warn("Upload queue full, dropped {} data points so far", lost.get());
+		}
+		return false;
+	}
+
+	// session sent with the uploads
+	public void setSessionID(String sessionID) {
+		this.sessionID = sessionID;
+	}
+
+	@PostConstruct
+	void start() {
+		try {
+			outbox = Outbox.open(dataDir, schema);
+			if (outbox.pending() > 0) logger.info(outbox.pending() + " data points waiting for upload");
+		} catch (IOException e) {
+			logger.error("Error opening upload outbox in " + dataDir + ", data points are not uploaded: " + e.getMessage());
+			return;
+		}
+
+		taskExecutor.execute(() -> {
+			workerThread = Thread.currentThread();
+			int attempt = 0;
+			try {
+				while (running) {
+					try {
+						if (outbox.pending() == 0) {
+							DataPoint first = poll(TimeUnit.MILLISECONDS.toNanos(1000));
+							if (first == null) continue;
+							moveToOutbox(first);
+						} else {
+							moveToOutbox(null);
+						}
+
+						List<DataPoint> batch = outbox.peek(batchSize);
+						boolean accepted;
+						beginWait();
+						try {
+							accepted = send(batch);
+						} finally {
+							endWait();
+						}
+						if (accepted) {
+							outbox.ack(batch.size());
+							uploaded.addAndGet(batch.size());
+							if (attempt > 0) logger.info("Upload to aahso.net works again, " + outbox.pending() + " data points to catch up");
+							attempt = 0;
+						} else {
+							failures.incrementAndGet();
+							backOff(retryDelay(++attempt));
+						}
+					} catch (InterruptedException e) {
+						running = false;
+					} catch (Exception e) {
+						logger.error("Error in uploader: " + e.getMessage());
+						beginWait();
+						try {
+							Thread.sleep(retryDelay(++attempt));
+						} finally {
+							endWait();
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				// shutting down
+			} finally {
+				try {
+					// keep what is queued for the next start
+					moveToOutbox(null);
+				} catch (IOException e) {
+					logger.error("Error writing to upload outbox: " + e.getMessage());
+				}
+				try {
+					outbox.close();
+				} catch (IOException e) {
+					logger.warn("Error closing upload outbox: " + e.getMessage());
+				}
+				workerThread = null;
+				stopped.countDown();
+			}
+		});
+	}
+
+	// move the queued data points (after first, if not null) into the outbox and force them to disk
+	private void moveToOutbox(DataPoint first) throws IOException {
+		List<DataPoint> dps = new ArrayList<DataPoint>();
+		if (first != null) dps.add(first);
+		queue.drainTo(dps);
+		if (dps.isEmpty()) return;
+		try {
+			outbox.append(dps);
+		} catch (IOException e) {
+			lost.addAndGet(dps.size());
+			throw e;
+		}
+		// once, retries of a batch do not force again
+		outbox.force();
+	}
+
+	// wait before the next attempt, still moving new data points into the outbox
+	private void backOff(long millis) throws IOException, InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		long left;
+		while ((left = deadline - System.nanoTime()) > 0) {
+			DataPoint dp = poll(left);
+			if (dp != null) moveToOutbox(dp);
+		}
+	}
+
+	private DataPoint poll(long nanos) throws InterruptedException {
+		beginWait();
+		try {
+			return queue.poll(nanos, TimeUnit.NANOSECONDS);
+		} finally {
+			endWait();
+		}
+	}
+
+	private void beginWait() throws InterruptedException {
+		synchronized (waitLock) {
+			if (!running) throw new InterruptedException();
+			waiting = true;
+		}
+	}
+
+	// an interrupt that came too late for the wait must not hit the file I/O after it
+	private void endWait() {
+		synchronized (waitLock) {
+			waiting = false;
+			Thread.interrupted();
+		}
+	}
+
+	// exponential backoff, jittered by +-50% so restarted senders do not retry in lockstep
+	long retryDelay(int attempt) {
+		long delay = Math.min(maxRetryMillis, retryMillis << Math.min(attempt - 1, 20));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay + 1);
+	}
+
+	// post batch to aahso.net, true if accepted
+	private boolean send(List<DataPoint> batch) {
+		JsonNode body;
+		if (batch.size() == 1) {
+			body = toJson(batch.get(0));
+		} else {
+			ArrayNode array = objectMapper.createArrayNode();
+			for (DataPoint dp : batch) array.add(toJson(dp));
+			body = array;
+		}
+
+		requests.incrementAndGet();
+		Timer.Sample upload = Timer.start();
+		try {
+			this.aahsoWebClient.post().uri(API_URL).header(HttpHeaders.AUTHORIZATION, "Session " + sessionID)
+					.bodyValue(body.toString()).retrieve().toBodilessEntity()
+					.timeout(timeout).block();
+			upload.stop(uploadTimer);
+			return true;
+		} catch (Exception e) {
+			if (failures.get() % 10 == 0) {
+				logger.warn("Error sending data to aahso.net, " + outbox.pending() + " data points waiting: " + e.getMessage());
+			}
+			return false;
+		}
+	}
+
+	private ObjectNode toJson(DataPoint dp) {
+    	ObjectNode JsonData = objectMapper.createObjectNode();
+
+    	JsonData.put("Time", LocalDateTime.ofInstant(Instant.ofEpochSecond(dp.getTimeStamp()), ZoneId.systemDefault()).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+    	JsonData.put("PV", dp.getFromPV());
+    	JsonData.put("FromGrid", dp.getFromGrid());
+    	JsonData.put("FromBat", dp.getFromBat());
+    	JsonData.put("Home_Total", dp.getUseHome());
+    	JsonData.put("Battery_Level", dp.getLevelBat());
+    	return JsonData;
+	}
+
+	public long getPending() {
+		Outbox box = outbox;
+		return box == null ? 0 : box.pending();
+	}
+
+	public long getUploaded() {
+		return uploaded.get();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public long getLost() {
+		return lost.get();
+	}
+
+	// clean shut down, what is not uploaded stays in the outbox
+	@PreDestroy
+	void stopThread() {
+		logger.info("Shutdown requested: stopping aahso.net uploader");
+		synchronized (waitLock) {
+			running = false;
+			Thread t = workerThread;
+			if (t != null && waiting) t.interrupt();
+		}
+		// started: wait until the queue is in the outbox, even if the task has only just begun
+		if (outbox != null) {
+			try {
+				stopped.await(2000, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/*
+ * Wall clock running faster than real time, for soak tests against the simulator.
+ *
+ * Starts at the real time and advances speed seconds per real second, so a
+ * day of data points is written in 24 / speed hours.
+ */
+public class AcceleratedClock extends Clock {
+
+	private final double speed;
+	private final ZoneId zone;
+	private final long startMillis;
+	private final long startNanos;
+
+	public AcceleratedClock(double speed, ZoneId zone) {
+		this(speed, zone, System.currentTimeMillis(), System.nanoTime());
+	}
+
+	private AcceleratedClock(double speed, ZoneId zone, long startMillis, long startNanos) {
+		this.speed = speed;
+		this.zone = zone;
+		this.startMillis = startMillis;
+		this.startNanos = startNanos;
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+
+	@Override
+	public ZoneId getZone() {
+		return zone;
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone) {
+		return new AcceleratedClock(speed, zone, startMillis, startNanos);
+	}
+
+	@Override
+	public long millis() {
+		return startMillis + (long) ((System.nanoTime() - startNanos) / 1_000_000.0 * speed);
+	}
+
+	@Override
+	public Instant instant() {
+		return Instant.ofEpochMilli(millis());
+	}
+
+	// speed of a clock, 1 for any other clock
+	static double speedOf(Clock clock) {
+		return clock instanceof AcceleratedClock ? ((AcceleratedClock) clock).speed : 1;
+	}
+
+}
@@ -0,0 +1,228 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Compressed archive layout, for data points sealed out of the data file.
+ *
+ * A FileHeader (magic "INVA", metric names, no fixed record size) followed by
+ * blocks, each holding the data points of one hour, all big endian:
+ *
+ *   block:  int length | body (length bytes) | footer
+ *   footer: long firstTimeStamp | long lastTimeStamp | int count | int rawLength
+ *           | (int min | int max) * fieldCount | int crc32 (of everything before it)
+ *
+ * The body is deflated. Inflated it holds the block column by column, all as
+ * zig-zag varints: the time stamps as delta of delta (0, one byte, while the
+ * poll interval stays the same), then each metric as deltas to the previous
+ * value. The footer tells the time range and value range of a block without
+ * inflating it, so readers skip blocks outside a query, and the checksum tells
+ * a block torn by a crash.
+ */
+public final class ArchiveFile {
+
+	public static final int MAGIC = 0x494E5641;	// "INVA"
+
+	// data points of one block
+	public static final int BLOCK_SECONDS = 3600;
+
+	private ArchiveFile() {
+	}
+
+	static ByteBuffer header(SampleSchema schema) {
+		return FileHeader.encode(MAGIC, 0, BLOCK_SECONDS, schema.names());
+	}
+
+	static int footerSize(int fieldCount) {
+		return 8 + 8 + 4 + 4 + fieldCount * 8 + 4;
+	}
+
+	// block of data points in time order, all of the same schema
+	static ByteBuffer encodeBlock(List<DataPoint> dps) {
+		int count = dps.size();
+		int fields = dps.get(0).getSchema().size();
+		ByteArrayOutputStream raw = new ByteArrayOutputStream(count * (fields + 1) * 2);
+
+		long prevTimeStamp = dps.get(0).getTimeStamp();
+		long prevDelta = 0;
+		for (int i = 1; i < count; i++) {
+			long delta = dps.get(i).getTimeStamp() - prevTimeStamp;
+			putVarint(raw, delta - prevDelta);
+			prevTimeStamp += delta;
+			prevDelta = delta;
+		}
+
+		int[] min = new int[fields];
+		int[] max = new int[fields];
+		for (int m = 0; m < fields; m++) {
+			min[m] = Integer.MAX_VALUE;
+			max[m] = Integer.MIN_VALUE;
+			long prev = 0;
+			for (DataPoint dp : dps) {
+				int v = dp.get(m);
+				putVarint(raw, v - prev);
+				prev = v;
+				min[m] = Math.min(min[m], v);
+				max[m] = Math.max(max[m], v);
+			}
+		}
+
+		byte[] inflated = raw.toByteArray();
+		byte[] body = deflate(inflated);
+
+		ByteBuffer block = ByteBuffer.allocate(4 + body.length + footerSize(fields));
+		block.putInt(body.length).put(body)
+				.putLong(dps.get(0).getTimeStamp()).putLong(dps.get(count - 1).getTimeStamp())
+				.putInt(count).putInt(inflated.length);
+		for (int m = 0; m < fields; m++) {
+			block.putInt(min[m]).putInt(max[m]);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(block.array(), 0, block.position());
+		block.putInt((int) crc.getValue());
+		block.flip();
+		return block;
+	}
+
+	// end of the complete, intact block at offset, or -1 (end of the file, torn or corrupt)
+	static long blockEnd(ByteBuffer buffer, long offset, long limit, int fieldCount) {
+		if (offset + 4 > limit) return -1;
+		int length = buffer.getInt((int) offset);
+		long end = offset + 4 + length + footerSize(fieldCount);
+		if (length < 0 || end > limit) return -1;
+
+		CRC32 crc = new CRC32();
+		ByteBuffer checked = buffer.duplicate();
+		checked.limit((int) end - 4).position((int) offset);
+		crc.update(checked);
+		return buffer.getInt((int) end - 4) == (int) crc.getValue() ? end : -1;
+	}
+
+	static long firstTimeStamp(ByteBuffer buffer, long offset) {
+		return buffer.getLong(footer(buffer, offset));
+	}
+
+	static long lastTimeStamp(ByteBuffer buffer, long offset) {
+		return buffer.getLong(footer(buffer, offset) + 8);
+	}
+
+	static int count(ByteBuffer buffer, long offset) {
+		return buffer.getInt(footer(buffer, offset) + 16);
+	}
+
+	static int min(ByteBuffer buffer, long offset, int field) {
+		return buffer.getInt(footer(buffer, offset) + 24 + field * 8);
+	}
+
+	static int max(ByteBuffer buffer, long offset, int field) {
+		return buffer.getInt(footer(buffer, offset) + 28 + field * 8);
+	}
+
+	// data points of the block at offset; fieldIndexes maps schema metrics to file fields (see FileHeader)
+	static List<DataPoint> decodeBlock(ByteBuffer buffer, long offset, int fieldCount, SampleSchema schema,
+			int[] fieldIndexes) throws IOException {
+		int footer = footer(buffer, offset);
+		int count = buffer.getInt(footer + 16);
+		byte[] body = new byte[buffer.getInt((int) offset)];
+		buffer.get((int) offset + 4, body);
+		ByteBuffer raw = ByteBuffer.wrap(inflate(body, buffer.getInt(footer + 20)));
+
+		long[] timeStamps = new long[count];
+		timeStamps[0] = buffer.getLong(footer);
+		long delta = 0;
+		for (int i = 1; i < count; i++) {
+			delta += getVarint(raw);
+			timeStamps[i] = timeStamps[i - 1] + delta;
+		}
+
+		int[][] columns = new int[fieldCount][count];
+		for (int f = 0; f < fieldCount; f++) {
+			long v = 0;
+			for (int i = 0; i < count; i++) {
+				v += getVarint(raw);
+				columns[f][i] = (int) v;
+			}
+		}
+
+		List<DataPoint> dps = new ArrayList<DataPoint>(count);
+		for (int i = 0; i < count; i++) {
+			int[] values = new int[fieldIndexes.length];
+			for (int m = 0; m < values.length; m++) {
+				int f = fieldIndexes[m];
+				values[m] = f < 0 ? 0 : columns[f][i];
+			}
+			dps.add(new DataPoint(schema, timeStamps[i], values));
+		}
+		return dps;
+	}
+
+	private static int footer(ByteBuffer buffer, long offset) {
+		return (int) offset + 4 + buffer.getInt((int) offset);
+	}
+
+	// zig-zag: small negative and positive numbers both take few bytes
+	private static void putVarint(ByteArrayOutputStream out, long n) {
+		long v = (n << 1) ^ (n >> 63);
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private static long getVarint(ByteBuffer in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (!in.hasRemaining()) throw new IOException("Corrupt archive block");
+			byte b = in.get();
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0) return (v >>> 1) ^ -(v & 1);
+		}
+		throw new IOException("Corrupt archive block");
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+			byte[] chunk = new byte[4096];
+			while (!deflater.finished()) {
+				out.write(chunk, 0, deflater.deflate(chunk));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] data, int length) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			byte[] out = new byte[length];
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				int r = inflater.inflate(out, n, length - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				n += r;
+			}
+			if (n != length) throw new IOException("Corrupt archive block");
+			return out;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt archive block: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
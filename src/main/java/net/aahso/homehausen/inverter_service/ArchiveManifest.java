@@ -0,0 +1,90 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * Index of the archive segments (manifest.json): per segment file the day or
+ * month it holds, its time range, number of data points and size.
+ *
+ * A segment file only counts once it is in the manifest, and is never changed
+ * after that: sealing and compaction write new files and then replace the
+ * manifest as a whole (temporary file, atomic move). Files not in the manifest
+ * are left over from a crash and are deleted. A missing manifest is rebuilt
+ * from the segment files (see RawHistory.open).
+ */
+@JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+@JsonIgnoreProperties(ignoreUnknown = true)
+class ArchiveManifest {
+
+	static final int VERSION = 1;
+
+	@JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	static class Segment {
+		// day (yyyy-MM-dd) or, once compacted, month (yyyy-MM) in local time
+		String name;
+		String file;
+		long first = Long.MIN_VALUE;
+		long last = Long.MIN_VALUE;
+		long count;
+		long bytes;
+
+		Segment() {
+		}
+
+		Segment(String name, String file) {
+			this.name = name;
+			this.file = file;
+		}
+
+		YearMonth month() {
+			return YearMonth.parse(name.substring(0, 7));
+		}
+
+		boolean isMonth() {
+			return name.length() == 7;
+		}
+	}
+
+	int version = VERSION;
+	// in time order
+	List<Segment> segments = new ArrayList<Segment>();
+
+	// manifest of an earlier run, empty if the file does not exist
+	static List<Segment> load(Path file, ObjectMapper objectMapper) throws IOException {
+		if (!Files.exists(file)) return List.of();
+		ArchiveManifest manifest = objectMapper.readValue(file.toFile(), ArchiveManifest.class);
+		if (manifest.version != VERSION) throw new IOException("Unknown manifest version " + manifest.version + " in " + file);
+		return List.copyOf(manifest.segments);
+	}
+
+	// write to a temporary file and move it over the old one, so a crash leaves one or the other
+	static void save(Path file, List<Segment> segments, ObjectMapper objectMapper) throws IOException {
+		ArchiveManifest manifest = new ArchiveManifest();
+		manifest.segments.addAll(segments);
+		byte[] json = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(manifest);
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		// the segment files it lists are already forced, the manifest must not get ahead of them
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(json);
+			while (buffer.hasRemaining()) channel.write(buffer);
+			channel.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
@@ -0,0 +1,157 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Memory-mapped reader for archive files (see ArchiveFile).
+ *
+ * Opening walks the block footers once and keeps the offset and time range of
+ * every block; a torn or corrupt block at the end and everything after it is
+ * ignored. Only the blocks overlapping a query are inflated.
+ */
+public class ArchiveReader implements Closeable {
+
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+	private final FileHeader header;
+	private final SampleSchema schema;
+	private final int[] fieldIndexes;
+	private final int fieldCount;
+
+	// per block: offset, first and last time stamp
+	private final long[] offsets;
+	private final long[] firstTimeStamps;
+	private final long[] lastTimeStamps;
+	private final int blocks;
+	private final long end;
+	private final long count;
+
+	private ArchiveReader(FileChannel channel, MappedByteBuffer map, FileHeader header, SampleSchema schema) {
+		this.channel = channel;
+		this.map = map;
+		this.header = header;
+		this.schema = schema;
+		this.fieldIndexes = header.fieldIndexes(schema);
+		this.fieldCount = header.names.length;
+
+		long[] offsets = new long[64];
+		long offset = header.headerSize;
+		long count = 0;
+		int blocks = 0;
+		long next;
+		while ((next = ArchiveFile.blockEnd(map, offset, map.capacity(), fieldCount)) >= 0) {
+			if (blocks == offsets.length) offsets = Arrays.copyOf(offsets, blocks * 2);
+			offsets[blocks++] = offset;
+			count += ArchiveFile.count(map, offset);
+			offset = next;
+		}
+		this.offsets = offsets;
+		this.blocks = blocks;
+		this.end = offset;
+		this.count = count;
+		this.firstTimeStamps = new long[blocks];
+		this.lastTimeStamps = new long[blocks];
+		for (int b = 0; b < blocks; b++) {
+			firstTimeStamps[b] = ArchiveFile.firstTimeStamp(map, offsets[b]);
+			lastTimeStamps[b] = ArchiveFile.lastTimeStamp(map, offsets[b]);
+		}
+	}
+
+	// open archive file, data points are returned with the given schema
+	public static ArchiveReader open(Path path, SampleSchema schema) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			FileHeader header = FileHeader.read(channel, ArchiveFile.MAGIC);
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) throw new IOException("Archive file too large to map: " + path);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return new ArchiveReader(channel, map, header, schema);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public int blocks() {
+		return blocks;
+	}
+
+	// number of data points in all blocks
+	public long count() {
+		return count;
+	}
+
+	// metric names stored in the file
+	public String[] names() {
+		return header.names.clone();
+	}
+
+	// time stamp of the last archived data point, Long.MIN_VALUE if there is none
+	public long lastTimeStamp() {
+		return blocks == 0 ? Long.MIN_VALUE : lastTimeStamps[blocks - 1];
+	}
+
+	public long firstTimeStamp(int block) {
+		return firstTimeStamps[block];
+	}
+
+	public long lastTimeStamp(int block) {
+		return lastTimeStamps[block];
+	}
+
+	// value range of a metric of the file in a block, from the footer
+	int min(int block, int field) {
+		return ArchiveFile.min(map, offsets[block], field);
+	}
+
+	int max(int block, int field) {
+		return ArchiveFile.max(map, offsets[block], field);
+	}
+
+	// index of the first block ending at or after timeStamp (blocks() if there is none)
+	public int firstBlock(long timeStamp) {
+		int lo = 0;
+		int hi = blocks;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (lastTimeStamps[mid] < timeStamp) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	// all data points of a block, in time order
+	public List<DataPoint> read(int block) throws IOException {
+		if (block < 0 || block >= blocks) throw new IndexOutOfBoundsException(block);
+		return ArchiveFile.decodeBlock(map, offsets[block], fieldCount, schema, fieldIndexes);
+	}
+
+	// copy the blocks fromBlock <= block < toBlock to the target as they are stored
+	public void transferTo(int fromBlock, int toBlock, WritableByteChannel target) throws IOException {
+		if (fromBlock < 0 || toBlock > blocks || fromBlock > toBlock) throw new IndexOutOfBoundsException(fromBlock);
+		long position = fromBlock < blocks ? offsets[fromBlock] : end;
+		long last = toBlock < blocks ? offsets[toBlock] : end;
+		while (position < last) {
+			position += channel.transferTo(position, last - position, target);
+		}
+	}
+
+	// end of the last intact block
+	long end() {
+		return end;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,107 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Appends compressed blocks to an archive file (see ArchiveFile).
+ */
+public class ArchiveWriter implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ArchiveWriter.class);
+
+	private final SampleSchema schema;
+	private final FileChannel channel;
+	private long lastTimeStamp;
+
+	private ArchiveWriter(SampleSchema schema, FileChannel channel, long lastTimeStamp) {
+		this.schema = schema;
+		this.channel = channel;
+		this.lastTimeStamp = lastTimeStamp;
+	}
+
+	// open archive file for appending, create it with header if it does not exist;
+	// a torn block at the end is cut off, a file written with other metrics is rewritten for the schema first
+	public static ArchiveWriter open(Path path, SampleSchema schema) throws IOException {
+		if (path.getParent() != null) Files.createDirectories(path.getParent());
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long lastTimeStamp = Long.MIN_VALUE;
+		try {
+			if (channel.size() == 0) {
+				FileHeader.write(channel, ArchiveFile.header(schema));
+			} else {
+				FileHeader header = FileHeader.read(channel, ArchiveFile.MAGIC);
+				if (!schema.sameMetrics(header.names) || header.version != FileHeader.VERSION) {
+					channel.close();
+					migrate(path, header.names, schema);
+					return open(path, schema);
+				}
+				try (ArchiveReader reader = ArchiveReader.open(path, schema)) {
+					if (reader.end() != channel.size()) {
+						logger.warn("Truncating torn block at end of " + path + " (" + (channel.size() - reader.end()) + " bytes)");
+						channel.truncate(reader.end());
+					}
+					lastTimeStamp = reader.lastTimeStamp();
+				}
+			}
+			channel.position(channel.size());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new ArchiveWriter(schema, channel, lastTimeStamp);
+	}
+
+	// rewrite archive file with the metrics of the schema (missing metrics become 0)
+	private static void migrate(Path path, String[] oldNames, SampleSchema schema) throws IOException {
+		logger.warn("Rewriting " + path + " for new metrics " + Arrays.toString(schema.names())
+				+ " (was " + Arrays.toString(oldNames) + ")");
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.deleteIfExists(tmp);
+		try (ArchiveReader reader = ArchiveReader.open(path, schema);
+				ArchiveWriter writer = open(tmp, schema)) {
+			for (int b = 0; b < reader.blocks(); b++) {
+				writer.append(reader.read(b));
+			}
+			writer.force();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// append data points in time order as one block
+	public void append(List<DataPoint> block) throws IOException {
+		if (block.isEmpty()) return;
+		if (block.get(0).getSchema() != schema) throw new IllegalArgumentException("Data points of a different schema");
+		ByteBuffer encoded = ArchiveFile.encodeBlock(block);
+		while (encoded.hasRemaining()) channel.write(encoded);
+		lastTimeStamp = block.get(block.size() - 1).getTimeStamp();
+	}
+
+	// force written blocks to disk
+	public void force() throws IOException {
+		channel.force(false);
+	}
+
+	// time stamp of the last archived data point, Long.MIN_VALUE if there is none
+	public long getLastTimeStamp() {
+		return lastTimeStamp;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,172 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+
+/*
+ * Circuit breaker for the requests of a WebClient to one target (an inverter, aahso.net),
+ * added as a filter (see WebClientConfig).
+ *
+ * Closed: requests pass. After app.http.breaker.failures failures in a row (connection
+ * errors, timeouts, 5xx) it opens. Open: requests fail at once with CircuitOpenException,
+ * without a connection attempt, for app.http.breaker.open ms. Half open: one request
+ * passes as a probe while the others still fail fast; the probe closes the breaker if
+ * it succeeds and opens it again if not.
+ */
+public class CircuitBreaker implements ExchangeFilterFunction {
+
+	public enum State { CLOSED, HALF_OPEN, OPEN }
+
+	// request not sent, the breaker is open
+	public static class CircuitOpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		CircuitOpenException(String target) {
+			super("Circuit breaker of " + target + " is open, request not sent");
+		}
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final String target;
+	private final int failureThreshold;
+	private final long openMillis;
+	private final MeterRegistry registry;
+	private final LongSupplier nanoTime;
+
+	// guarded by this
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+	private boolean probing;
+	// counted up with every change of state; outcomes of requests permitted before are ignored
+	private long generation;
+
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong opened = new AtomicLong();
+
+	// failureThreshold 0: never opens
+	public CircuitBreaker(String target, int failureThreshold, long openMillis, MeterRegistry registry) {
+		this(target, failureThreshold, openMillis, registry, System::nanoTime);
+	}
+
+	CircuitBreaker(String target, int failureThreshold, long openMillis, MeterRegistry registry, LongSupplier nanoTime) {
+		this.target = target;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+		this.registry = registry;
+		this.nanoTime = nanoTime;
+
+		if (registry == null) return;
+		Gauge.builder("inverter.http.breaker.state", this, b -> b.getState().ordinal()).tag("target", target)
+				.description("Circuit breaker: 0 closed, 1 half open (probing), 2 open").register(registry);
+		FunctionCounter.builder("inverter.http.breaker.rejected", rejected, AtomicLong::get).tag("target", target)
+				.description("Requests failed fast by the open circuit breaker").register(registry);
+		FunctionCounter.builder("inverter.http.breaker.opened", opened, AtomicLong::get).tag("target", target)
+				.description("Times the circuit breaker opened").register(registry);
+	}
+
+	// breaker with the same settings for another target (another inverter)
+	CircuitBreaker forTarget(String target) {
+		return new CircuitBreaker(target, failureThreshold, openMillis, registry, nanoTime);
+	}
+
+	@Override
+	public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+		return Mono.defer(() -> {
+			long permitted = permit();
+			if (permitted < 0) {
+				rejected.incrementAndGet();
+				return Mono.error(new CircuitOpenException(target));
+			}
+			// the first outcome counts: response, error or cancelled by a timeout of the caller
+			AtomicBoolean done = new AtomicBoolean();
+			return next.exchange(request)
+					.doOnNext(response -> {
+						if (!done.compareAndSet(false, true)) return;
+						if (response.statusCode().is5xxServerError()) failed(permitted);
+						else succeeded(permitted);
+					})
+					.doOnError(e -> {
+						if (done.compareAndSet(false, true)) failed(permitted);
+					})
+					.doOnCancel(() -> {
+						if (done.compareAndSet(false, true)) failed(permitted);
+					});
+		});
+	}
+
+	// generation the request is permitted in, -1 if it fails fast
+	private synchronized long permit() {
+		if (failureThreshold <= 0 || state == State.CLOSED) return generation;
+		if (state == State.OPEN) {
+			if (nanoTime.getAsLong() - openedAt < TimeUnit.MILLISECONDS.toNanos(openMillis)) return -1;
+			// this request is the probe
+			state = State.HALF_OPEN;
+			generation++;
+			probing = false;
+		}
+		if (probing) return -1;
+		probing = true;
+		return generation;
+	}
+
+	private synchronized void succeeded(long permitted) {
+		if (permitted != generation) return;
+		failures = 0;
+		if (state == State.CLOSED) return;
+		logger.info("Circuit breaker of " + target + " closed, requests pass again");
+		state = State.CLOSED;
+		generation++;
+		probing = false;
+	}
+
+	private synchronized void failed(long permitted) {
+		if (failureThreshold <= 0 || permitted != generation) return;
+		if (state == State.HALF_OPEN || (state == State.CLOSED && ++failures >= failureThreshold)) {
+			if (state == State.CLOSED) {
+				logger.warn("Circuit breaker of " + target + " open after " + failures + " failures, requests fail fast for "
+						+ openMillis + " ms");
+			}
+			state = State.OPEN;
+			generation++;
+			openedAt = nanoTime.getAsLong();
+			probing = false;
+			failures = 0;
+			opened.incrementAndGet();
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public String getTarget() {
+		return target;
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getOpened() {
+		return opened.get();
+	}
+
+}
@@ -0,0 +1,23 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.time.Clock;
+import java.time.ZoneId;
+
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class ClockConfig {
+
+	// time stamps of data points; runs faster than real time for soak tests with the simulator
+	@Bean
+	public Clock clock(@Value("${app.clock.speed:1}") double speed) {
+		if (speed == 1) return Clock.systemDefaultZone();
+		LoggerFactory.getLogger(ClockConfig.class).warn("Clock runs at " + speed + " times real time");
+		return new AcceleratedClock(speed, ZoneId.systemDefault());
+	}
+
+}
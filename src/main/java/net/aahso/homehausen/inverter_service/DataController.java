@@ -1,26 +1,64 @@
 package net.aahso.homehausen.inverter_service;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 @RestController // This means that this class is a REST Controller
 @RequestMapping(path="/data") // This means URL's start with /data (after Application path)
 public class DataController {
 
+	// bucket lengths chosen when the client does not ask for one (raw, 1 min ... 1 day)
+	private static final int[] AUTO_BUCKETS = { 1, 60, 300, 900, 3600, 21600, 86400 };
+	private static final int AUTO_BUCKET_COUNT = 500;
+	// longest range a query may span (100 years), keeps the bucket size well within int
+	private static final long MAX_RANGE_SECONDS = 100L * 366 * 86400;
+
+	// the primary inverter answers the requests without a device in the path
+	private final InverterRegistry inverters;
 	private final Inverter inverter;
+	private final HistoryStore historyStore;
+	private final SampleSchema schema;
+	private final LiveStream liveStream;
+	private final LatestJsonCache latestJson;
 
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-	public DataController(Inverter inv) {
-        this.inverter = inv;
+	public DataController(InverterRegistry inverters, SampleSchema schema, LiveStream liveStream,
+					ObjectMapper objectMapper) {
+        this.inverters = inverters;
+        this.inverter = inverters.getPrimary();
+        this.historyStore = inverters.getHistory(inverter.getName());
+        this.schema = schema;
+        this.liveStream = liveStream;
+        this.latestJson = new LatestJsonCache(objectMapper);
         logger.info("DataController constructed!");
 	}
 	
@@ -28,62 +66,241 @@ public class DataController {
     // get latest data from inverter 
     ////////////////////////////////////////////////////////////////////////////
     @GetMapping(path="/latest")
-    @ResponseBody
-    public DataPoint getLatestData() {
+    public ResponseEntity<byte[]> getLatestData() {
+		return latest(this.inverter);
+    }
 
-		// get latest data from Inverter class
-		DataPoint response = this.inverter.getLatestData();
-		if (response != null) {
-			System.out.println("Response JSON: "+response);
-		}
-		else return null;
-        
-        return response;
+    private ResponseEntity<byte[]> latest(Inverter inverter) {
+
+		// rendered once per tick, 304 if the client has it already
+		return rendered(this.latestJson.latest(inverter));
     }
 	
     @GetMapping(path="/latestAverage")
-    @ResponseBody
-    public DataPoint getLatestAverage( @RequestParam(name="seconds", defaultValue="30") int seconds) {
+    public ResponseEntity<byte[]> getLatestAverage( @RequestParam(name="seconds", defaultValue="30") int seconds) {
+		return latestAverage(this.inverter, seconds);
+    }
+
+    private ResponseEntity<byte[]> latestAverage(Inverter inverter, int seconds) {
+
+		if (seconds < 4 || seconds > 120 ) seconds = 30;
+
+		// aggregates are maintained by Inverter on every data point
+		LatestJsonCache.Rendered average = this.latestJson.average(inverter, schema, seconds);
+		if (average == null) logger.debug("getLatestAverage: No data points");
+
+        return rendered(average);
+    }
+
+    @GetMapping(path="/latestStats")
+    public ResponseEntity<byte[]> getLatestStats( @RequestParam(name="seconds", defaultValue="30") int seconds) {
+		return latestStats(this.inverter, seconds);
+    }
+
+    private ResponseEntity<byte[]> latestStats(Inverter inverter, int seconds) {
 
 		if (seconds < 4 || seconds > 120 ) seconds = 30;
 
-		// get latest data from Inverter class
-		LinkedList<DataPoint> recentDPs = this.inverter.getLatestDataPoints(seconds);
+        return rendered(this.latestJson.stats(inverter, schema, seconds));
+    }
+
+    // JSON with ETag and Last-Modified, Spring answers a matching conditional GET with 304;
+    // empty body if there is no data yet
+    private ResponseEntity<byte[]> rendered(LatestJsonCache.Rendered r) {
+
+		if (r == null) return ResponseEntity.ok().build();
+
+        return ResponseEntity.ok()
+        		.contentType(MediaType.APPLICATION_JSON)
+        		.cacheControl(CacheControl.noCache())
+        		.eTag(r.etag)
+        		.lastModified(r.lastModifiedMillis())
+        		.body(r.json);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // push every new data point (server-sent events, event "datapoint")
+    // instead of polling /latest
+    ////////////////////////////////////////////////////////////////////////////
+    @GetMapping(path="/stream")
+    public ResponseEntity<ResponseBodyEmitter> getStream() {
 
-		if (recentDPs.size() < 1) {
-			System.out.println("getLatestDataPoints: No data points");
-			return null;
+		// no timeout, the connection stays open until the client closes it
+		ResponseBodyEmitter emitter = new ResponseBodyEmitter(0L);
+		if (!this.liveStream.subscribe(emitter)) {
+			logger.warn("getStream: too many clients");
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
 		}
-	
-		long timeStamp = 0;
-		int fromPV = 0;
-		int fromGrid = 0;
-		int fromBat = 0;
-		int useHome = 0;
-		int levelBat = 0;
-
-		int count = 0;
-		for (DataPoint dp : recentDPs) {
-			count++;
-			timeStamp+=dp.getTimeStamp();
-			fromPV+=dp.getFromPV();
-			fromGrid+=dp.getFromGrid();
-			fromBat+=dp.getFromBat();
-			useHome+=dp.getUseHome();
-			levelBat+=dp.getLevelBat();
+
+        return ResponseEntity.ok()
+        		.contentType(MediaType.TEXT_EVENT_STREAM)
+        		.header(HttpHeaders.CACHE_CONTROL, "no-cache")
+        		.body(emitter);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // get history, aggregated in time buckets
+    // from/to: epoch seconds (default: last 24 hours), bucket: seconds (default: ~500 buckets)
+    ////////////////////////////////////////////////////////////////////////////
+    @GetMapping(path="/range")
+    @ResponseBody
+    public List<HistoryBucket> getRange( @RequestParam(name="from", defaultValue="0") long from,
+    		@RequestParam(name="to", defaultValue="0") long to,
+    		@RequestParam(name="bucket", defaultValue="0") int bucket) throws IOException {
+		return range(this.historyStore, from, to, bucket);
+    }
+
+    private List<HistoryBucket> range(HistoryStore historyStore, long from, long to, int bucket) throws IOException {
+
+		if (to <= 0) to = inverter.getEpochSecond();
+		if (from <= 0 || from >= to) from = to - 86400;
+
+		long span = to - from;
+		if (span > MAX_RANGE_SECONDS) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Range longer than 100 years");
+		}
+		if (bucket <= 0) {
+			bucket = AUTO_BUCKETS[AUTO_BUCKETS.length - 1];
+			for (int b : AUTO_BUCKETS) {
+				if (span / b <= AUTO_BUCKET_COUNT) {
+					bucket = b;
+					break;
+				}
+			}
+		}
+		// never build more than MAX_BUCKETS buckets
+		if (span / bucket > HistoryStore.MAX_BUCKETS) {
+			bucket = HistoryStore.alignToTier((int) (span / HistoryStore.MAX_BUCKETS + 1));
+		}
+
+        return historyStore.query(from, to, bucket);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // energy in Wh, counted as the data points come in (see EnergyIntegrator)
+    // energy: today, this month, lifetime; days/months: from/to inclusive
+    // (yyyy-MM-dd or yyyy-MM, default: the last 31 days or 12 months)
+    ////////////////////////////////////////////////////////////////////////////
+    @GetMapping(path="/energy")
+    @ResponseBody
+    public Map<String, EnergyTotals> getEnergy() {
+		return energy(this.inverter);
+    }
+
+    private Map<String, EnergyTotals> energy(Inverter inverter) {
+		return this.inverters.getHistory(inverter.getName()).getEnergy().report(inverter.getEpochSecond());
+    }
+
+    @GetMapping(path="/energy/days")
+    @ResponseBody
+    public Map<String, EnergyTotals> getEnergyDays( @RequestParam(name="from", required=false) String from,
+    		@RequestParam(name="to", required=false) String to) {
+
+		LocalDate last = to == null ? today() : parse(to, LocalDate::parse);
+		LocalDate first = from == null ? last.minusDays(30) : parse(from, LocalDate::parse);
+		if (first.isAfter(last)) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "from must not be after to");
+        return this.historyStore.getEnergy().days(first, last);
+    }
+
+    @GetMapping(path="/energy/months")
+    @ResponseBody
+    public Map<String, EnergyTotals> getEnergyMonths( @RequestParam(name="from", required=false) String from,
+    		@RequestParam(name="to", required=false) String to) {
+
+		YearMonth last = to == null ? YearMonth.from(today()) : parse(to, YearMonth::parse);
+		YearMonth first = from == null ? last.minusMonths(11) : parse(from, YearMonth::parse);
+		if (first.isAfter(last)) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "from must not be after to");
+        return this.historyStore.getEnergy().months(first, last);
+    }
+
+    private LocalDate today() {
+		return LocalDate.ofInstant(Instant.ofEpochSecond(inverter.getEpochSecond()), ZoneId.systemDefault());
+    }
+
+    private static <T> T parse(String value, Function<String, T> parser) {
+		try {
+			return parser.apply(value);
+		} catch (DateTimeParseException e) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid date " + value);
+		}
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // all inverters (app.devices): names and state
+    ////////////////////////////////////////////////////////////////////////////
+    @GetMapping(path="/devices")
+    @ResponseBody
+    public List<Map<String, Object>> getDevices() {
+
+		List<Map<String, Object>> devices = new ArrayList<Map<String, Object>>();
+		for (Inverter inv : this.inverters.getAll()) {
+			Map<String, Object> device = new LinkedHashMap<String, Object>();
+			device.put("name", inv.getName());
+			device.put("session", inv.getSession().getState());
+			device.put("polling", inv.getPollMode());
+			DataPoint latest = inv.getLatestData();
+			device.put("latest", latest == null ? null : latest.getTimeStamp());
+			devices.add(device);
 		}
-		
-		timeStamp /= count;
-		fromPV /= count;
-		fromGrid /= count;
-		fromBat /= count;
-		useHome /= count;
-		levelBat /= count;
+        return devices;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // whole site: all inverters added up
+    ////////////////////////////////////////////////////////////////////////////
+    @GetMapping(path="/" + InverterRegistry.SITE + "/latest")
+    @ResponseBody
+    public DataPoint getSiteLatest() {
+		return this.inverters.getSiteLatest();
+    }
+
+    @GetMapping(path="/" + InverterRegistry.SITE + "/latestAverage")
+    @ResponseBody
+    public DataPoint getSiteAverage( @RequestParam(name="seconds", defaultValue="30") int seconds) {
+
+		if (seconds < 4 || seconds > 120 ) seconds = 30;
+		return this.inverters.getSiteAverage(seconds);
+    }
 
-        return new DataPoint(timeStamp, fromPV, fromGrid, fromBat, useHome, levelBat);
+    ////////////////////////////////////////////////////////////////////////////
+    // one inverter by name, same as the requests above
+    ////////////////////////////////////////////////////////////////////////////
+    @GetMapping(path="/{device}/latest")
+    public ResponseEntity<byte[]> getDeviceLatest(@PathVariable("device") String device) {
+		return latest(device(device));
     }
 
+    @GetMapping(path="/{device}/latestAverage")
+    public ResponseEntity<byte[]> getDeviceAverage(@PathVariable("device") String device,
+    		@RequestParam(name="seconds", defaultValue="30") int seconds) {
+		return latestAverage(device(device), seconds);
+    }
 
+    @GetMapping(path="/{device}/latestStats")
+    public ResponseEntity<byte[]> getDeviceStats(@PathVariable("device") String device,
+    		@RequestParam(name="seconds", defaultValue="30") int seconds) {
+		return latestStats(device(device), seconds);
+    }
 
+    @GetMapping(path="/{device}/energy")
+    @ResponseBody
+    public Map<String, EnergyTotals> getDeviceEnergy(@PathVariable("device") String device) {
+		return energy(device(device));
+    }
+
+    @GetMapping(path="/{device}/range")
+    @ResponseBody
+    public List<HistoryBucket> getDeviceRange(@PathVariable("device") String device,
+    		@RequestParam(name="from", defaultValue="0") long from,
+    		@RequestParam(name="to", defaultValue="0") long to,
+    		@RequestParam(name="bucket", defaultValue="0") int bucket) throws IOException {
+		return range(this.inverters.getHistory(device(device).getName()), from, to, bucket);
+    }
+
+    private Inverter device(String name) {
+		Inverter inv = this.inverters.get(name);
+		if (inv == null) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No inverter " + name);
+		return inv;
+    }
 
 }
@@ -0,0 +1,162 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * Raw data points of a time range written to a stream as they are read from the
+ * archive segments and the data file (see RawHistory), one block at a time, so
+ * memory does not grow with the range.
+ *
+ *   CSV:    timeStamp,time,<metrics of the schema>, one line per data point
+ *   JSONL:  one JSON object per line, as /data/latest
+ *   BINARY: an archive file (see ArchiveFile), readable with ArchiveReader
+ */
+class DataExport {
+
+	enum Format {
+		CSV("text/csv", "csv"),
+		JSONL("application/x-ndjson", "jsonl"),
+		BINARY("application/octet-stream", "bin");
+
+		final String contentType;
+		final String extension;
+
+		Format(String contentType, String extension) {
+			this.contentType = contentType;
+			this.extension = extension;
+		}
+
+		// csv, jsonl or binary; null if it is none of them
+		static Format of(String name) {
+			for (Format format : values()) {
+				if (format.name().equalsIgnoreCase(name)) return format;
+			}
+			return null;
+		}
+	}
+
+	// failure writing to the client (mostly gone away), as opposed to reading the data points
+	static class ClientWriteException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		ClientWriteException(IOException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+
+	private final RawHistory raw;
+	private final SampleSchema schema;
+	private final ZoneId zone;
+	private final ObjectMapper objectMapper;
+
+	DataExport(RawHistory raw, SampleSchema schema, ZoneId zone, ObjectMapper objectMapper) {
+		this.raw = raw;
+		this.schema = schema;
+		this.zone = zone;
+		this.objectMapper = objectMapper;
+	}
+
+	// data points with from <= time stamp < to; returns their number (-1 for binary, not counted)
+	long write(Format format, long from, long to, OutputStream target) throws IOException {
+		OutputStream out = new ClientStream(target);
+		switch (format) {
+		case CSV:
+			return csv(from, to, out);
+		case JSONL:
+			return jsonl(from, to, out);
+		default:
+			WritableByteChannel channel = Channels.newChannel(out);
+			raw.export(from, to, channel);
+			out.flush();
+			return -1;
+		}
+	}
+
+	private long csv(long from, long to, OutputStream out) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+		DateTimeFormatter time = DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(zone).withLocale(Locale.ROOT);
+		StringBuilder line = new StringBuilder("timeStamp,time");
+		for (String name : schema.names()) line.append(',').append(name);
+		writer.write(line.append('\n').toString());
+
+		long[] count = new long[1];
+		raw.forEach(from, to, dp -> {
+			line.setLength(0);
+			line.append(dp.getTimeStamp()).append(',');
+			time.formatTo(Instant.ofEpochSecond(dp.getTimeStamp()), line);
+			for (int i = 0; i < schema.size(); i++) line.append(',').append(dp.get(i));
+			writer.write(line.append('\n').toString());
+			count[0]++;
+		});
+		writer.flush();
+		return count[0];
+	}
+
+	private long jsonl(long from, long to, OutputStream out) throws IOException {
+		long[] count = new long[1];
+		try (JsonGenerator gen = objectMapper.getFactory().createGenerator(out)) {
+			// the response stream is closed by the server
+			gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			// lines instead of the default space between root values
+			gen.setRootValueSeparator(null);
+			raw.forEach(from, to, dp -> {
+				gen.writeObject(dp);
+				gen.writeRaw('\n');
+				count[0]++;
+			});
+		}
+		return count[0];
+	}
+
+	// passes write failures on as ClientWriteException
+	private static final class ClientStream extends FilterOutputStream {
+
+		ClientStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				throw new ClientWriteException(e);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				throw new ClientWriteException(e);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				throw new ClientWriteException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Binary data file layout.
+ *
+ * A FileHeader (magic "INVD", metric names) followed by fixed-width records,
+ * all big endian:
+ *
+ *   record: long timeStamp | int value * fieldCount
+ *
+ * With the five core metrics a record takes 28 bytes. Records are only ever
+ * appended, so they are ordered by time stamp and can be binary searched.
+ * Readers map the fields of a file onto the current schema by metric name,
+ * so files written with other metrics stay readable.
+ */
+public final class DataFile {
+
+	public static final int MAGIC = 0x494E5644;	// "INVD"
+
+	private DataFile() {
+	}
+
+	public static int recordSize(int fieldCount) {
+		return Long.BYTES + fieldCount * Integer.BYTES;
+	}
+
+	static ByteBuffer header(SampleSchema schema) {
+		return FileHeader.encode(MAGIC, recordSize(schema.size()), 0, schema.names());
+	}
+
+	static void putRecord(ByteBuffer buffer, DataPoint dp) {
+		buffer.putLong(dp.getTimeStamp());
+		for (int m = 0; m < dp.getSchema().size(); m++) {
+			buffer.putInt(dp.get(m));
+		}
+	}
+
+	// record at offset; fieldIndexes maps schema metrics to file fields (see FileHeader)
+	static DataPoint getRecord(ByteBuffer buffer, int offset, SampleSchema schema, int[] fieldIndexes) {
+		int[] values = new int[fieldIndexes.length];
+		for (int m = 0; m < values.length; m++) {
+			int f = fieldIndexes[m];
+			values[m] = f < 0 ? 0 : buffer.getInt(offset + Long.BYTES + f * Integer.BYTES);
+		}
+		return new DataPoint(schema, buffer.getLong(offset), values);
+	}
+
+}
@@ -0,0 +1,113 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+ * Memory-mapped reader for binary data files (see DataFile).
+ *
+ * Maps the records present when opened; records appended later are not seen.
+ * Records are ordered by time stamp, so lookups by time are binary searches
+ * directly on the mapped file.
+ */
+public class DataFileReader implements Closeable {
+
+	private final FileChannel channel;
+	private final MappedByteBuffer map;
+	private final FileHeader header;
+	private final SampleSchema schema;
+	private final int[] fieldIndexes;
+	private final int count;
+
+	private DataFileReader(FileChannel channel, MappedByteBuffer map, FileHeader header, SampleSchema schema, int count) {
+		this.channel = channel;
+		this.map = map;
+		this.header = header;
+		this.schema = schema;
+		this.fieldIndexes = header.fieldIndexes(schema);
+		this.count = count;
+	}
+
+	// open data file, records are returned as data points of the given schema
+	public static DataFileReader open(Path path, SampleSchema schema) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			FileHeader header = FileHeader.read(channel, DataFile.MAGIC);
+			// ignore a partial record at the end (writer is appending or crashed)
+			long records = (channel.size() - header.headerSize) / header.recordSize;
+			long size = header.headerSize + records * header.recordSize;
+			if (size > Integer.MAX_VALUE) throw new IOException("Data file too large to map: " + path);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			// and zero-filled records after a power loss (truncated by the writer)
+			while (records > 0 && map.getLong((int) (header.headerSize + (records - 1) * header.recordSize)) == 0) records--;
+			return new DataFileReader(channel, map, header, schema, (int) records);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	// number of records
+	public int count() {
+		return count;
+	}
+
+	// metric names stored in the file
+	public String[] names() {
+		return header.names.clone();
+	}
+
+	public long timeStamp(int index) {
+		return map.getLong(offset(index));
+	}
+
+	public DataPoint read(int index) {
+		return DataFile.getRecord(map, offset(index), schema, fieldIndexes);
+	}
+
+	// index of the first record with time stamp >= timeStamp (count() if there is none)
+	public int lowerBound(long timeStamp) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (timeStamp(mid) < timeStamp) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	// pass all records with from <= time stamp < to to the consumer, in order
+	public void forEach(long from, long to, Consumer<DataPoint> consumer) {
+		for (int i = lowerBound(from); i < count; i++) {
+			DataPoint dp = read(i);
+			if (dp.getTimeStamp() >= to) break;
+			consumer.accept(dp);
+		}
+	}
+
+	// all records with from <= time stamp < to
+	public List<DataPoint> range(long from, long to) {
+		List<DataPoint> result = new ArrayList<DataPoint>();
+		forEach(from, to, result::add);
+		return result;
+	}
+
+	private int offset(int index) {
+		if (index < 0 || index >= count) throw new IndexOutOfBoundsException(index);
+		return header.headerSize + index * header.recordSize;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
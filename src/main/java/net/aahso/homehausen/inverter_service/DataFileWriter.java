@@ -0,0 +1,144 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Sequential writer for binary data files (see DataFile).
+ * Records are collected in a buffer and appended with flush().
+ */
+public class DataFileWriter implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(DataFileWriter.class);
+
+	private final Path path;
+	private final SampleSchema schema;
+	private final int recordSize;
+	private final FileChannel channel;
+	private ByteBuffer buffer;
+
+	private DataFileWriter(Path path, SampleSchema schema, FileChannel channel) {
+		this.path = path;
+		this.schema = schema;
+		this.recordSize = DataFile.recordSize(schema.size());
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(64 * recordSize);
+	}
+
+	// open data file for appending, create it with header if it does not exist;
+	// a file written with other metrics is rewritten for the schema first
+	public static DataFileWriter open(Path path, SampleSchema schema) throws IOException {
+		if (path.getParent() != null) Files.createDirectories(path.getParent());
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long size = channel.size();
+			if (size == 0) {
+				FileHeader.write(channel, DataFile.header(schema));
+			} else {
+				FileHeader header = FileHeader.read(channel, DataFile.MAGIC);
+				if (!schema.sameMetrics(header.names) || header.version != FileHeader.VERSION) {
+					channel.close();
+					migrate(path, header.names, schema);
+					return open(path, schema);
+				}
+				// a crash while appending leaves a partial record; drop it to stay aligned
+				long records = (size - header.headerSize) / header.recordSize;
+				long end = header.headerSize + records * header.recordSize;
+				if (end != size) {
+					logger.warn("Truncating torn record at end of " + path + " (" + (size - end) + " bytes)");
+					channel.truncate(end);
+				}
+				// after a power loss the file can end in zeros (size written, data not); drop those records too
+				long valid = records;
+				while (valid > 0 && timeStamp(channel, header, valid - 1) == 0) valid--;
+				if (valid != records) {
+					logger.warn("Truncating " + (records - valid) + " empty records at end of " + path);
+					channel.truncate(header.headerSize + valid * header.recordSize);
+				}
+			}
+			channel.position(channel.size());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new DataFileWriter(path, schema, channel);
+	}
+
+	private static long timeStamp(FileChannel channel, FileHeader header, long index) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(Long.BYTES);
+		long position = header.headerSize + index * header.recordSize;
+		while (b.hasRemaining()) {
+			if (channel.read(b, position + b.position()) < 0) throw new IOException("Unexpected end of file");
+		}
+		return b.getLong(0);
+	}
+
+	// rewrite data file with the metrics of the schema (missing metrics become 0)
+	private static void migrate(Path path, String[] oldNames, SampleSchema schema) throws IOException {
+		logger.warn("Rewriting " + path + " for new metrics " + Arrays.toString(schema.names())
+				+ " (was " + Arrays.toString(oldNames) + ")");
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.deleteIfExists(tmp);
+		try (DataFileReader reader = DataFileReader.open(path, schema);
+				DataFileWriter writer = open(tmp, schema)) {
+			for (int i = 0; i < reader.count(); i++) {
+				writer.append(reader.read(i));
+				if (i % 10000 == 9999) writer.flush();
+			}
+			writer.force();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public void append(DataPoint dp) {
+		if (dp.getSchema() != schema) throw new IllegalArgumentException("Data point of a different schema");
+		if (buffer.remaining() < recordSize) {
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+		DataFile.putRecord(buffer, dp);
+	}
+
+	// write buffered records to the file
+	public void flush() throws IOException {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) channel.write(buffer);
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	// force written records to disk
+	public void force() throws IOException {
+		flush();
+		channel.force(false);
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+}
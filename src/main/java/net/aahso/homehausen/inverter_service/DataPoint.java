@@ -1,50 +1,88 @@
 package net.aahso.homehausen.inverter_service;
 
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+// one sample: time stamp plus one int value per metric of the schema
+@JsonSerialize(using = DataPoint.Serializer.class)
 public class DataPoint {
 
-	private long timeStamp;
-	private int fromPV;
-	private int fromGrid;
-	private int fromBat;
-	private int useHome;
-	private int levelBat;
-	
+	private final SampleSchema schema;
+	private final long timeStamp;
+	private final int[] values;
+
+	public DataPoint(SampleSchema schema, long timeStamp, int[] values) {
+		if (values.length != schema.size())
+			throw new IllegalArgumentException("Expected " + schema.size() + " values, got " + values.length);
+		this.schema = schema;
+		this.timeStamp = timeStamp;
+		this.values = values;
+	}
+
+	// data point of the core schema
 	public DataPoint (long timeStamp,
 					int PV,
 					int grid,
 					int power_bat,
 					int home,
 					int batSoC){
-		this.timeStamp = timeStamp;
-		this.fromPV = PV;
-		this.fromGrid = grid;
-		this.fromBat = power_bat;
-		this.useHome = home;
-		this.levelBat = batSoC;
+		this(SampleSchema.CORE, timeStamp, new int[] { PV, grid, power_bat, home, batSoC });
+	}
+
+	public SampleSchema getSchema() {
+		return schema;
 	}
 
 	public long getTimeStamp() {
 		return timeStamp;
 	}	
 
+	// value of the metric with the given schema index
+	public int get(int index) {
+		return values[index];
+	}
+
+	// value of the named metric, 0 if the schema does not have it
+	public int get(String name) {
+		int index = schema.indexOf(name);
+		return index < 0 ? 0 : values[index];
+	}
+
 	public int getFromPV() {
-		return fromPV;
+		return values[schema.fromPV];
 	}	
 
 	public int getFromGrid() {
-		return fromGrid;
+		return values[schema.fromGrid];
 	}	
 
 	public int getFromBat() {
-		return fromBat;
+		return values[schema.fromBat];
 	}	
 
 	public int getUseHome() {
-		return useHome;
+		return values[schema.useHome];
 	}
 
 	public int getLevelBat() {
-		return levelBat;
+		return values[schema.levelBat];
+	}
+
+	// JSON: time stamp followed by all metrics of the schema
+	static class Serializer extends JsonSerializer<DataPoint> {
+		@Override
+		public void serialize(DataPoint dp, JsonGenerator gen, SerializerProvider provider) throws IOException {
+			gen.writeStartObject();
+			gen.writeNumberField("timeStamp", dp.timeStamp);
+			for (int i = 0; i < dp.values.length; i++) {
+				gen.writeNumberField(dp.schema.name(i), dp.values[i]);
+			}
+			gen.writeEndObject();
+		}
 	}
 
 }
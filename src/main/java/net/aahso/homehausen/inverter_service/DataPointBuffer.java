@@ -0,0 +1,116 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Fixed-capacity ring buffer for data points.
+ *
+ * Values are kept column by column in primitive arrays, so memory stays constant
+ * no matter how long the service runs. There is exactly one writer (the data pump)
+ * and any number of readers (REST requests). Readers never lock: the writer
+ * announces a slot in 'claimed' before overwriting it and publishes it in
+ * 'published' afterwards, readers copy what they need and drop every slot that
+ * was claimed for overwriting while they were reading.
+ */
+public class DataPointBuffer {
+
+	private final SampleSchema schema;
+	private final int capacity;
+
+	private final long[] timeStamps;
+	// one column per metric of the schema
+	private final int[][] columns;
+
+	// number of data points the writer has started to write
+	private volatile long claimed = 0;
+	// number of data points completely written and visible to readers
+	private volatile long published = 0;
+
+	public DataPointBuffer(SampleSchema schema, int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		this.schema = schema;
+		this.capacity = capacity;
+		this.timeStamps = new long[capacity];
+		this.columns = new int[schema.size()][capacity];
+	}
+
+	// append data point, overwriting the oldest one when full (single writer only!)
+	public void add(DataPoint dp) {
+		if (dp.getSchema() != schema) throw new IllegalArgumentException("Data point of a different schema");
+		long seq = published;
+		int slot = (int) (seq % capacity);
+
+		claimed = seq + 1;
+		// the claim must be visible before any value of the slot changes
+		VarHandle.storeStoreFence();
+
+		timeStamps[slot] = dp.getTimeStamp();
+		for (int m = 0; m < columns.length; m++) {
+			columns[m][slot] = dp.get(m);
+		}
+
+		published = seq + 1;
+	}
+
+	// latest data point or null if buffer is empty
+	public DataPoint latest() {
+		while (true) {
+			long seq = published - 1;
+			if (seq < 0) return null;
+
+			DataPoint dp = read(seq);
+			if (isIntact(seq)) return dp;
+			// writer lapped us (only possible with tiny capacities), try again
+		}
+	}
+
+	// data points with time stamp >= minTimeStamp, newest first
+	public List<DataPoint> since(long minTimeStamp) {
+		long newest = published - 1;
+		long oldest = Math.max(0, newest - capacity + 1);
+
+		List<DataPoint> result = new ArrayList<DataPoint>();
+		for (long seq = newest; seq >= oldest; seq--) {
+			DataPoint dp = read(seq);
+			// overwritten slots only ever contain newer time stamps, so this never stops too early
+			if (dp.getTimeStamp() < minTimeStamp) break;
+			result.add(dp);
+		}
+
+		// drop the oldest entries if the writer has overwritten them in the meantime
+		VarHandle.acquireFence();
+		long firstIntact = claimed - capacity;
+		int keep = (int) Math.min(result.size(), newest - firstIntact + 1);
+		if (keep < result.size()) {
+			result.subList(Math.max(keep, 0), result.size()).clear();
+		}
+		return result;
+	}
+
+	// number of data points currently held
+	public int size() {
+		return (int) Math.min(published, capacity);
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	private DataPoint read(long seq) {
+		int slot = (int) (seq % capacity);
+		int[] values = new int[columns.length];
+		for (int m = 0; m < columns.length; m++) {
+			values[m] = columns[m][slot];
+		}
+		return new DataPoint(schema, timeStamps[slot], values);
+	}
+
+	// true if the slot of seq has not been claimed for overwriting since it was read
+	private boolean isIntact(long seq) {
+		VarHandle.acquireFence();
+		return seq >= claimed - capacity;
+	}
+
+}
@@ -0,0 +1,398 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/*
+ * Writes data points to the binary data file on its own thread.
+ *
+ * The data pump only offers data points to a bounded queue and never waits for
+ * the disk. The writer keeps the data file open, collects data points for up to
+ * one flush interval and appends them as a single batch (group commit).
+ * If the queue is full, data points are dropped and counted instead of
+ * stalling the pump.
+ * With the first batch of a new day (local time, data time), the writer seals
+ * the days before into compressed segments (see RawHistory), so the data file
+ * only holds today. Dropping segments older than app.archive.retention days and
+ * compacting old months then runs as a low priority background task.
+ */
+@Component
+public class DataPointWriter {
+
+	public enum FsyncPolicy {
+		NEVER,		// leave it to the operating system
+		BATCH,		// force every batch to disk
+		INTERVAL	// force at most once per fsync interval
+	}
+
+	public static final String DATA_FILE = "samples.bin";
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	// injected
+	private final String device;
+	private final Path dataFile;
+	private final Path legacySaveFile;
+	private final long flushIntervalMillis;
+	private final FsyncPolicy fsyncPolicy;
+	private final long fsyncIntervalMillis;
+	private final int retentionDays;
+	private final int compactAfterDays;
+	private final TaskExecutor taskExecutor;
+	private final HistoryStore historyStore;
+	private final SampleSchema schema;
+	private final MeterRegistry registry;
+
+	private final RawHistory raw;
+	private final BlockingQueue<DataPoint> queue;
+	private DataFileWriter fileWriter;
+	private long lastFsync = System.currentTimeMillis();
+	// day of the last seal, null until the first batch
+	private LocalDate sealedDay;
+	private final AtomicBoolean maintaining = new AtomicBoolean();
+
+	private volatile boolean running = true;
+	private volatile Thread workerThread;
+	private volatile boolean started;
+	// shutdown interrupts the writer only while it waits: an interrupt during file I/O would
+	// close the channel (ClosedByInterruptException) and lose the batch (see AahsoUploader)
+	private final Object waitLock = new Object();
+	private boolean waiting;
+	// the task ends long before its pool thread, so shutdown waits for this, not for the thread
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	// counters
+	private final AtomicLong offered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong writeErrors = new AtomicLong();
+	private final AtomicLong archived = new AtomicLong();
+	private volatile int maxQueueDepth = 0;
+	private final Timer writeTimer;
+
+	public DataPointWriter(@Value("${app.datadir}") String dataDir,
+					@Value("${app.savefilename:}") String legacySaveFilename,
+					@Value("${app.savefile.queuesize:1000}") int queueSize,
+					@Value("${app.savefile.flushinterval:10000}") long flushIntervalMillis,
+					@Value("${app.savefile.fsync:interval}") String fsyncPolicy,
+					@Value("${app.savefile.fsyncinterval:60000}") long fsyncIntervalMillis,
+					@Value("${app.archive.retention:0}") int retentionDays,
+					@Value("${app.archive.compactafter:31}") int compactAfterDays,
+					TaskExecutor taskExecutor, HistoryStore historyStore, SampleSchema schema,
+					MeterRegistry registry, @Value("${app.inverter.name:inverter}") String device) {
+		this.device = device;
+		this.dataFile = Path.of(dataDir, DATA_FILE);
+		this.legacySaveFile = legacySaveFilename.isBlank() ? null : Path.of(legacySaveFilename);
+		this.queue = new ArrayBlockingQueue<DataPoint>(queueSize);
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.fsyncPolicy = FsyncPolicy.valueOf(fsyncPolicy.trim().toUpperCase());
+		this.fsyncIntervalMillis = fsyncIntervalMillis;
+		this.retentionDays = retentionDays;
+		this.compactAfterDays = compactAfterDays;
+		this.raw = historyStore.getRaw();
+		this.taskExecutor = taskExecutor;
+		this.historyStore = historyStore;
+		this.schema = schema;
+		this.registry = registry;
+
+		this.writeTimer = Timer.builder("inverter.file.write").tag("device", device)
+				.description("Appending a batch to the data file, including fsync and rollups")
+				.register(registry);
+		Gauge.builder("inverter.file.queue", queue, BlockingQueue::size).tag("device", device)
+				.description("Data points waiting for the data file").register(registry);
+		FunctionCounter.builder("inverter.file.dropped", dropped, AtomicLong::get).tag("device", device)
+				.description("Data points not written to the data file").register(registry);
+		FunctionCounter.builder("inverter.file.errors", writeErrors, AtomicLong::get).tag("device", device)
+				.description("Failed writes to the data file").register(registry);
+		FunctionCounter.builder("inverter.file.archived", archived, AtomicLong::get).tag("device", device)
+				.description("Data points sealed into the archive").register(registry);
+		Gauge.builder("inverter.archive.segments", raw, r -> {
+			try {
+				return r.segments().size();
+			} catch (IOException e) {
+				return Double.NaN;
+			}
+		}).tag("device", device).description("Segment files in the archive").register(registry);
+	}
+
+	// writer with the same settings for another inverter (no JSON-lines import), started by the caller
+	DataPointWriter forDevice(String device, Path dataDir, HistoryStore historyStore) {
+		return new DataPointWriter(dataDir.toString(), "", queue.remainingCapacity() + queue.size(),
+				flushIntervalMillis, fsyncPolicy.name(), fsyncIntervalMillis, retentionDays, compactAfterDays, taskExecutor, historyStore, schema,
+				registry, device);
+	}
+
+	// hand data point over to the writer thread; never blocks
+	public boolean offer(DataPoint dp) {
+		offered.incrementAndGet();
+		if (queue.offer(dp)) {
+			int depth = queue.size();
+			if (depth > maxQueueDepth) maxQueueDepth = depth;
+			return true;
+		}
+		if (dropped.incrementAndGet() % 100 == 1) {
+			logger.warn("Save queue full, dropped {} data points so far", dropped.get());
+		}
+		return false;
+	}
+
+	@PostConstruct
+	void start() {
+		started = true;
+		taskExecutor.execute(() -> {
+			workerThread = Thread.currentThread();
+			List<DataPoint> batch = new ArrayList<DataPoint>();
+			try {
+				importLegacySaveFile();
+				historyStore.open();
+				while (running) {
+					try {
+						// wait for the first data point, then give the others one flush interval
+						beginWait();
+						try {
+							batch.add(queue.take());
+							Thread.sleep(flushIntervalMillis);
+						} finally {
+							endWait();
+						}
+						queue.drainTo(batch);
+						long last = batch.get(batch.size() - 1).getTimeStamp();
+						writeBatch(batch);
+						seal(last);
+					} catch (InterruptedException e) {
+						running = false;
+					} catch (Exception e) {
+						logger.error("Error in save file writer: " + e.getMessage());
+					}
+				}
+				// flush what is left on shutdown
+				queue.drainTo(batch);
+				writeBatch(batch);
+			} finally {
+				closeFile();
+				workerThread = null;
+				stopped.countDown();
+			}
+		});
+	}
+
+	// convert the JSON-lines save file of older versions once, before anything is appended
+	private void importLegacySaveFile() {
+		if (legacySaveFile == null || Files.exists(dataFile) || !Files.isRegularFile(legacySaveFile)) return;
+		try {
+			JsonLinesConverter.convert(legacySaveFile, dataFile, schema);
+		} catch (IOException e) {
+			logger.error("Error converting " + legacySaveFile + " to " + dataFile + ": " + e.getMessage());
+		}
+	}
+
+	// append batch to the data file and clear it
+	private void writeBatch(List<DataPoint> batch) {
+		if (batch.isEmpty()) return;
+
+		Timer.Sample write = Timer.start();
+		try {
+			DataFileWriter file = openFile();
+			for (DataPoint dp : batch) {
+				file.append(dp);
+			}
+			file.flush();
+
+			long now = System.currentTimeMillis();
+			if (fsyncPolicy == FsyncPolicy.BATCH
+					|| (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastFsync >= fsyncIntervalMillis)) {
+				file.force();
+				lastFsync = now;
+			}
+			written.addAndGet(batch.size());
+			batches.incrementAndGet();
+
+			// rollups are only fed with what is safely in the data file
+			historyStore.add(batch);
+			write.stop(writeTimer);
+		} catch (IOException e) {
+			// file is reopened with the next batch, this batch is lost
+			writeErrors.incrementAndGet();
+			dropped.addAndGet(batch.size());
+			logger.error("Error writing to file " + dataFile + ": " + e.getMessage());
+			closeFile();
+		}
+		batch.clear();
+	}
+
+	// seal the days before the day of the time stamp into segments, once per day
+	private void seal(long now) {
+		LocalDate today = raw.day(now);
+		if (today.equals(sealedDay)) return;
+		sealedDay = today;
+
+		// the data file is replaced, reopened with the next batch
+		closeFile();
+		long started = System.nanoTime();
+		try {
+			int sealed = raw.seal(raw.startOf(today));
+			if (sealed > 0) {
+				archived.addAndGet(sealed);
+				logger.info("Sealed " + sealed + " data points of " + device + " in "
+						+ (System.nanoTime() - started) / 1000000 + " ms, archive " + raw.archiveBytes()
+						+ " bytes, data file " + Files.size(dataFile) + " bytes");
+			}
+		} catch (IOException e) {
+			writeErrors.incrementAndGet();
+			logger.error("Error sealing " + dataFile + ", retried tomorrow: " + e.getMessage());
+		}
+		maintainArchive(today);
+	}
+
+	// drop old segments and compact old months, in the background at low priority
+	private void maintainArchive(LocalDate today) {
+		if ((retentionDays <= 0 && compactAfterDays <= 0) || !maintaining.compareAndSet(false, true)) return;
+		taskExecutor.execute(() -> {
+			Thread thread = Thread.currentThread();
+			int priority = thread.getPriority();
+			thread.setPriority(Thread.MIN_PRIORITY);
+			try {
+				if (retentionDays > 0) {
+					// only what the rollups and energy counters already hold
+					long before = Math.min(raw.startOf(today.minusDays(retentionDays)), historyStore.rolledUpTo());
+					int dropped = raw.drop(before);
+					if (dropped > 0) logger.info("Dropped " + dropped + " segments of " + device + " older than " + retentionDays + " days");
+				}
+				if (compactAfterDays > 0) {
+					for (YearMonth month : raw.compactable(today.minusDays(compactAfterDays))) {
+						if (!running || !raw.compact(month, () -> running)) break;
+					}
+				}
+			} catch (IOException e) {
+				logger.error("Error maintaining archive of " + device + ", retried tomorrow: " + e.getMessage());
+			} catch (InterruptedException e) {
+				// shutting down
+			} finally {
+				thread.setPriority(priority);
+				maintaining.set(false);
+			}
+		});
+	}
+
+	private DataFileWriter openFile() throws IOException {
+		if (fileWriter == null) {
+			fileWriter = DataFileWriter.open(dataFile, schema);
+		}
+		return fileWriter;
+	}
+
+	private void closeFile() {
+		if (fileWriter == null) return;
+		try {
+			if (fsyncPolicy != FsyncPolicy.NEVER) fileWriter.force();
+			fileWriter.close();
+		} catch (IOException e) {
+			logger.warn("Error closing file " + dataFile + ": " + e.getMessage());
+		}
+		fileWriter = null;
+	}
+
+	// data points in the data file with time stamp >= from, oldest first (warm restart)
+	public List<DataPoint> readSince(long from) throws IOException {
+		// mapped, the records of the last hour are found by binary search
+		return raw.range(from, Long.MAX_VALUE);
+	}
+
+	public Path getDataFile() {
+		return dataFile;
+	}
+
+	public long getOffered() {
+		return offered.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getWritten() {
+		return written.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getArchived() {
+		return archived.get();
+	}
+
+	public long getWriteErrors() {
+		return writeErrors.get();
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	private void beginWait() throws InterruptedException {
+		synchronized (waitLock) {
+			if (!running) throw new InterruptedException();
+			waiting = true;
+		}
+	}
+
+	// an interrupt that came too late for the wait must not hit the file I/O after it
+	private void endWait() {
+		synchronized (waitLock) {
+			waiting = false;
+			Thread.interrupted();
+		}
+	}
+
+	// clean shut down: stop waiting, write what is queued
+	@PreDestroy
+	void stopThread() {
+		logger.info("Shutdown requested: stopping save file writer of " + device);
+		synchronized (waitLock) {
+			running = false;
+			Thread t = workerThread;
+			if (t != null && waiting) t.interrupt();
+		}
+		// started: wait until the queue is written, even if the task has only just begun
+		if (started) {
+			try {
+				stopped.await(2000, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
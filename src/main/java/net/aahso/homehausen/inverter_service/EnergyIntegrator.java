@@ -0,0 +1,163 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * Energy counters per day, per month and lifetime, integrated from the data points.
+ *
+ * Power is integrated over the real interval between two data points
+ * (trapezoid rule), split by direction: PV yield, grid import and export,
+ * battery charge and discharge, home consumption. An interval counts for the
+ * day of its end, in local time. Intervals longer than the maximum gap (the
+ * inverter was unreachable) are not counted, as the power in between is not known.
+ *
+ * Signs as delivered by the inverter: fromGrid > 0 is import, fromBat > 0 is discharge.
+ *
+ * Fed in time order by the data file writer; reports are lookups. The counters
+ * and the last data point are saved as JSON, so after a restart the integrator
+ * continues from there with the data points written since.
+ */
+class EnergyIntegrator {
+
+	private final ZoneId zone;
+	private final long maxGapSeconds;
+	private final int pvIndex;
+	private final int gridIndex;
+	private final int batIndex;
+	private final int homeIndex;
+
+	private State state = new State();
+
+	// what is saved
+	@JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	static class State {
+		long lastTimeStamp = Long.MIN_VALUE;
+		// fromPV, fromGrid, fromBat, useHome of the last data point
+		int[] last = new int[4];
+		EnergyTotals lifetime = new EnergyTotals();
+		TreeMap<String, EnergyTotals> months = new TreeMap<String, EnergyTotals>();
+		TreeMap<String, EnergyTotals> days = new TreeMap<String, EnergyTotals>();
+	}
+
+	EnergyIntegrator(SampleSchema schema, ZoneId zone, long maxGapSeconds) {
+		this.zone = zone;
+		this.maxGapSeconds = maxGapSeconds;
+		this.pvIndex = schema.indexOf(SampleSchema.FROM_PV);
+		this.gridIndex = schema.indexOf(SampleSchema.FROM_GRID);
+		this.batIndex = schema.indexOf(SampleSchema.FROM_BAT);
+		this.homeIndex = schema.indexOf(SampleSchema.USE_HOME);
+	}
+
+	// integrate up to this data point; data points not after the last one are ignored
+	synchronized void add(DataPoint dp) {
+		long ts = dp.getTimeStamp();
+		if (ts <= state.lastTimeStamp) return;
+		int[] now = { dp.get(pvIndex), dp.get(gridIndex), dp.get(batIndex), dp.get(homeIndex) };
+
+		long dt = ts - state.lastTimeStamp;
+		if (state.lastTimeStamp != Long.MIN_VALUE && dt <= maxGapSeconds) {
+			int[] before = state.last;
+			double hours = dt / 3600.0;
+			EnergyTotals step = new EnergyTotals();
+			step.pv = trapezoid(Math.max(0, before[0]), Math.max(0, now[0]), hours);
+			step.gridImport = trapezoid(Math.max(0, before[1]), Math.max(0, now[1]), hours);
+			step.gridExport = trapezoid(Math.max(0, -before[1]), Math.max(0, -now[1]), hours);
+			step.batteryDischarge = trapezoid(Math.max(0, before[2]), Math.max(0, now[2]), hours);
+			step.batteryCharge = trapezoid(Math.max(0, -before[2]), Math.max(0, -now[2]), hours);
+			step.home = trapezoid(Math.max(0, before[3]), Math.max(0, now[3]), hours);
+			step.seconds = dt;
+
+			LocalDate day = LocalDate.ofInstant(Instant.ofEpochSecond(ts), zone);
+			state.lifetime.add(step);
+			state.months.computeIfAbsent(YearMonth.from(day).toString(), k -> new EnergyTotals()).add(step);
+			state.days.computeIfAbsent(day.toString(), k -> new EnergyTotals()).add(step);
+		}
+		state.lastTimeStamp = ts;
+		state.last = now;
+	}
+
+	private static double trapezoid(int p0, int p1, double hours) {
+		return (p0 + p1) / 2.0 * hours;
+	}
+
+	// time stamp of the last data point integrated, Long.MIN_VALUE if none
+	synchronized long getLastTimeStamp() {
+		return state.lastTimeStamp;
+	}
+
+	// day and month of the time stamp plus lifetime
+	synchronized Map<String, EnergyTotals> report(long epochSecond) {
+		LocalDate day = LocalDate.ofInstant(Instant.ofEpochSecond(epochSecond), zone);
+		Map<String, EnergyTotals> report = new LinkedHashMap<String, EnergyTotals>();
+		report.put("day", copy(state.days.get(day.toString())));
+		report.put("month", copy(state.months.get(YearMonth.from(day).toString())));
+		report.put("lifetime", copy(state.lifetime));
+		return report;
+	}
+
+	// per day (yyyy-MM-dd) from <= day <= to, in order
+	synchronized Map<String, EnergyTotals> days(LocalDate from, LocalDate to) {
+		return copy(state.days.subMap(from.toString(), true, to.toString(), true));
+	}
+
+	// per month (yyyy-MM) from <= month <= to, in order
+	synchronized Map<String, EnergyTotals> months(YearMonth from, YearMonth to) {
+		return copy(state.months.subMap(from.toString(), true, to.toString(), true));
+	}
+
+	synchronized EnergyTotals lifetime() {
+		return copy(state.lifetime);
+	}
+
+	private static EnergyTotals copy(EnergyTotals totals) {
+		return new EnergyTotals(totals == null ? new EnergyTotals() : totals);
+	}
+
+	private static Map<String, EnergyTotals> copy(Map<String, EnergyTotals> totals) {
+		Map<String, EnergyTotals> copy = new LinkedHashMap<String, EnergyTotals>();
+		for (Map.Entry<String, EnergyTotals> e : totals.entrySet()) copy.put(e.getKey(), copy(e.getValue()));
+		return copy;
+	}
+
+	// counters of an earlier run; nothing if the file does not exist
+	synchronized void load(Path file, ObjectMapper objectMapper) throws IOException {
+		if (!Files.exists(file)) return;
+		state = objectMapper.readValue(file.toFile(), State.class);
+	}
+
+	// write to a temporary file, force it and move it over the old one, so a crash or power cut
+	// leaves one or the other (the data it was counted from may be dropped from the archive by then)
+	void save(Path file, ObjectMapper objectMapper) throws IOException {
+		byte[] json;
+		synchronized (this) {
+			json = objectMapper.writeValueAsBytes(state);
+		}
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.wrap(json);
+			while (buffer.hasRemaining()) channel.write(buffer);
+			channel.force(true);
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+}
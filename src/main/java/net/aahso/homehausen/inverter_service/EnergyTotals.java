@@ -0,0 +1,89 @@
+package net.aahso.homehausen.inverter_service;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/*
+ * Energy of one period (day, month, lifetime) in Wh, integrated by EnergyIntegrator,
+ * plus the ratios derived from it:
+ *
+ *   selfConsumption = PV energy used on site (not exported) / PV energy
+ *   autarky         = home consumption not imported from the grid / home consumption
+ *
+ * Ratios are null while there is nothing to divide by.
+ */
+@JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class EnergyTotals {
+
+	double pv;
+	double gridImport;
+	double gridExport;
+	double batteryCharge;
+	double batteryDischarge;
+	double home;
+	// seconds integrated, tells how complete the period is
+	long seconds;
+
+	public EnergyTotals() {
+	}
+
+	EnergyTotals(EnergyTotals other) {
+		pv = other.pv;
+		gridImport = other.gridImport;
+		gridExport = other.gridExport;
+		batteryCharge = other.batteryCharge;
+		batteryDischarge = other.batteryDischarge;
+		home = other.home;
+		seconds = other.seconds;
+	}
+
+	void add(EnergyTotals step) {
+		pv += step.pv;
+		gridImport += step.gridImport;
+		gridExport += step.gridExport;
+		batteryCharge += step.batteryCharge;
+		batteryDischarge += step.batteryDischarge;
+		home += step.home;
+		seconds += step.seconds;
+	}
+
+	public double getPv() {
+		return pv;
+	}
+
+	public double getGridImport() {
+		return gridImport;
+	}
+
+	public double getGridExport() {
+		return gridExport;
+	}
+
+	public double getBatteryCharge() {
+		return batteryCharge;
+	}
+
+	public double getBatteryDischarge() {
+		return batteryDischarge;
+	}
+
+	public double getHome() {
+		return home;
+	}
+
+	public long getSeconds() {
+		return seconds;
+	}
+
+	public Double getSelfConsumption() {
+		if (pv <= 0) return null;
+		return Math.max(0, Math.min(1, (pv - gridExport) / pv));
+	}
+
+	public Double getAutarky() {
+		if (home <= 0) return null;
+		return Math.max(0, Math.min(1, (home - gridImport) / home));
+	}
+
+}
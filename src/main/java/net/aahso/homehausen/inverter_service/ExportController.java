@@ -0,0 +1,102 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.time.ZoneId;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+/*
+ * Bulk download of raw data points (see DataExport). The response is written on
+ * the request thread while the data points are read, so there is no async timeout
+ * however long the range is.
+ */
+@RestController
+@RequestMapping(path="/data")
+public class ExportController {
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final InverterRegistry inverters;
+	private final ObjectMapper objectMapper;
+
+	public ExportController(InverterRegistry inverters, ObjectMapper objectMapper) {
+		this.inverters = inverters;
+		this.objectMapper = objectMapper;
+	}
+
+    ////////////////////////////////////////////////////////////////////////////
+    // raw data points as a file download
+    // from/to: epoch seconds (default: last 24 hours), format: csv, jsonl or binary
+    ////////////////////////////////////////////////////////////////////////////
+    @GetMapping(path="/export")
+    public void export(@RequestParam(name="from", defaultValue="0") long from,
+    		@RequestParam(name="to", defaultValue="0") long to,
+    		@RequestParam(name="format", defaultValue="csv") String format,
+    		HttpServletResponse response) throws IOException {
+		export(inverters.getPrimary(), from, to, format, response);
+    }
+
+    @GetMapping(path="/{device}/export")
+    public void exportDevice(@PathVariable("device") String device,
+    		@RequestParam(name="from", defaultValue="0") long from,
+    		@RequestParam(name="to", defaultValue="0") long to,
+    		@RequestParam(name="format", defaultValue="csv") String format,
+    		HttpServletResponse response) throws IOException {
+		Inverter inv = inverters.get(device);
+		if (inv == null) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No inverter " + device);
+		export(inv, from, to, format, response);
+    }
+
+    private void export(Inverter inverter, long from, long to, String formatName, HttpServletResponse response)
+    		throws IOException {
+
+		DataExport.Format format = DataExport.Format.of(formatName);
+		if (format == null) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown format " + formatName);
+		if (to <= 0) to = inverter.getEpochSecond() + 1;
+		if (from <= 0 || from >= to) from = to - 86400;
+
+		HistoryStore history = inverters.getHistory(inverter.getName());
+		DataExport export = new DataExport(history.getRaw(), inverter.getSchema(), ZoneId.systemDefault(), objectMapper);
+
+		response.setContentType(format.contentType);
+		if (format != DataExport.Format.BINARY) response.setCharacterEncoding("UTF-8");
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+				.filename(inverter.getName() + "-" + from + "-" + to + "." + format.extension).build().toString());
+
+		long started = System.nanoTime();
+		try {
+			long count = export.write(format, from, to, response.getOutputStream());
+			logger.info("Exported " + (count < 0 ? "" : count + " data points of ") + inverter.getName() + " from " + from
+					+ " to " + to + " as " + format + " in " + (System.nanoTime() - started) / 1000000 + " ms");
+		} catch (DataExport.ClientWriteException e) {
+			// mostly the client went away
+			logger.warn("Export of " + inverter.getName() + " aborted by the client: " + e.getMessage());
+		} catch (IOException | RuntimeException e) {
+			logger.error("Error reading data points of " + inverter.getName() + " for export from " + from + " to " + to
+					+ ": " + e.getMessage());
+			if (!response.isCommitted()) {
+				response.reset();
+				throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error reading data points");
+			}
+			// part of it is sent already: the server drops the connection without ending the response,
+			// so the download does not look complete
+			throw e;
+		}
+    }
+
+}
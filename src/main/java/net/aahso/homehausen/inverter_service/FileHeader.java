@@ -0,0 +1,110 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Header of the binary data and rollup files, all big endian:
+ *
+ *   int magic | short version | short fieldCount | int recordSize | int headerSize | int param
+ *   | (short length | UTF-8 bytes) * fieldCount   metric names
+ *
+ * param is file specific (bucket length of rollup files). Version 1 files have
+ * no metric names, their fields are the metrics of SampleSchema.CORE, and data
+ * files of version 1 have no param either.
+ */
+final class FileHeader {
+
+	static final short VERSION = 2;
+	private static final int FIXED_SIZE = 20;
+
+	final int magic;
+	final short version;
+	final int recordSize;
+	final int headerSize;
+	final int param;
+	final String[] names;
+
+	private FileHeader(int magic, short version, int recordSize, int headerSize, int param, String[] names) {
+		this.magic = magic;
+		this.version = version;
+		this.recordSize = recordSize;
+		this.headerSize = headerSize;
+		this.param = param;
+		this.names = names;
+	}
+
+	static ByteBuffer encode(int magic, int recordSize, int param, String[] names) {
+		byte[][] encoded = new byte[names.length][];
+		int size = FIXED_SIZE;
+		for (int i = 0; i < names.length; i++) {
+			encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+			size += 2 + encoded[i].length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(magic).putShort(VERSION).putShort((short) names.length)
+				.putInt(recordSize).putInt(size).putInt(param);
+		for (byte[] name : encoded) {
+			buffer.putShort((short) name.length).put(name);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	static void write(FileChannel channel, ByteBuffer header) throws IOException {
+		long position = 0;
+		while (header.hasRemaining()) position += channel.write(header, position);
+	}
+
+	static FileHeader read(FileChannel channel, int expectedMagic) throws IOException {
+		ByteBuffer fixed = readFully(channel, 0, 16);
+		if (fixed.getInt() != expectedMagic) throw new IOException("Bad magic, not the expected file type");
+		short version = fixed.getShort();
+		int fieldCount = fixed.getShort();
+		int recordSize = fixed.getInt();
+		int headerSize = fixed.getInt();
+
+		if (version == 1) {
+			if (fieldCount != SampleSchema.CORE.size()) throw new IOException("Unexpected field count " + fieldCount);
+			int param = headerSize > 16 ? readFully(channel, 16, 4).getInt() : 0;
+			return new FileHeader(expectedMagic, version, recordSize, headerSize, param, SampleSchema.CORE.names());
+		}
+		if (version != VERSION) throw new IOException("Unsupported file version " + version);
+
+		ByteBuffer rest = readFully(channel, 16, headerSize - 16);
+		int param = rest.getInt();
+		String[] names = new String[fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			byte[] name = new byte[rest.getShort()];
+			rest.get(name);
+			names[i] = new String(name, StandardCharsets.UTF_8);
+		}
+		return new FileHeader(expectedMagic, version, recordSize, headerSize, param, names);
+	}
+
+	// for each metric of the schema: its field index in this file or -1
+	int[] fieldIndexes(SampleSchema schema) {
+		int[] indexes = new int[schema.size()];
+		for (int m = 0; m < indexes.length; m++) {
+			indexes[m] = -1;
+			for (int f = 0; f < names.length; f++) {
+				if (names[f].equals(schema.name(m))) indexes[m] = f;
+			}
+		}
+		return indexes;
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+		if (size < 0) throw new IOException("Corrupt header");
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Header truncated");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+}
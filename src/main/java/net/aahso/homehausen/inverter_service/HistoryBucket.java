@@ -0,0 +1,19 @@
+package net.aahso.homehausen.inverter_service;
+
+/*
+ * Aggregates of one time bucket of a history range query.
+ */
+public class HistoryBucket extends WindowStats {
+
+	private final long bucketStart;
+
+	public HistoryBucket(SampleSchema schema, long bucketStart) {
+		super(schema);
+		this.bucketStart = bucketStart;
+	}
+
+	public long getBucket() {
+		return bucketStart;
+	}
+
+}
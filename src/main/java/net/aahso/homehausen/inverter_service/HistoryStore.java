@@ -0,0 +1,255 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.annotation.PreDestroy;
+
+/*
+ * History of all data points: the raw data (archive segments and data file) plus rollup
+ * tiers of 1 minute, 15 minutes and 1 hour, maintained incrementally as data
+ * points are written.
+ *
+ * Range queries are answered from the coarsest tier that fits the requested
+ * bucket length, so a day or month chart reads a few hundred rollup rows
+ * instead of tens of thousands of raw data points.
+ * Rollups are kept for good, raw data points may be dropped after a while
+ * (app.archive.retention), so queries with shorter buckets only reach back that far.
+ * The energy counters (see EnergyIntegrator) are fed the same way and saved
+ * to energy.json about once a minute.
+ */
+@Component
+public class HistoryStore {
+
+	public static final int[] TIER_SECONDS = { 60, 900, 3600 };
+	public static final int MAX_BUCKETS = 10000;
+	public static final String ENERGY_FILE = "energy.json";
+	private static final long ENERGY_SAVE_MILLIS = 60000;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final SampleSchema schema;
+	private final Path dataDir;
+	private final RawHistory raw;
+	private final long maxGapSeconds;
+	private final EnergyIntegrator energy;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private volatile List<RollupTier> tiers = Collections.emptyList();
+	private long lastEnergySave = System.currentTimeMillis();
+
+	public HistoryStore(@Value("${app.datadir}") String dataDir, SampleSchema schema,
+					@Value("${app.energy.maxgap:300}") long maxGapSeconds) {
+		this.schema = schema;
+		this.dataDir = Path.of(dataDir);
+		this.raw = new RawHistory(this.dataDir, schema);
+		this.maxGapSeconds = maxGapSeconds;
+		this.energy = new EnergyIntegrator(schema, ZoneId.systemDefault(), maxGapSeconds);
+	}
+
+	// history of another inverter with its data in dataDir
+	HistoryStore forDevice(Path dataDir) {
+		return new HistoryStore(dataDir.toString(), schema, maxGapSeconds);
+	}
+
+	// open rollup tiers and energy counters and add data points written since they were last updated
+	// (called by the writer thread before it appends anything)
+	void open() {
+		try {
+			raw.open();
+		} catch (IOException e) {
+			logger.error("Error opening archive in " + dataDir + ": " + e.getMessage());
+		}
+		openEnergy();
+		List<RollupTier> opened = new ArrayList<RollupTier>();
+		try {
+			for (int seconds : TIER_SECONDS) {
+				RollupFile file = RollupFile.open(dataDir.resolve("rollup-" + seconds + ".bin"), seconds, schema);
+				opened.add(new RollupTier(file));
+			}
+			catchUp(opened);
+			tiers = opened;
+		} catch (IOException e) {
+			logger.error("Error opening rollup tiers, range queries use raw data only: " + e.getMessage());
+			for (RollupTier tier : opened) {
+				try {
+					tier.close();
+				} catch (IOException e1) {
+					// nothing left to do
+				}
+			}
+		}
+	}
+
+	private void catchUp(List<RollupTier> opened) throws IOException {
+		for (RollupTier tier : opened) {
+			long[] count = new long[1];
+			raw.forEach(tier.resumeFrom(), Long.MAX_VALUE, dp -> {
+				tier.add(dp);
+				count[0]++;
+			});
+			if (count[0] > 0) {
+				logger.info("Rolled up " + count[0] + " data points into " + tier.getBucketSeconds() + "s tier");
+			}
+		}
+	}
+
+	private void openEnergy() {
+		Path file = dataDir.resolve(ENERGY_FILE);
+		try {
+			energy.load(file, objectMapper);
+		} catch (IOException e) {
+			logger.error("Error reading " + file + ", energy is counted again from all data points: " + e.getMessage());
+		}
+		try {
+			long last = energy.getLastTimeStamp();
+			long[] count = new long[1];
+			raw.forEach(last == Long.MIN_VALUE ? last : last + 1, Long.MAX_VALUE, dp -> {
+				energy.add(dp);
+				count[0]++;
+			});
+			if (count[0] > 0) {
+				logger.info("Counted energy of " + count[0] + " data points");
+				saveEnergy();
+			}
+		} catch (IOException e) {
+			logger.error("Error counting energy of data points written before: " + e.getMessage());
+		}
+	}
+
+	private void saveEnergy() {
+		lastEnergySave = System.currentTimeMillis();
+		try {
+			energy.save(dataDir.resolve(ENERGY_FILE), objectMapper);
+		} catch (IOException e) {
+			logger.error("Error saving energy counters: " + e.getMessage());
+		}
+	}
+
+	// energy per day, month and lifetime
+	EnergyIntegrator getEnergy() {
+		return energy;
+	}
+
+	// raw data points of this history
+	RawHistory getRaw() {
+		return raw;
+	}
+
+	// first time stamp not yet in all rollup files and the energy counters; raw data points
+	// before it can be dropped (Long.MIN_VALUE while the tiers are not open)
+	long rolledUpTo() {
+		List<RollupTier> current = tiers;
+		if (current.isEmpty()) return Long.MIN_VALUE;
+		long last = energy.getLastTimeStamp();
+		long upTo = last == Long.MIN_VALUE ? Long.MIN_VALUE : last + 1;
+		for (RollupTier tier : current) upTo = Math.min(upTo, tier.rolledUpTo());
+		return upTo;
+	}
+
+	// roll up data points just written to the data file (writer thread only)
+	void add(List<DataPoint> batch) {
+		for (DataPoint dp : batch) energy.add(dp);
+		if (System.currentTimeMillis() - lastEnergySave >= ENERGY_SAVE_MILLIS) saveEnergy();
+
+		try {
+			for (RollupTier tier : tiers) {
+				for (DataPoint dp : batch) tier.add(dp);
+			}
+		} catch (IOException e) {
+			logger.error("Error writing rollup: " + e.getMessage());
+		}
+	}
+
+	// aggregates of all data points with from <= time stamp < to in buckets of the given length
+	public List<HistoryBucket> query(long from, long to, int bucketSeconds) throws IOException {
+		if (bucketSeconds < 1) throw new IllegalArgumentException("bucket must be positive: " + bucketSeconds);
+
+		Downsampler downsampler = new Downsampler(schema, bucketSeconds);
+		long first = RollupTier.bucketStart(from, bucketSeconds);
+
+		RollupTier tier = null;
+		for (RollupTier t : tiers) {
+			if (bucketSeconds % t.getBucketSeconds() == 0) tier = t;
+		}
+
+		if (tier != null) {
+			tier.forEach(first, to, downsampler::merge);
+		} else {
+			// archive segments and data file
+			raw.forEach(first, to, downsampler::add);
+		}
+		return downsampler.finish();
+	}
+
+	// round bucket length up to a multiple of the coarsest tier not longer than it
+	public static int alignToTier(int bucketSeconds) {
+		int aligned = bucketSeconds;
+		for (int seconds : TIER_SECONDS) {
+			if (seconds <= bucketSeconds) aligned = (bucketSeconds + seconds - 1) / seconds * seconds;
+		}
+		return aligned;
+	}
+
+	@PreDestroy
+	void close() {
+		saveEnergy();
+		// open buckets are not written, they are rebuilt from the data file on the next start
+		for (RollupTier tier : tiers) {
+			try {
+				tier.force();
+				tier.close();
+			} catch (IOException e) {
+				logger.warn("Error closing rollup tier: " + e.getMessage());
+			}
+		}
+		tiers = Collections.emptyList();
+	}
+
+	// collects rows or data points into buckets of the requested length
+	private static class Downsampler {
+
+		private final SampleSchema schema;
+		private final int bucketSeconds;
+		private final List<HistoryBucket> result = new ArrayList<HistoryBucket>();
+		private HistoryBucket current;
+
+		Downsampler(SampleSchema schema, int bucketSeconds) {
+			this.schema = schema;
+			this.bucketSeconds = bucketSeconds;
+		}
+
+		void merge(long timeStamp, WindowStats row) {
+			bucketFor(timeStamp).merge(row);
+		}
+
+		void add(DataPoint dp) {
+			bucketFor(dp.getTimeStamp()).add(dp);
+		}
+
+		private HistoryBucket bucketFor(long timeStamp) {
+			long start = RollupTier.bucketStart(timeStamp, bucketSeconds);
+			if (current == null || current.getBucket() != start) {
+				current = new HistoryBucket(schema, start);
+				result.add(current);
+			}
+			return current;
+		}
+
+		List<HistoryBucket> finish() {
+			return result;
+		}
+	}
+
+}
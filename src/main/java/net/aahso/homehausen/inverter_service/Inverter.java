@@ -1,203 +1,315 @@
 package net.aahso.homehausen.inverter_service;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.LinkedList;
-import java.util.Iterator;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
 import jakarta.annotation.PreDestroy;
 
 import org.springframework.web.reactive.function.client.ClientResponse;
-import org.springframework.boot.context.event.ApplicationReadyEvent;
-import org.springframework.context.event.EventListener;
-import org.springframework.core.env.Environment;
-import org.springframework.core.task.TaskExecutor;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatusCode;
 
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-
+import reactor.core.publisher.Sinks;
+
+/*
+ * One inverter: polls it, keeps its recent data points and hands new ones to
+ * its data file writer (and, for the primary inverter, the aahso.net upload).
+ * The bean is the primary inverter (app.inverter.*), InverterRegistry creates
+ * one more per app.devices entry with forDevice.
+ */
 @Component
 public class Inverter {
 
 	private static final String API_URL = "/processdata";
-	private static final String NOSESSION = "xx";
-	private String sessionID = NOSESSION;
-
-	@Autowired
-	private Environment env;
 
 	// injected
-	private final WebClient aahsoWebClient;
+	private final String name;
 	private final WebClient inverterWebClient;
-	private final String passwordFilename;
-    private final TaskExecutor taskExecutor;
+	private final InverterSession session;
+	private final DataPointWriter dataPointWriter;
+	private final AahsoUploader aahsoUploader;
+	private final SampleSchema schema;
+	private final PollScheduler pollScheduler;
+	private final MeterRegistry registry;
+	private final Duration fetchTimeout;
+	private final Clock clock;
+	private final int bufferCapacity;
+	private final long restoreSeconds;
 
     private volatile boolean running = true;
-    private volatile Thread workerThread;
+	private Disposable pump;
+	private long loopCount = 0;
+	// monotonic start of the current poll, for the end-to-end sample age
+	private volatile long pollStarted;
+
+	// every new data point, for in-memory subscribers; slow subscribers miss data points
+	private final Sinks.Many<DataPoint> samples = Sinks.many().multicast().directBestEffort();
 	private ObjectMapper objectMapper = new ObjectMapper();
 	private final Logger logger = LoggerFactory.getLogger(this.getClass());
-    private final ArrayNode APIrequest = createRequest();
-
-	private LinkedList<DataPoint> listDP = new LinkedList<DataPoint>();
+    private final String APIrequest;
+	private final ProcessDataParser processDataParser;
+	private final ProcessData processData;
+
+	// recent data points, written by the data pump, read by REST requests
+	private final DataPointBuffer bufferDP;
+	// running aggregates over the last seconds, updated on every data point
+	private final WindowAggregator aggregator;
+
+	// metrics (see /actuator/prometheus)
+	private final Timer fetchTimer;
+	private final Timer parseTimer;
+	private final Timer sampleAge;
+	private final Counter fetchErrors;
+	private final Counter parseErrors;
+	private final Counter publishErrors;
+	private final Counter unauthorized;
 
 	// Constructor for Inverter
-	public Inverter(@Qualifier("inverterWebClient") WebClient wc, String pwFile,
-					@Qualifier("aahsoWebClient") WebClient awc, TaskExecutor taskExecutor) {
+	public Inverter(@Qualifier("inverterWebClient") WebClient wc, InverterSession session,
+					DataPointWriter dataPointWriter, AahsoUploader aahsoUploader,
+					SampleSchema schema, PollScheduler pollScheduler, MeterRegistry registry, Clock clock,
+					@Value("${app.buffer.capacity:1200}") int bufferCapacity,
+					@Value("${app.inverter.timeout:5000}") long fetchTimeoutMillis,
+					@Value("${app.inverter.name:inverter}") String name,
+					@Value("${app.buffer.restore:3600}") long restoreSeconds) {
+		this.name = name;
 		this.inverterWebClient = wc;
-		this.passwordFilename = pwFile;
-		this.aahsoWebClient = awc;
-        this.taskExecutor = taskExecutor;
-
-		// get session ID of Inverter (get once, use multiple)
-		this.sessionID = InverterAuthenticator.authenticate(wc, pwFile);
-
-		if (this.sessionID == null) {
-			logger.error("Error: no session ID in Inverter constructor");
-		} else {
-			logger.info("Inverter successfully constructed!");
-		}
+		this.session = session;
+		this.dataPointWriter = dataPointWriter;
+		this.aahsoUploader = aahsoUploader;
+		this.schema = schema;
+		this.pollScheduler = pollScheduler;
+		this.registry = registry;
+		this.fetchTimeout = Duration.ofMillis(fetchTimeoutMillis);
+		this.clock = clock;
+		this.bufferCapacity = bufferCapacity;
+		this.restoreSeconds = restoreSeconds;
+		this.bufferDP = new DataPointBuffer(schema, bufferCapacity);
+		this.aggregator = new WindowAggregator(schema);
+
+		// processdata polled from the inverter, one parser slot per distinct source of the schema
+		this.APIrequest = createRequest().toString();
+		this.processDataParser = new ProcessDataParser(schema.getSources());
+		this.processData = new ProcessData(schema.getSources().size());
+
+		// all meters of this inverter are tagged with its name
+		this.fetchTimer = Timer.builder("inverter.fetch").tag("device", name)
+				.description("Processdata request to the inverter, until the response body is read")
+				.register(registry);
+		this.parseTimer = Timer.builder("inverter.parse").tag("device", name)
+				.description("Parsing the processdata response into a data point")
+				.register(registry);
+		this.sampleAge = Timer.builder("inverter.sample.age").tag("device", name)
+				.description("From the start of a poll until the data point is handed to all consumers")
+				.publishPercentileHistogram()
+				.minimumExpectedValue(Duration.ofMillis(10))
+				.maximumExpectedValue(fetchTimeout.multipliedBy(2))
+				.register(registry);
+		this.fetchErrors = errorCounter("fetch");
+		this.parseErrors = errorCounter("parse");
+		this.publishErrors = errorCounter("publish");
+		this.unauthorized = Counter.builder("inverter.unauthorized").tag("device", name)
+				.description("Processdata requests rejected with 401")
+				.register(registry);
+
+		Gauge.builder("inverter.buffer.size", bufferDP, DataPointBuffer::size).tag("device", name)
+				.description("Data points in the in-memory buffer").register(registry);
+		Gauge.builder("inverter.session.age", session, s -> {
+					long age = s.getAgeMillis();
+					return age < 0 ? -1 : age / 1000.0;
+				}).tag("device", name)
+				.description("Age of the inverter session, -1 without session").baseUnit("seconds").register(registry);
+		FunctionCounter.builder("inverter.session.attempts", session, InverterSession::getAttempts).tag("device", name)
+				.description("Handshakes started (logins and re-authentications)").register(registry);
+		FunctionCounter.builder("inverter.session.logins", session, InverterSession::getLogins).tag("device", name)
+				.description("Successful handshakes").register(registry);
+		FunctionCounter.builder("inverter.session.failures", session, InverterSession::getFailedLogins).tag("device", name)
+				.description("Failed handshakes").register(registry);
+
+		// the session ID is fetched by the data pump on its first poll (get once, use multiple)
+		logger.info("Inverter " + name + " successfully constructed!");
+	}
 
+	// another inverter with the same settings; its data points are not uploaded to aahso.net
+	Inverter forDevice(String name, WebClient wc, InverterSession session, DataPointWriter dataPointWriter,
+			PollScheduler pollScheduler) {
+		return new Inverter(wc, session, dataPointWriter, null, schema, pollScheduler, registry, clock,
+				bufferCapacity, fetchTimeout.toMillis(), name, restoreSeconds);
 	}
 
-    @EventListener(ApplicationReadyEvent.class)
-    public void runDataPump(ApplicationReadyEvent ev) {
-        taskExecutor.execute(() -> {
-            workerThread = Thread.currentThread();
-		    int loopCount = 0;
-			String responseJson = "";
-            try {
-                while (running && loopCount > -3) {
-                    try {
-
-						// start with some sleep
-                        Thread.sleep(3000);
-
-                        loopCount++;
-                        System.out.println("Loop: " + loopCount);
-                        
-						responseJson = fetchDataFromInverter();
-						//System.out.println("Response: " + responseJson);
-						if (responseJson == null) {
-							System.out.println("No response from Inverter API");
-							continue;
-						}
-
-						// create data point from inverter json
-						DataPoint dp = extractDataFromJson(responseJson);
-						listDP.add(dp);
-
-						// write data to file
-						saveDataPointToFile(dp);
-
-						// remove old data points (older than 10 minutes)
-						if (loopCount%100 == 0)
-							listDP.removeIf((DataPoint l) -> l.getTimeStamp() < Instant.now().getEpochSecond() - 3600);
-						System.out.println("DataPoints: " + listDP.size());
-
-						// send data to aahso.net
-						sendDataToAahso(dp);
-
-                        
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        running = false;
-                    } catch (Exception e) {
-                        // Log error but keep running
-                        System.err.println("Error in Data Pump: " + e.getMessage());
-                    }
-                }
-            } finally {
-                workerThread = null;
-            }
-        });
+    // data pump: tick -> fetch -> parse -> fan out to memory, file and upload outbox
+    // Nothing blocks: the next tick is scheduled when the poll is done, file
+    // and upload are written by their own threads, so a slow disk or
+    // aahso.net never delays the next inverter sample.
+    // Started by InverterRegistry once the application is ready; the pumps of all
+    // inverters run side by side on the shared Reactor schedulers.
+    public void runDataPump() {
+
+		restore();
+		pump = Mono.defer(() -> Mono.delay(Duration.ofMillis(nextPollDelay())))
+				.then(Mono.defer(this::poll))
+				.doOnNext(this::publish)
+				.repeat(() -> running)
+				.subscribe(dp -> { }, e -> logger.error("Data pump stopped: " + e.getMessage()));
     }
 
-	// get data point from JSON response
-	private DataPoint extractDataFromJson(String respJson)
-		throws JsonProcessingException, JsonParseException {
+	// warm restart: refill buffer and aggregates with the last app.buffer.restore seconds
+	// of the data file, so /latest and the averages do not start empty
+	private void restore() {
+		if (restoreSeconds <= 0) return;
+		long started = System.nanoTime();
+		try {
+			List<DataPoint> recent = dataPointWriter.readSince(getEpochSecond() - restoreSeconds);
+			long last = 0;
+			int restored = 0;
+			for (DataPoint dp : recent) {
+				// buffer and aggregates need ascending time stamps
+				if (dp.getTimeStamp() <= last) continue;
+				last = dp.getTimeStamp();
+				bufferDP.add(dp);
+				aggregator.add(dp);
+				restored++;
+			}
+			if (restored > 0) {
+				logger.info("Restored " + restored + " data points of " + name + " from " + dataPointWriter.getDataFile()
+						+ " in " + (System.nanoTime() - started) / 1000000 + " ms");
+			}
+		} catch (IOException e) {
+			logger.warn("Error restoring data points of " + name + ", starting empty: " + e.getMessage());
+		}
+	}
+
+	// poll intervals are clock time: shorter in real time when the clock runs faster (simulator)
+	private long nextPollDelay() {
+		double speed = AcceleratedClock.speedOf(clock);
+		if (speed == 1) return pollScheduler.delayMillis(PollScheduler.now());
+		return (long) (pollScheduler.delayMillis((long) (PollScheduler.now() * speed)) / speed);
+	}
 
-		JsonNode jsonNode = objectMapper.readTree(respJson);
-		//System.out.println("Parsed JSON size: " + jsonNode.size());
+	private Counter errorCounter(String stage) {
+		return Counter.builder("inverter.errors").tag("device", name).tag("stage", stage)
+				.description("Failed polls by stage").register(registry);
+	}
 
-		int pv1 = jsonNode.get(0).get("processdata").get(0).get("value").asInt();
-		int pv2 = jsonNode.get(1).get("processdata").get(0).get("value").asInt();
-		int pvTotal = pv1 + pv2;
-		//System.out.println("Parsed JSON PV total: " + pvTotal);
+	// one poll: data point or empty if the inverter could not be read
+	private Mono<DataPoint> poll() {
+
+		loopCount++;
+		pollStarted = System.nanoTime();
+		logger.debug("Loop: " + loopCount);
+
+		return session.get()
+				.flatMap(this::fetchDataFromInverter)
+				.flatMap(responseJson -> Mono.fromCallable(() -> parseTimer.recordCallable(() -> extractDataFromJson(responseJson)))
+						.doOnError(e -> parseErrors.increment()))
+				.doOnNext(pollScheduler::success)
+				.switchIfEmpty(Mono.error(() -> new IOException("No response from Inverter API")))
+				.onErrorResume(e -> {
+					// inverter unreachable or bad response: back off
+					logger.warn("Error in Data Pump (" + name + "): " + e.getMessage());
+					pollScheduler.failure();
+					return Mono.empty();
+				});
+	}
 
-		int fromGrid = jsonNode.get(3).get("processdata").get(0).get("value").asInt();
-		//System.out.println("Parsed JSON from Grid: " + fromGrid);
+	// hand new data point to all consumers (data pump only)
+	private void publish(DataPoint dp) {
+		try {
+			bufferDP.add(dp);
+			aggregator.add(dp);
 
-		int fromBat = jsonNode.get(2).get("processdata").get(0).get("value").asInt();
-		//System.out.println("Parsed JSON from Battery: " + fromBat);
+			// write data to file
+			saveDataPointToFile(dp);
 
-		int homeUse = jsonNode.get(3).get("processdata").get(4).get("value").asInt();
-		//System.out.println("Parsed JSON Home Use: " + homeUse);
+			// send data to aahso.net (via the outbox)
+			if (aahsoUploader != null) aahsoUploader.offer(dp);
 
-		int soc = jsonNode.get(2).get("processdata").get(1).get("value").asInt();
-		//System.out.println("Parsed JSON Battery SoC: " + soc);
+			// other subscribers
+			samples.tryEmitNext(dp);
 
-		Instant instant = Instant.now();
-		long timeStampSeconds = instant.getEpochSecond();
+			sampleAge.record(System.nanoTime() - pollStarted, TimeUnit.NANOSECONDS);
+		} catch (Exception e) {
+			// Log error but keep running
+			publishErrors.increment();
+			logger.error("Error in Data Pump (" + name + "): " + e.getMessage());
+		}
+	}
 
-		return new DataPoint(
-			timeStampSeconds,
-			pvTotal,
-			fromGrid,
-			fromBat,
-			homeUse,
-			soc
-		);
+	// all new data points from now on (hot, slow subscribers miss data points)
+	public Flux<DataPoint> samples() {
+		return samples.asFlux();
 	}
 
-	// get the data from the inverter
-	private String fetchDataFromInverter() {
+	// get data point from JSON response
+	private DataPoint extractDataFromJson(byte[] respJson) throws IOException {
 
-		if (this.sessionID==null || this.sessionID.equals(NOSESSION)) {
-			this.sessionID = InverterAuthenticator.authenticate(this.inverterWebClient, this.passwordFilename);
+		processDataParser.parse(respJson, processData);
+		if (!processData.isComplete()) {
+			throw new IOException("Incomplete processdata response ("
+					+ processData.presentCount + " of " + processData.slots() + " values)");
 		}
-		if (this.sessionID == null)
-			return null;
 
-        // prepate request JSON
-        ArrayNode procDataArray = APIrequest;
-        String inputJson = procDataArray.toString();
-		//System.out.println("JSON in: "+inputJson);
+		int[] values = new int[schema.size()];
+		schema.compute(processData, values);
+
+		long timeStampSeconds = clock.instant().getEpochSecond();
+
+		return new DataPoint(schema, timeStampSeconds, values);
+	}
 
-		return this.inverterWebClient.post().uri(API_URL).header(HttpHeaders.AUTHORIZATION, "Session " + sessionID)
-				.bodyValue(inputJson).exchangeToMono(this::handleResponse).block();
+	// get the data from the inverter
+	private Mono<byte[]> fetchDataFromInverter(String sessionID) {
+
+		if (aahsoUploader != null) aahsoUploader.setSessionID(sessionID);
+		return Mono.defer(() -> {
+			Timer.Sample fetch = Timer.start();
+			return this.inverterWebClient.post().uri(API_URL).header(HttpHeaders.AUTHORIZATION, "Session " + sessionID)
+					.bodyValue(APIrequest).exchangeToMono(response -> handleResponse(response, sessionID))
+					.timeout(fetchTimeout)
+					.doOnSuccess(body -> fetch.stop(fetchTimer))
+					.doOnError(e -> fetchErrors.increment());
+		});
 
 	}
 
 	// error handling
-	private Mono<String> handleResponse(ClientResponse response) {
+	private Mono<byte[]> handleResponse(ClientResponse response, String sessionID) {
 
 		if (response.statusCode().is2xxSuccessful()) {
-			return response.bodyToMono(String.class);
+			session.confirm(sessionID);
+			return response.bodyToMono(byte[].class);
 		} else if (response.statusCode().isSameCodeAs(HttpStatusCode.valueOf(401))) {
-			// Handle client errors 401 unauthorized
+			// Handle client errors 401 unauthorized: session expired, renewed in the background
 			logger.warn("API Call returned 401");
-			this.sessionID = "401";
-			return response.bodyToMono(String.class); // what ever this is
+			unauthorized.increment();
+			session.invalidate(sessionID);
+			return response.releaseBody().then(Mono.error(new IOException("HTTP Error 401")));
 		} else if (response.statusCode().is4xxClientError()) {
 			// Handle client errors (e.g., 404 Not Found)
 			return Mono.error(new RuntimeException("HTTP Error " + response.statusCode()));
@@ -210,97 +322,63 @@ public class Inverter {
 		}
 	}
 
-	// return latest (stored) data point
-	public DataPoint getLatestData() {
-		return listDP.peekLast();
+	public String getName() {
+		return name;
 	}
 
-	// return latest (stored) data points not older than x seconds
-	public LinkedList<DataPoint> getLatestDataPoints(int seconds) {
-		long threshold = Instant.now().getEpochSecond() - seconds;
-		LinkedList<DataPoint> recentDPs = new LinkedList<DataPoint>();
-		Iterator<DataPoint> iterator = listDP.descendingIterator();
-	    while (iterator.hasNext()) {
-			DataPoint dp = iterator.next();
-			if (dp.getTimeStamp() < threshold) break;
-			System.out.println(dp.getTimeStamp());
-       		recentDPs.add(dp);
-		}
-		return recentDPs;
+	public SampleSchema getSchema() {
+		return schema;
 	}
-	
-	// save data point to file
-	private void saveDataPointToFile(DataPoint dp) {
-		String saveFilename = env.getProperty("app.savefilename");
 
-		try (FileWriter myWriter = new FileWriter(saveFilename, true)) {
-			myWriter.write(objectMapper.writeValueAsString(dp)+"\n");
-		} catch (IOException e) {
-			System.out.println("Error writing to file.");
-			e.printStackTrace();
-		}
+	public InverterSession getSession() {
+		return session;
+	}
+
+	public PollScheduler.Mode getPollMode() {
+		return pollScheduler.getMode();
+	}
+
+	// return latest (stored) data point
+	public DataPoint getLatestData() {
+		return bufferDP.latest();
 	}
 
-	// send latest data to aahso.net
-	public void sendDataToAahso(DataPoint dp) {
+	// return latest (stored) data points not older than x seconds, newest first
+	public List<DataPoint> getLatestDataPoints(int seconds) {
+		long threshold = getEpochSecond() - seconds;
+		return bufferDP.since(threshold);
+	}
 
-    	ObjectNode JsonData = objectMapper.createObjectNode();
+	// fill count/sum/min/max of the data points not older than x seconds; false if there are none
+	public boolean getLatestStats(int seconds, WindowStats stats) {
+		return aggregator.query(seconds, getEpochSecond(), stats);
+	}
 
-    	JsonData.put("Time", LocalDateTime.ofInstant(Instant.ofEpochSecond(dp.getTimeStamp()), ZoneId.systemDefault()).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-    	JsonData.put("PV", dp.getFromPV());
-    	JsonData.put("FromGrid", dp.getFromGrid());
-    	JsonData.put("FromBat", dp.getFromBat());
-    	JsonData.put("Home_Total", dp.getUseHome());
-    	JsonData.put("Battery_Level", dp.getLevelBat());
-        
-		this.aahsoWebClient.post().uri("/send_data.php").header(HttpHeaders.AUTHORIZATION, "Session " + sessionID)
-				.bodyValue(JsonData.toString()).exchangeToMono(this::handleResponse).block();
+	// now on the clock of the data points
+	public long getEpochSecond() {
+		return clock.instant().getEpochSecond();
+	}
+	
+	// save data point to file (asynchronously, written in batches)
+	private void saveDataPointToFile(DataPoint dp) {
+		dataPointWriter.offer(dp);
 	}
 
-    // create request JSON
+    // create request JSON: one module object per moduleid with all its processdata ids
     private ArrayNode createRequest() {
 
+        Map<String, ArrayNode> modules = new LinkedHashMap<String, ArrayNode>();
+        for (String[] source : schema.getSources()) {
+            modules.computeIfAbsent(source[0], m -> objectMapper.createArrayNode()).add(source[1]);
+        }
+
         ArrayNode procDataArray = objectMapper.createArrayNode();
-        ObjectNode moduleObject;
-        ArrayNode processdataNames;
-
-        // PV array 1
-        moduleObject = objectMapper.createObjectNode();
-        moduleObject.put("moduleid", "devices:local:pv1");
-        processdataNames = objectMapper.createArrayNode();
-        processdataNames.add("P");
-        moduleObject.set("processdataids", processdataNames);
-        procDataArray.add(moduleObject);
-
-        // PV array 2
-        moduleObject = objectMapper.createObjectNode();
-        moduleObject.put("moduleid", "devices:local:pv2");
-        processdataNames = objectMapper.createArrayNode();
-        processdataNames.add("P");
-        moduleObject.set("processdataids", processdataNames);
-        procDataArray.add(moduleObject);
-
-        // Battery
-        moduleObject = objectMapper.createObjectNode();
-        moduleObject.put("moduleid", "devices:local:battery");
-        processdataNames = objectMapper.createArrayNode();
-        processdataNames.add("SoC");
-        processdataNames.add("P");
-        moduleObject.set("processdataids", processdataNames);
-        procDataArray.add(moduleObject);
-
-        // Power Flow
-        moduleObject = objectMapper.createObjectNode();
-        moduleObject.put("moduleid", "devices:local");
-        processdataNames = objectMapper.createArrayNode();
-        processdataNames.add("Grid_P");
-        processdataNames.add("Home_P");
-        processdataNames.add("HomeGrid_P");
-        processdataNames.add("HomeOwn_P");
-        processdataNames.add("HomeBat_P");
-        processdataNames.add("PV2Bat_P");
-        moduleObject.set("processdataids", processdataNames);
-        procDataArray.add(moduleObject);
+        for (Map.Entry<String, ArrayNode> module : modules.entrySet()) {
+            ObjectNode moduleObject = objectMapper.createObjectNode();
+            moduleObject.put("moduleid", module.getKey());
+            moduleObject.set("processdataids", module.getValue());
+            procDataArray.add(moduleObject);
+        }
 
         return procDataArray;
     }
@@ -308,18 +386,11 @@ public class Inverter {
 
 	// clean shut down
     @PreDestroy
-    private void stopThread() {
-        logger.info("Shutdown requested: stopping Inverter data pump");
+    void stopThread() {
+        logger.info("Shutdown requested: stopping data pump of inverter " + name);
         running = false;
-        Thread t = workerThread;
-        if (t != null) {
-            t.interrupt();
-            try {
-                t.join(2000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
+        if (pump != null) pump.dispose();
+        samples.tryEmitComplete();
     }
 
 
@@ -4,9 +4,14 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import java.util.Random;
 import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import java.security.SecureRandom;
 import java.security.MessageDigest;
@@ -30,6 +35,7 @@ import org.slf4j.LoggerFactory;
 
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -44,230 +50,213 @@ public class InverterAuthenticator {
     private static final String AUTH_CREATE_SESSION = "/auth/create_session";
     private static final int    AES_GCM_TAG_LENGTH = 128; // bit count
 
+    private static final Logger logger = LoggerFactory.getLogger(InverterAuthenticator.class);
 
-    /* authenticate on Inverter API */
-    /* returns sessionID */
-    public static String authenticate(WebClient webClient, String passwordFile) {
+    // { file, last modified, password }
+    private static volatile String[] cachedPassword;
+    // PBKDF2 results by rounds, salt and password hash
+    private static final int MAX_SALTED_PASSWORDS = 8;
+    private static final Map<String, byte[]> saltedPasswords = new ConcurrentHashMap<String, byte[]>();
 
-        String password = getPW(passwordFile);
 
-    	Logger logger = LoggerFactory.getLogger(InverterAuthenticator.class);
+    /* authenticate on Inverter API without blocking the calling thread */
+    /* emits the sessionID or an error */
+    public static Mono<String> authenticateAsync(WebClient webClient, String passwordFile) {
+
         ObjectMapper mapper = new ObjectMapper();
-    	String responseStr = null;
+        Handshake handshake = new Handshake(mapper, createClientNonce());
+
+        ObjectNode authMeNode = mapper.createObjectNode();
+        authMeNode.put("username", USER_TYPE);
+        authMeNode.put("nonce", handshake.clientNonce);
+
+        return post(webClient, mapper, AUTH_START, authMeNode)
+                // reading the password file and PBKDF2 are blocking / CPU heavy: not on the event loop
+                .publishOn(Schedulers.boundedElastic())
+                .map(start -> handshake.finishRequest(start, getPW(passwordFile)))
+                .flatMap(finishRequest -> post(webClient, mapper, AUTH_FINISH, finishRequest))
+                .map(handshake::sessionRequest)
+                .flatMap(sessionRequest -> post(webClient, mapper, AUTH_CREATE_SESSION, sessionRequest))
+                .map(session -> {
+                    // Extract information from the response
+                    String sessionId = session.get("sessionId").asText();
+                    logger.info("Successfully generated a Session ID.");
+                    return sessionId;
+                });
+    }
 
-        String clientNonce = createClientNonce();
-        JsonNode authMeNode = mapper.createObjectNode();
-        ((ObjectNode) authMeNode).put("username", USER_TYPE);
-        ((ObjectNode) authMeNode).put("nonce", clientNonce);
-        //System.out.println("before call (Jack) - " + authMeNode.toString());
+    /* one step of the authentication */
+    private static Mono<JsonNode> post(WebClient webClient, ObjectMapper mapper, String uri, JsonNode body) {
+        return webClient.post()
+                .uri(uri)
+                .bodyValue(body.toString())
+                .retrieve()
+                .onStatus(s -> !(s.is2xxSuccessful()), response -> {
+                    return Mono.error(new IOException("Error "+response.statusCode().value()+" in "+uri));
+                  })
+                .bodyToMono(String.class)
+                .map(responseStr -> {
+                    try {
+                        return mapper.readTree(responseStr);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("ERROR in JSON of " + uri + " --- " + e.getMessage());
+                    }
+                });
+    }
 
-    	// start auth process
-        try {
-        	responseStr = webClient.post()
-				.uri(AUTH_START)
-				.bodyValue(authMeNode.toString())
-				.retrieve()
-				.onStatus(s -> !(s.is2xxSuccessful()), response -> {
-			        return Mono.error(new Exception("Error "+response.statusCode().value()+" in "+AUTH_START));
-			      })
-				.bodyToMono(String.class)
-				.block();
-        }
-    	catch (Exception e) {
-    		e.printStackTrace();
-    		logger.error("Error in "+AUTH_START);
-    		return null;
-    	}
+    /* state of one authentication (SCRAM handshake) */
+    private static class Handshake {
 
-        JsonNode authMeResponseObject = null;
-        try {
-        	authMeResponseObject = mapper.readTree(responseStr);
-            //System.out.println("Result from "+AUTH_START+" jack: " + authMeResponseObject.toString());
-        }
-        catch(Exception e) {
-        	logger.error("ERROR in START JSON --- " + e.getMessage());
-        	return null;
-        }
-        
-        // Extract information from the response
-        int rounds = authMeResponseObject.get("rounds").asInt();
-        String salt = authMeResponseObject.get("salt").asText();
-        String serverNonce = authMeResponseObject.get("nonce").asText();
-        String transactionId = authMeResponseObject.get("transactionId").asText();
-        
-        // Do the cryptography stuff (magic happens here)
-        byte[] saltedPasswort;
-        byte[] clientKey;
-        byte[] serverKey;
-        byte[] storedKey;
-        byte[] clientSignature;
-        byte[] serverSignature;
-        String authMessage;
-        try {
-            saltedPasswort = getPBKDF2Hash(password, Base64.getDecoder().decode(salt), rounds);
-            clientKey = getHMACSha256(saltedPasswort, "Client Key");
-            serverKey = getHMACSha256(saltedPasswort, "Server Key");
-            storedKey = getSha256Hash(clientKey);
-            authMessage = String.format("n=%s,r=%s,r=%s,s=%s,i=%d,c=biws,r=%s", USER_TYPE, clientNonce, serverNonce,
-                    salt, rounds, serverNonce);
-            clientSignature = getHMACSha256(storedKey, authMessage);
-            serverSignature = getHMACSha256(serverKey, authMessage);
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException | IllegalStateException e2) {
-            logger.error("Exception in Crypto: " + e2);
-            return null;
-        }
-        String clientProof = createClientProof(clientSignature, clientKey);
+        private final ObjectMapper mapper;
+        private final String clientNonce;
+        private String transactionId;
+        private String authMessage;
+        private byte[] clientKey;
+        private byte[] storedKey;
+        private byte[] serverSignature;
 
-        // Perform step 2 of the authentication
-        JsonNode authFinishNode = mapper.createObjectNode();
-        ((ObjectNode) authFinishNode).put("transactionId", transactionId);
-        ((ObjectNode) authFinishNode).put("proof", clientProof);
-        
-        try {
-        	responseStr = webClient.post()
-        			.uri(AUTH_FINISH)
-				.bodyValue(authFinishNode.toString())
-				.retrieve()
-				.onStatus(s -> !(s.is2xxSuccessful()), response -> {
-			        return Mono.error(new Exception("Error "+response.statusCode().value()+" in "+AUTH_FINISH));
-			      })
-				.bodyToMono(String.class)
-				.block();
-	    }
-		catch (Exception e) {
-			e.printStackTrace();
-			logger.error("Error in "+AUTH_FINISH);
-			return null;
-		}
-
-        JsonNode authFinishResponseObject = null;
-        try {
-        	authFinishResponseObject = mapper.readTree(responseStr);
-        }
-        catch(Exception e) {
-        	logger.error("ERROR in FINISH JSON --- " + e.getMessage());
-        	return null;
-        }
-        
-        // Extract information from the response
-        byte[] signature = Base64.getDecoder().decode(authFinishResponseObject.get("signature").asText());
-        String token = authFinishResponseObject.get("token").asText();
-
-        // Validate provided signature against calculated signature
-        if (!java.util.Arrays.equals(serverSignature, signature)) {
-            logger.error("Error in Authentication");
-            return null;
+        Handshake(ObjectMapper mapper, String clientNonce) {
+            this.mapper = mapper;
+            this.clientNonce = clientNonce;
         }
 
-        // Calculate protocol key
-        SecretKeySpec signingKey = new SecretKeySpec(storedKey, "HMACSHA256");
-        Mac mac;
-        byte[] protocolKeyHMAC;
-        try {
-            mac = Mac.getInstance("HMACSHA256");
-            mac.init(signingKey);
-            mac.update("Session Key".getBytes());
-            mac.update(authMessage.getBytes());
-            mac.update(clientKey);
-            protocolKeyHMAC = mac.doFinal();
-        } catch (NoSuchAlgorithmException | InvalidKeyException e1) {
-            // Since the necessary libraries are provided, this should not happen
-            logger.error("Error that never happens");
-            return null;
+        /* step 2: prove knowledge of the password */
+        JsonNode finishRequest(JsonNode authMeResponseObject, String password) {
+            if (password == null) throw new IllegalStateException("No password");
+
+            // Extract information from the response
+            int rounds = authMeResponseObject.get("rounds").asInt();
+            String salt = authMeResponseObject.get("salt").asText();
+            String serverNonce = authMeResponseObject.get("nonce").asText();
+            transactionId = authMeResponseObject.get("transactionId").asText();
+
+            // Do the cryptography stuff (magic happens here)
+            byte[] clientSignature;
+            try {
+                byte[] saltedPasswort = getSaltedPassword(password, salt, rounds);
+                clientKey = getHMACSha256(saltedPasswort, "Client Key");
+                byte[] serverKey = getHMACSha256(saltedPasswort, "Server Key");
+                storedKey = getSha256Hash(clientKey);
+                authMessage = String.format("n=%s,r=%s,r=%s,s=%s,i=%d,c=biws,r=%s", USER_TYPE, clientNonce, serverNonce,
+                        salt, rounds, serverNonce);
+                clientSignature = getHMACSha256(storedKey, authMessage);
+                serverSignature = getHMACSha256(serverKey, authMessage);
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException | IllegalStateException e2) {
+                throw new IllegalStateException("Exception in Crypto: " + e2);
+            }
+            String clientProof = createClientProof(clientSignature, clientKey);
+
+            ObjectNode authFinishNode = mapper.createObjectNode();
+            authFinishNode.put("transactionId", transactionId);
+            authFinishNode.put("proof", clientProof);
+            return authFinishNode;
         }
-       
-        byte[] data;
-        byte[] iv;
 
-        // AES GCM stuff
-        iv = new byte[16];
-
-        new SecureRandom().nextBytes(iv);
+        /* step 3: check the server and request a session with the encrypted token */
+        JsonNode sessionRequest(JsonNode authFinishResponseObject) {
+
+            // Extract information from the response
+            byte[] signature = Base64.getDecoder().decode(authFinishResponseObject.get("signature").asText());
+            String token = authFinishResponseObject.get("token").asText();
+
+            // Validate provided signature against calculated signature
+            if (!java.util.Arrays.equals(serverSignature, signature)) {
+                throw new IllegalStateException("Error in Authentication");
+            }
+
+            // Calculate protocol key
+            SecretKeySpec signingKey = new SecretKeySpec(storedKey, "HMACSHA256");
+            byte[] protocolKeyHMAC;
+            try {
+                Mac mac = Mac.getInstance("HMACSHA256");
+                mac.init(signingKey);
+                mac.update("Session Key".getBytes());
+                mac.update(authMessage.getBytes());
+                mac.update(clientKey);
+                protocolKeyHMAC = mac.doFinal();
+            } catch (NoSuchAlgorithmException | InvalidKeyException e1) {
+                // Since the necessary libraries are provided, this should not happen
+                throw new IllegalStateException("Error that never happens");
+            }
+
+            // AES GCM stuff
+            byte[] iv = new byte[16];
+            new SecureRandom().nextBytes(iv);
+
+            SecretKeySpec skeySpec = new SecretKeySpec(protocolKeyHMAC, "AES");
+            GCMParameterSpec param = new GCMParameterSpec(protocolKeyHMAC.length * 8 - AES_GCM_TAG_LENGTH, iv);
+
+            byte[] data;
+            try {
+                Cipher cipher = Cipher.getInstance("AES_256/GCM/NOPADDING");
+                cipher.init(Cipher.ENCRYPT_MODE, skeySpec, param);
+                data = cipher.doFinal(token.getBytes("UTF-8"));
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+                    | InvalidAlgorithmParameterException e1) {
+                // The java installation does not support AES encryption in GCM mode
+                throw new IllegalStateException("AES encryption in GCM mode not supported");
+            } catch (IllegalBlockSizeException | BadPaddingException | UnsupportedEncodingException e1) {
+                throw new IllegalStateException("No JSON answer");
+            }
+
+            byte[] ciphertext = new byte[data.length - AES_GCM_TAG_LENGTH / 8];
+            byte[] gcmTag = new byte[AES_GCM_TAG_LENGTH / 8];
+            System.arraycopy(data, 0, ciphertext, 0, data.length - AES_GCM_TAG_LENGTH / 8);
+            System.arraycopy(data, data.length - AES_GCM_TAG_LENGTH / 8, gcmTag, 0, AES_GCM_TAG_LENGTH / 8);
+
+            // prepare input for session API
+            ObjectNode createSessionNode = mapper.createObjectNode();
+            createSessionNode.put("transactionId", transactionId);
+            createSessionNode.put("iv", Base64.getEncoder().encodeToString(iv));
+            createSessionNode.put("tag", Base64.getEncoder().encodeToString(gcmTag));
+            createSessionNode.put("payload", Base64.getEncoder().encodeToString(ciphertext));
+            return createSessionNode;
+        }
+    }
 
-        SecretKeySpec skeySpec = new SecretKeySpec(protocolKeyHMAC, "AES");
-        GCMParameterSpec param = new GCMParameterSpec(protocolKeyHMAC.length * 8 - AES_GCM_TAG_LENGTH, iv);
+    /* read password from file, re-read only when the file changed */
+    private static String getPW(String file) {
 
-        Cipher cipher;
+        long modified;
         try {
-            cipher = Cipher.getInstance("AES_256/GCM/NOPADDING");
-            cipher.init(Cipher.ENCRYPT_MODE, skeySpec, param);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
-                | InvalidAlgorithmParameterException e1) {
-            // The java installation does not support AES encryption in GCM mode
-            logger.error("AES encryption in GCM mode not supported");
-            return null;
-        }
-        try {
-            data = cipher.doFinal(token.getBytes("UTF-8"));
-        } catch (IllegalBlockSizeException | BadPaddingException | UnsupportedEncodingException e1) {
-            // No JSON answer received
-            logger.error("No JSON answer");
+            modified = Files.getLastModifiedTime(Path.of(file)).toMillis();
+        } catch (IOException e) {
+            logger.error("Cannot read password file " + file + ": " + e.getMessage());
             return null;
         }
-
-        byte[] ciphertext = new byte[data.length - AES_GCM_TAG_LENGTH / 8];
-        byte[] gcmTag = new byte[AES_GCM_TAG_LENGTH / 8];
-        System.arraycopy(data, 0, ciphertext, 0, data.length - AES_GCM_TAG_LENGTH / 8);
-        System.arraycopy(data, data.length - AES_GCM_TAG_LENGTH / 8, gcmTag, 0, AES_GCM_TAG_LENGTH / 8);
-
-        // prepare input for session API
-        JsonNode createSessionNode = mapper.createObjectNode();
-        ((ObjectNode) createSessionNode).put("transactionId", transactionId);
-        ((ObjectNode) createSessionNode).put("iv", Base64.getEncoder().encodeToString(iv));
-        ((ObjectNode) createSessionNode).put("tag", Base64.getEncoder().encodeToString(gcmTag));
-        ((ObjectNode) createSessionNode).put("payload", Base64.getEncoder().encodeToString(ciphertext));
-        
-        // finally create the session for further communication !
-		try {
-			responseStr = webClient.post()
-					.uri(AUTH_CREATE_SESSION)
-					.bodyValue(createSessionNode.toString())
-					.retrieve()
-					.onStatus(s -> !(s.is2xxSuccessful()), response -> {
-				        return Mono.error(new Exception("Error "+response.statusCode().value()+" in "+AUTH_CREATE_SESSION));
-				      })
-					.bodyToMono(String.class)
-					.block();
-		}
-		catch (Exception e) {
-			e.printStackTrace();
-			logger.error("Error in "+AUTH_CREATE_SESSION);
-			return null;
-		}
-
-        JsonNode createSessionResponseObject = null;
-        try {
-        	createSessionResponseObject = mapper.readTree(responseStr);
-        }
-        catch(Exception e) {
-        	logger.error("ERROR in SESSION JSON --- " + e.getMessage());
-        	return null;
+        String[] cached = cachedPassword;
+        if (cached != null && cached[0].equals(file) && cached[1].equals(Long.toString(modified))) {
+            return cached[2];
         }
-        
-         // Extract information from the response
-        String sessionId = createSessionResponseObject.get("sessionId").asText();
-        logger.info("Successfully generated a Session ID.");
-        
-        return sessionId;
-        
-    }
-
-    /* read password from file */
-    private static String getPW(String file) {
 
         String line = null;
 
         try {
             BufferedReader reader = new BufferedReader(new FileReader(file));
             line = reader.readLine();
-            // System.out.println(line);
             reader.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("Cannot read password file " + file + ": " + e.getMessage());
         }
+        if (line != null) cachedPassword = new String[] { file, Long.toString(modified), line };
         return line;
     }
 
+    /* PBKDF2 of the password, cached per salt and rounds */
+    /* (the inverter hands out the same salt for a user, so this runs once instead of on every login) */
+    static byte[] getSaltedPassword(String password, String salt, int rounds)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        String key = rounds + ":" + salt + ":"
+                + Base64.getEncoder().encodeToString(getSha256Hash(password.getBytes(StandardCharsets.UTF_8)));
+        byte[] salted = saltedPasswords.get(key);
+        if (salted == null) {
+            salted = getPBKDF2Hash(password, Base64.getDecoder().decode(salt), rounds);
+            if (saltedPasswords.size() >= MAX_SALTED_PASSWORDS) saltedPasswords.clear();
+            saltedPasswords.put(key, salted);
+        }
+        return salted;
+    }
+
     /**
      * Create the nonce (numbers used once) for the client for communication
      *
@@ -0,0 +1,174 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import jakarta.annotation.PreDestroy;
+
+/*
+ * All inverters of the site.
+ *
+ * The primary inverter is configured with app.inverter.* and keeps its data in
+ * app.datadir, as with a single inverter. Every name in app.devices adds one
+ * more, configured with app.device.<name>.apiurl and optionally
+ * app.device.<name>.userpasswordfile, with its data in app.datadir/<name>.
+ * Each inverter has its own session, poll schedule, data file and rollups;
+ * everything else is shared.
+ *
+ * The data pumps of all inverters run side by side on the shared Reactor
+ * schedulers, no thread per inverter; each data file writer takes a thread of
+ * the task executor. Site totals add up the latest readings of all inverters.
+ */
+@Component
+public class InverterRegistry {
+
+	// sum of all inverters in URLs, not usable as a name
+	public static final String SITE = "site";
+	private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	// injected
+	private final Inverter primary;
+	private final SampleSchema schema;
+	private final long maxAgeSeconds;
+
+	private final Map<String, Inverter> inverters = new LinkedHashMap<String, Inverter>();
+	private final Map<String, HistoryStore> historyStores = new LinkedHashMap<String, HistoryStore>();
+	// what the registry created and has to stop
+	private final List<Inverter> added = new ArrayList<Inverter>();
+	private final List<DataPointWriter> addedWriters = new ArrayList<DataPointWriter>();
+
+	public InverterRegistry(Inverter primary, InverterSession primarySession, DataPointWriter primaryWriter,
+					HistoryStore primaryHistory, @Qualifier("inverterWebClient") WebClient primaryWebClient,
+					ObjectProvider<PollScheduler> pollSchedulers, Environment env,
+					@Value("${app.datadir}") String dataDir,
+					@Value("${app.devices:}") String devices,
+					@Value("${app.site.maxage:60}") long maxAgeSeconds) {
+		this.primary = primary;
+		this.schema = primary.getSchema();
+		this.maxAgeSeconds = maxAgeSeconds;
+		inverters.put(primary.getName(), primary);
+		historyStores.put(primary.getName(), primaryHistory);
+
+		for (String name : devices.split(",")) {
+			name = name.trim();
+			if (name.isEmpty()) continue;
+			if (!NAME.matcher(name).matches() || SITE.equals(name) || inverters.containsKey(name)) {
+				throw new IllegalArgumentException("Invalid or duplicate name in app.devices: " + name);
+			}
+			String apiUrl = env.getProperty("app.device." + name + ".apiurl");
+			if (apiUrl == null || apiUrl.isBlank()) {
+				throw new IllegalArgumentException("Missing property app.device." + name + ".apiurl");
+			}
+			String pwFile = env.getProperty("app.device." + name + ".userpasswordfile",
+					env.getProperty("app.inverter.userpasswordfile"));
+
+			// same headers, connection pool and timeouts, other base URL and a circuit breaker of its own
+			final String device = name;
+			WebClient wc = primaryWebClient.mutate().baseUrl(apiUrl)
+					.filters(filters -> filters.replaceAll(f -> f instanceof CircuitBreaker b ? b.forTarget(device) : f))
+					.build();
+			Path dir = Path.of(dataDir, name);
+			HistoryStore history = primaryHistory.forDevice(dir);
+			DataPointWriter writer = primaryWriter.forDevice(name, dir, history);
+			Inverter inverter = primary.forDevice(name, wc, primarySession.forDevice(wc, pwFile), writer,
+					pollSchedulers.getObject());
+
+			writer.start();
+			addedWriters.add(writer);
+			added.add(inverter);
+			inverters.put(name, inverter);
+			historyStores.put(name, history);
+			logger.info("Inverter " + name + " at " + apiUrl + ", data in " + dir);
+		}
+	}
+
+	// start polling all inverters
+	@EventListener(ApplicationReadyEvent.class)
+	public void runDataPumps(ApplicationReadyEvent ev) {
+		for (Inverter inverter : inverters.values()) inverter.runDataPump();
+	}
+
+	public Inverter getPrimary() {
+		return primary;
+	}
+
+	// null if there is no such inverter
+	public Inverter get(String name) {
+		return inverters.get(name);
+	}
+
+	public HistoryStore getHistory(String name) {
+		return historyStores.get(name);
+	}
+
+	public Collection<Inverter> getAll() {
+		return inverters.values();
+	}
+
+	// latest readings of the site: latest data points of all inverters added up,
+	// leaving out inverters without a data point in the last app.site.maxage seconds
+	public DataPoint getSiteLatest() {
+		long oldest = primary.getEpochSecond() - maxAgeSeconds;
+		List<DataPoint> latest = new ArrayList<DataPoint>();
+		for (Inverter inverter : inverters.values()) {
+			DataPoint dp = inverter.getLatestData();
+			if (dp != null && dp.getTimeStamp() >= oldest) latest.add(dp);
+		}
+		return sum(schema, latest);
+	}
+
+	// averages of the last seconds of all inverters added up
+	public DataPoint getSiteAverage(int seconds) {
+		List<DataPoint> averages = new ArrayList<DataPoint>();
+		for (Inverter inverter : inverters.values()) {
+			WindowStats stats = new WindowStats(schema);
+			if (inverter.getLatestStats(seconds, stats)) averages.add(stats.getAverage());
+		}
+		return sum(schema, averages);
+	}
+
+	// power adds up, the battery level is the mean; time stamp of the newest; null if empty
+	static DataPoint sum(SampleSchema schema, List<DataPoint> dps) {
+		if (dps.isEmpty()) return null;
+		int level = schema.indexOf(SampleSchema.LEVEL_BAT);
+		long[] sums = new long[schema.size()];
+		long timeStamp = 0;
+		for (DataPoint dp : dps) {
+			for (int m = 0; m < sums.length; m++) sums[m] += dp.get(m);
+			timeStamp = Math.max(timeStamp, dp.getTimeStamp());
+		}
+		int[] values = new int[sums.length];
+		for (int m = 0; m < values.length; m++) {
+			values[m] = (int) (m == level ? sums[m] / dps.size() : sums[m]);
+		}
+		return new DataPoint(schema, timeStamp, values);
+	}
+
+	// clean shut down of the inverters added here (the primary one is a bean of its own)
+	@PreDestroy
+	void stop() {
+		for (Inverter inverter : added) inverter.stopThread();
+		for (DataPointWriter writer : addedWriters) writer.stopThread();
+		for (Inverter inverter : added) historyStores.get(inverter.getName()).close();
+	}
+
+}
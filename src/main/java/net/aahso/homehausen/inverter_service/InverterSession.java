@@ -0,0 +1,206 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import reactor.core.publisher.Mono;
+
+/*
+ * Session with the inverter API, safe for any number of concurrent callers.
+ *
+ *   NONE / FAILED --get()--> AUTHENTICATING --ok--> VALID --too old--> RENEWING --ok--> VALID
+ *                                           --error--> FAILED           --error--> VALID (old session)
+ *   VALID / RENEWING --401 with the current session--> AUTHENTICATING
+ *
+ * Exactly one handshake runs at a time (single flight): callers without a
+ * session wait for the running one, callers with a session keep using it while
+ * it is renewed. Every successful request confirms the session for free; a 401
+ * invalidates it, unless it was for a session that has been replaced already.
+ */
+@Component
+public class InverterSession {
+
+	public enum State { NONE, AUTHENTICATING, VALID, RENEWING, FAILED }
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	// injected
+	private final Supplier<Mono<String>> login;
+	private final Duration timeout;
+	private final long refreshAfterMillis;
+
+	// guarded by this
+	private State state = State.NONE;
+	private String sessionID;
+	// authentication in progress, shared by all callers
+	private Mono<String> pending;
+
+	// monotonic milliseconds
+	private volatile long createdAt;
+	private volatile long confirmedAt;
+
+	// counters
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong logins = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private volatile long lastLoginMillis = 0;
+
+	@Autowired
+	public InverterSession(@Qualifier("inverterWebClient") WebClient wc, String pwFile,
+					@Value("${app.inverter.authtimeout:30000}") long timeoutMillis,
+					@Value("${app.inverter.sessionrefresh:900000}") long refreshAfterMillis) {
+		this(() -> InverterAuthenticator.authenticateAsync(wc, pwFile), timeoutMillis, refreshAfterMillis);
+	}
+
+	InverterSession(Supplier<Mono<String>> login, long timeoutMillis, long refreshAfterMillis) {
+		this.login = login;
+		this.timeout = Duration.ofMillis(timeoutMillis);
+		this.refreshAfterMillis = refreshAfterMillis;
+	}
+
+	// session with the same settings for another inverter
+	InverterSession forDevice(WebClient wc, String pwFile) {
+		return new InverterSession(wc, pwFile, timeout.toMillis(), refreshAfterMillis);
+	}
+
+	// current session ID; waits for an authentication only if there is no session at all
+	public Mono<String> get() {
+		Mono<String> background = null;
+		Mono<String> result;
+		synchronized (this) {
+			switch (state) {
+			case VALID:
+				if (refreshAfterMillis > 0 && now() - createdAt >= refreshAfterMillis) {
+					background = start(State.RENEWING);
+				}
+				result = Mono.just(sessionID);
+				break;
+			case RENEWING:
+				result = Mono.just(sessionID);
+				break;
+			case AUTHENTICATING:
+				result = pending;
+				break;
+			default:
+				result = start(State.AUTHENTICATING);
+			}
+		}
+		if (background != null) background.subscribe(id -> { }, e -> { });
+		return result;
+	}
+
+	// request with this session succeeded
+	public void confirm(String id) {
+		synchronized (this) {
+			if (!id.equals(sessionID)) return;
+		}
+		confirmedAt = now();
+	}
+
+	// request with this session was rejected (401); authenticate again unless that already happened
+	public void invalidate(String id) {
+		Mono<String> background = null;
+		synchronized (this) {
+			if (!id.equals(sessionID)) return;
+			rejected.incrementAndGet();
+			logger.info("Session rejected by inverter after " + (now() - createdAt) / 1000 + " s, authenticating again");
+			sessionID = null;
+			if (state == State.RENEWING) {
+				// the renewal already running replaces it
+				state = State.AUTHENTICATING;
+			} else {
+				background = start(State.AUTHENTICATING);
+			}
+		}
+		if (background != null) background.subscribe(id2 -> { }, e -> { });
+	}
+
+	// start the one handshake (caller holds the lock)
+	private Mono<String> start(State next) {
+		state = next;
+		attempts.incrementAndGet();
+		long started = now();
+		pending = Mono.defer(login)
+				.timeout(timeout)
+				.doOnNext(id -> succeeded(id, started))
+				.doOnError(this::failed)
+				.cache();
+		return pending;
+	}
+
+	private synchronized void succeeded(String id, long started) {
+		sessionID = id;
+		state = State.VALID;
+		pending = null;
+		createdAt = now();
+		confirmedAt = createdAt;
+		lastLoginMillis = createdAt - started;
+		logins.incrementAndGet();
+		logger.info("Authenticated with inverter in " + lastLoginMillis + " ms");
+	}
+
+	private synchronized void failed(Throwable e) {
+		failures.incrementAndGet();
+		pending = null;
+		// a failed renewal keeps the old session, it may still work
+		state = state == State.RENEWING ? State.VALID : State.FAILED;
+		if (state == State.VALID) createdAt = now();
+		logger.error("Authentication with inverter failed: " + e.getMessage());
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized boolean isValid() {
+		return sessionID != null;
+	}
+
+	// age of the current session in ms, -1 if there is none
+	public long getAgeMillis() {
+		return isValid() ? now() - createdAt : -1;
+	}
+
+	// time since a request last succeeded with the current session in ms, -1 if there is none
+	public long getUnconfirmedMillis() {
+		return isValid() ? now() - confirmedAt : -1;
+	}
+
+	// handshakes started
+	public long getAttempts() {
+		return attempts.get();
+	}
+
+	public long getLogins() {
+		return logins.get();
+	}
+
+	public long getFailedLogins() {
+		return failures.get();
+	}
+
+	// sessions rejected by the inverter (401)
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getLastLoginMillis() {
+		return lastLoginMillis;
+	}
+
+	static long now() {
+		return System.nanoTime() / 1_000_000;
+	}
+
+}
@@ -0,0 +1,360 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import reactor.core.publisher.Mono;
+
+/*
+ * Inverter simulator for running the whole service without an inverter
+ * (profile "simulator", see application-simulator.properties).
+ *
+ * Serves the inverter API at /simulator/api/v1: the SCRAM login (/auth/start,
+ * /auth/finish, /auth/create_session) with the same crypto as the inverter, and
+ * /processdata with readings of a SimulatedPlant at the time of the clock bean,
+ * which may run faster than real time. /simulator/aahso/send_data.php takes the
+ * uploads instead of aahso.net.
+ *
+ * Every response is delayed by the configured latency; processdata requests
+ * fail at the configured rates with 401 (the session is dropped), 503 or no
+ * answer at all (timeout). Nothing blocks a request thread while waiting.
+ */
+@RestController
+@Profile("simulator")
+@RequestMapping(path="/simulator")
+public class InverterSimulator {
+
+	private static final String USER_TYPE = "user";
+	private static final int AES_GCM_TAG_LENGTH = 128; // bit count
+	private static final int MAX_TRANSACTIONS = 100;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final SecureRandom secureRandom = new SecureRandom();
+
+	// injected
+	private final Clock clock;
+	private final SimulatedPlant plant;
+	private final String salt;
+	private final int rounds;
+	private final long latencyMillis;
+	private final long jitterMillis;
+	private final double unauthorizedRate;
+	private final double serverErrorRate;
+	private final double timeoutRate;
+	private final Duration hang;
+	private final long sessionTimeoutMillis;
+
+	// derived from the password once, like the inverter stores it
+	private final byte[] storedKey;
+	private final byte[] serverKey;
+
+	// logins in progress by transactionId, sessions by ID with their expiry (monotonic ms)
+	private final Map<String, Transaction> transactions = new ConcurrentHashMap<String, Transaction>();
+	private final Map<String, Long> sessions = new ConcurrentHashMap<String, Long>();
+
+	// counters
+	private final AtomicLong logins = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong injectedErrors = new AtomicLong();
+	private final AtomicLong uploads = new AtomicLong();
+
+	public InverterSimulator(Clock clock, String passwordFilename,
+					@Value("${app.simulator.password:simulator}") String password,
+					@Value("${app.simulator.rounds:29000}") int rounds,
+					@Value("${app.simulator.latency:50}") long latencyMillis,
+					@Value("${app.simulator.jitter:20}") long jitterMillis,
+					@Value("${app.simulator.unauthorized:0}") double unauthorizedRate,
+					@Value("${app.simulator.servererrors:0}") double serverErrorRate,
+					@Value("${app.simulator.timeouts:0}") double timeoutRate,
+					@Value("${app.simulator.hang:60000}") long hangMillis,
+					@Value("${app.simulator.sessiontimeout:600000}") long sessionTimeoutMillis,
+					@Value("${app.simulator.peakpv:9000}") double peakPV,
+					@Value("${app.simulator.batterywh:10000}") double batteryWh,
+					@Value("${app.simulator.batterymaxw:3000}") double batteryMaxW,
+					@Value("${app.simulator.baseload:250}") double baseLoad,
+					@Value("${app.simulator.seed:0}") long seed) throws Exception {
+		this.clock = clock;
+		this.plant = new SimulatedPlant(peakPV, batteryWh, batteryMaxW, baseLoad,
+				seed == 0 ? new Random() : new Random(seed));
+		this.rounds = rounds;
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.unauthorizedRate = unauthorizedRate;
+		this.serverErrorRate = serverErrorRate;
+		this.timeoutRate = timeoutRate;
+		this.hang = Duration.ofMillis(hangMillis);
+		this.sessionTimeoutMillis = sessionTimeoutMillis;
+
+		byte[] saltBytes = new byte[16];
+		secureRandom.nextBytes(saltBytes);
+		this.salt = Base64.getEncoder().encodeToString(saltBytes);
+		byte[] saltedPassword = InverterAuthenticator.getPBKDF2Hash(password, saltBytes, rounds);
+		this.storedKey = InverterAuthenticator.getSha256Hash(InverterAuthenticator.getHMACSha256(saltedPassword, "Client Key"));
+		this.serverKey = InverterAuthenticator.getHMACSha256(saltedPassword, "Server Key");
+
+		// the service logs in with the password file, give it the simulator password
+		if (passwordFilename != null && !passwordFilename.isBlank() && !Files.exists(Path.of(passwordFilename))) {
+			Path file = Path.of(passwordFilename).toAbsolutePath();
+			Files.createDirectories(file.getParent());
+			Files.writeString(file, password + "\n");
+			logger.info("Simulator password written to " + file);
+		}
+		logger.warn("Inverter simulator active at /simulator/api/v1");
+	}
+
+	/* state of one login */
+	private static class Transaction {
+		final String authMessage;
+		final long startedAt = System.nanoTime();
+		byte[] clientKey;
+		String token;
+
+		Transaction(String authMessage) {
+			this.authMessage = authMessage;
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	// login, step 1: salt, rounds and nonce for the client
+	////////////////////////////////////////////////////////////////////////////
+	@PostMapping(path="/api/v1/auth/start")
+	public Mono<ResponseEntity<JsonNode>> authStart(@RequestBody JsonNode request) {
+		if (!USER_TYPE.equals(request.path("username").asText())) return respond(HttpStatus.BAD_REQUEST, null);
+
+		String clientNonce = request.path("nonce").asText();
+		String serverNonce = clientNonce + randomBase64(12);
+		String transactionId = randomHex(16);
+		String authMessage = String.format("n=%s,r=%s,r=%s,s=%s,i=%d,c=biws,r=%s", USER_TYPE, clientNonce, serverNonce,
+				salt, rounds, serverNonce);
+		evictTransactions();
+		transactions.put(transactionId, new Transaction(authMessage));
+
+		ObjectNode response = mapper.createObjectNode();
+		response.put("nonce", serverNonce);
+		response.put("transactionId", transactionId);
+		response.put("salt", salt);
+		response.put("rounds", rounds);
+		return respond(HttpStatus.OK, response);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	// login, step 2: check the client proof, sign and hand out the token
+	////////////////////////////////////////////////////////////////////////////
+	@PostMapping(path="/api/v1/auth/finish")
+	public Mono<ResponseEntity<JsonNode>> authFinish(@RequestBody JsonNode request) throws Exception {
+		Transaction tx = transactions.get(request.path("transactionId").asText());
+		if (tx == null) return respond(HttpStatus.BAD_REQUEST, null);
+
+		// proof = clientSignature XOR clientKey, and the client key must hash to the stored key
+		byte[] proof = Base64.getDecoder().decode(request.path("proof").asText());
+		byte[] clientSignature = InverterAuthenticator.getHMACSha256(storedKey, tx.authMessage);
+		if (proof.length != clientSignature.length) return unauthorized(tx);
+		byte[] clientKey = new byte[proof.length];
+		for (int i = 0; i < proof.length; i++) clientKey[i] = (byte) (proof[i] ^ clientSignature[i]);
+		if (!MessageDigest.isEqual(storedKey, InverterAuthenticator.getSha256Hash(clientKey))) return unauthorized(tx);
+
+		tx.clientKey = clientKey;
+		tx.token = randomHex(32);
+		ObjectNode response = mapper.createObjectNode();
+		response.put("signature", Base64.getEncoder().encodeToString(
+				InverterAuthenticator.getHMACSha256(serverKey, tx.authMessage)));
+		response.put("token", tx.token);
+		return respond(HttpStatus.OK, response);
+	}
+
+	private Mono<ResponseEntity<JsonNode>> unauthorized(Transaction tx) {
+		transactions.values().remove(tx);
+		logger.warn("Simulator login with wrong password");
+		return respond(HttpStatus.UNAUTHORIZED, null);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	// login, step 3: decrypt the token with the protocol key, open a session
+	////////////////////////////////////////////////////////////////////////////
+	@PostMapping(path="/api/v1/auth/create_session")
+	public Mono<ResponseEntity<JsonNode>> createSession(@RequestBody JsonNode request) throws Exception {
+		Transaction tx = transactions.remove(request.path("transactionId").asText());
+		if (tx == null || tx.token == null) return respond(HttpStatus.BAD_REQUEST, null);
+
+		Mac mac = Mac.getInstance("HMACSHA256");
+		mac.init(new SecretKeySpec(storedKey, "HMACSHA256"));
+		mac.update("Session Key".getBytes());
+		mac.update(tx.authMessage.getBytes());
+		mac.update(tx.clientKey);
+		byte[] protocolKey = mac.doFinal();
+
+		byte[] iv = Base64.getDecoder().decode(request.path("iv").asText());
+		byte[] tag = Base64.getDecoder().decode(request.path("tag").asText());
+		byte[] payload = Base64.getDecoder().decode(request.path("payload").asText());
+		byte[] data = new byte[payload.length + tag.length];
+		System.arraycopy(payload, 0, data, 0, payload.length);
+		System.arraycopy(tag, 0, data, payload.length, tag.length);
+
+		String token;
+		try {
+			Cipher cipher = Cipher.getInstance("AES_256/GCM/NOPADDING");
+			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(protocolKey, "AES"),
+					new GCMParameterSpec(protocolKey.length * 8 - AES_GCM_TAG_LENGTH, iv));
+			token = new String(cipher.doFinal(data), StandardCharsets.UTF_8);
+		} catch (Exception e) {
+			return respond(HttpStatus.UNAUTHORIZED, null);
+		}
+		if (!token.equals(tx.token)) return respond(HttpStatus.UNAUTHORIZED, null);
+
+		String sessionId = randomHex(20);
+		sessions.put(sessionId, now() + sessionTimeoutMillis);
+		logins.incrementAndGet();
+		ObjectNode response = mapper.createObjectNode();
+		response.put("sessionId", sessionId);
+		return respond(HttpStatus.OK, response);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	// readings of the requested modules and ids
+	////////////////////////////////////////////////////////////////////////////
+	@PostMapping(path="/api/v1/processdata")
+	public Mono<ResponseEntity<JsonNode>> processData(
+			@RequestHeader(name=HttpHeaders.AUTHORIZATION, defaultValue="") String authorization,
+			@RequestBody JsonNode request) {
+		requests.incrementAndGet();
+
+		String sessionId = authorization.startsWith("Session ") ? authorization.substring(8) : "";
+		Long expires = sessions.get(sessionId);
+		long now = now();
+		if (expires == null || expires < now) {
+			sessions.remove(sessionId);
+			return respond(HttpStatus.UNAUTHORIZED, null);
+		}
+
+		// injected errors
+		double dice = ThreadLocalRandom.current().nextDouble();
+		if (dice < unauthorizedRate) {
+			injectedErrors.incrementAndGet();
+			sessions.remove(sessionId);
+			return respond(HttpStatus.UNAUTHORIZED, null);
+		}
+		if (dice < unauthorizedRate + serverErrorRate) {
+			injectedErrors.incrementAndGet();
+			return respond(HttpStatus.SERVICE_UNAVAILABLE, null);
+		}
+		if (dice < unauthorizedRate + serverErrorRate + timeoutRate) {
+			injectedErrors.incrementAndGet();
+			return Mono.delay(hang).then(Mono.empty());
+		}
+		sessions.put(sessionId, now + sessionTimeoutMillis);
+
+		Map<String, Double> values = plant.read(ZonedDateTime.now(clock));
+		ArrayNode response = mapper.createArrayNode();
+		for (JsonNode module : request) {
+			String moduleId = module.path("moduleid").asText();
+			ObjectNode moduleNode = response.addObject();
+			moduleNode.put("moduleid", moduleId);
+			ArrayNode processData = moduleNode.putArray("processdata");
+			for (JsonNode id : module.path("processdataids")) {
+				String key = moduleId + "/" + id.asText();
+				Double value = values.get(key);
+				if (value == null) continue;
+				ObjectNode entry = processData.addObject();
+				entry.put("id", id.asText());
+				entry.put("unit", SimulatedPlant.unit(key));
+				entry.put("value", value);
+			}
+		}
+		return respond(HttpStatus.OK, response);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	// aahso.net stand-in: accept uploads
+	////////////////////////////////////////////////////////////////////////////
+	@PostMapping(path="/aahso/send_data.php")
+	public Mono<ResponseEntity<JsonNode>> sendData(@RequestBody JsonNode request) {
+		uploads.addAndGet(request.isArray() ? request.size() : 1);
+		return respond(HttpStatus.OK, null);
+	}
+
+	// answer after the simulated latency
+	private Mono<ResponseEntity<JsonNode>> respond(HttpStatus status, JsonNode body) {
+		long delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+		ResponseEntity<JsonNode> response = ResponseEntity.status(status).body(body);
+		return delay > 0 ? Mono.delay(Duration.ofMillis(delay)).thenReturn(response) : Mono.just(response);
+	}
+
+	// logins that were never finished
+	private void evictTransactions() {
+		if (transactions.size() < MAX_TRANSACTIONS) return;
+		long oldest = System.nanoTime() - Duration.ofMinutes(1).toNanos();
+		transactions.values().removeIf(tx -> tx.startedAt < oldest);
+		if (transactions.size() >= MAX_TRANSACTIONS) transactions.clear();
+	}
+
+	private String randomBase64(int bytes) {
+		byte[] b = new byte[bytes];
+		secureRandom.nextBytes(b);
+		return Base64.getEncoder().encodeToString(b);
+	}
+
+	private String randomHex(int bytes) {
+		byte[] b = new byte[bytes];
+		secureRandom.nextBytes(b);
+		return HexFormat.of().formatHex(b);
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1_000_000;
+	}
+
+	public long getLogins() {
+		return logins.get();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getInjectedErrors() {
+		return injectedErrors.get();
+	}
+
+	public long getUploads() {
+		return uploads.get();
+	}
+
+}
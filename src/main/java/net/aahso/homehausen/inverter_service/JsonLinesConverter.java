@@ -0,0 +1,74 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * One-shot converter from the old JSON-lines save file (one DataPoint per line)
+ * to the binary data file format.
+ *
+ * Usage: JsonLinesConverter <json-lines file> <data file>
+ */
+public class JsonLinesConverter {
+
+	private static final Logger logger = LoggerFactory.getLogger(JsonLinesConverter.class);
+
+	// append all data points of the JSON file to the data file, returns number of data points;
+	// metrics of the schema missing in the JSON file are 0
+	public static long convert(Path jsonFile, Path dataFile, SampleSchema schema) throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		long converted = 0;
+		long skipped = 0;
+
+		try (BufferedReader reader = Files.newBufferedReader(jsonFile, StandardCharsets.UTF_8);
+				DataFileWriter writer = DataFileWriter.open(dataFile, schema)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isBlank()) continue;
+				JsonNode node;
+				try {
+					node = mapper.readTree(line);
+				} catch (JsonProcessingException e) {
+					// torn line, e.g. from a crash while writing
+					skipped++;
+					continue;
+				}
+				// foreign line: not a data point
+				if (!node.isObject() || !node.path("timeStamp").isIntegralNumber()) {
+					skipped++;
+					continue;
+				}
+				int[] values = new int[schema.size()];
+				for (int m = 0; m < values.length; m++) {
+					values[m] = node.path(schema.name(m)).asInt();
+				}
+				writer.append(new DataPoint(schema, node.get("timeStamp").asLong(), values));
+				converted++;
+				if (converted % 10000 == 0) writer.flush();
+			}
+		}
+
+		logger.info("Converted " + converted + " data points from " + jsonFile + " to " + dataFile
+				+ (skipped > 0 ? " (" + skipped + " lines skipped)" : ""));
+		return converted;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: JsonLinesConverter <json-lines file> <data file>");
+			System.exit(1);
+		}
+		convert(Path.of(args[0]), Path.of(args[1]), SampleSchema.DEFAULT);
+	}
+
+}
@@ -0,0 +1,112 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/*
+ * Pre-rendered JSON of the latest data point and the latest windows, per inverter.
+ *
+ * The data changes once per tick, while any number of clients poll /latest and
+ * /latestAverage. The JSON bytes are rendered once per tick and window and
+ * then handed to every client. The version makes the ETag and the Last-Modified
+ * date, so a client that already has the current JSON gets a 304 without a body:
+ * the time stamp of the latest data point for /latest, the end of the window (the
+ * current second) for the windows, which move on without new data points too.
+ */
+class LatestJsonCache {
+
+	// one rendered response
+	static final class Rendered {
+
+		final long timeStamp;
+		final String etag;
+		final byte[] json;
+
+		Rendered(long timeStamp, String etag, byte[] json) {
+			this.timeStamp = timeStamp;
+			this.etag = etag;
+			this.json = json;
+		}
+
+		long lastModifiedMillis() {
+			return timeStamp * 1000;
+		}
+	}
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	private final ObjectMapper objectMapper;
+	// inverter/kind -> rendered at the last tick it was asked for
+	private final Map<String, Rendered> cache = new ConcurrentHashMap<String, Rendered>();
+
+	// counters
+	private final AtomicLong renders = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+
+	LatestJsonCache(ObjectMapper objectMapper) {
+		this.objectMapper = objectMapper;
+	}
+
+	// latest data point; null if there is none
+	Rendered latest(Inverter inverter) {
+		DataPoint latest = inverter.getLatestData();
+		return get(inverter.getName() + "/latest", latest, latest == null ? 0 : latest.getTimeStamp(), dp -> dp);
+	}
+
+	// average of the last seconds; null if there are no data points
+	Rendered average(Inverter inverter, SampleSchema schema, int seconds) {
+		return get(inverter.getName() + "/average" + seconds, inverter.getLatestData(), inverter.getEpochSecond(), latest -> {
+			WindowStats stats = new WindowStats(schema);
+			return inverter.getLatestStats(seconds, stats) ? stats.getAverage() : null;
+		});
+	}
+
+	// average, min and max of the last seconds; null if there are no data points
+	Rendered stats(Inverter inverter, SampleSchema schema, int seconds) {
+		return get(inverter.getName() + "/stats" + seconds, inverter.getLatestData(), inverter.getEpochSecond(), latest -> {
+			WindowStats stats = new WindowStats(schema);
+			return inverter.getLatestStats(seconds, stats) ? stats : null;
+		});
+	}
+
+	// value rendered for the version (epoch seconds), or from the cache if it is still current
+	Rendered get(String key, DataPoint latest, long tick, Function<DataPoint, Object> value) {
+		if (latest == null) return null;
+
+		Rendered r = cache.get(key);
+		if (r != null && r.timeStamp == tick) {
+			hits.incrementAndGet();
+			return r;
+		}
+
+		// concurrent requests on a new tick may render twice, the results are the same
+		Object v = value.apply(latest);
+		if (v == null) return null;
+		try {
+			r = new Rendered(tick, "\"" + tick + "-" + key.replace('/', '-') + "\"", objectMapper.writeValueAsBytes(v));
+		} catch (JsonProcessingException e) {
+			logger.error("Error serializing " + key + ": " + e.getMessage());
+			return null;
+		}
+		renders.incrementAndGet();
+		cache.put(key, r);
+		return r;
+	}
+
+	long getRenders() {
+		return renders.get();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+}
@@ -0,0 +1,221 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.annotation.PreDestroy;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+/*
+ * Pushes every new data point to all clients of /data/stream (server-sent events).
+ *
+ * Each data point is serialized once into a complete SSE frame, and the same
+ * bytes are handed to every client. Every client has a small bounded queue
+ * drained by a shared pool of sender threads; if a client cannot keep up and
+ * its queue is full, the queue is conflated to the latest frame, so a slow
+ * client gets fewer updates but never holds up the others or the data pump.
+ * With virtual threads every draining client gets a thread of its own instead.
+ */
+@Component
+public class LiveStream {
+
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+	private static final MediaType FRAME_TYPE = MediaType.APPLICATION_OCTET_STREAM;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	// injected
+	private final ObjectMapper objectMapper;
+	private final int queueSize;
+	private final int maxClients;
+
+	private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+	// slots taken, reserved before a client is added so concurrent connects stay within maxClients
+	private final AtomicInteger slots = new AtomicInteger();
+	private final Executor senders;
+	private final Disposable source;
+	private final Disposable heartbeat;
+	private volatile byte[] latestFrame;
+
+	// counters
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong conflated = new AtomicLong();
+
+	@Autowired
+	public LiveStream(Inverter inverter, ObjectMapper objectMapper,
+					@Value("${app.stream.queuesize:8}") int queueSize,
+					@Value("${app.stream.maxclients:500}") int maxClients,
+					@Value("${app.stream.senders:4}") int senders,
+					@Value("${app.stream.heartbeat:15000}") long heartbeatMillis,
+					@Value("${" + VirtualThreads.PROPERTY + ":false}") boolean virtual) {
+		this(inverter.samples(), objectMapper, queueSize, maxClients, senders(senders, virtual),
+				Duration.ofMillis(heartbeatMillis));
+	}
+
+	// a fixed pool, or with virtual threads a cheap thread per draining client
+	private static Executor senders(int senders, boolean virtual) {
+		if (VirtualThreads.use(virtual)) return VirtualThreads.executor("live-stream-", 1000);
+		AtomicLong n = new AtomicLong();
+		return Executors.newFixedThreadPool(senders, r -> {
+			Thread th = new Thread(r);
+			th.setDaemon(true);
+			th.setName("live-stream-" + n.incrementAndGet());
+			return th;
+		});
+	}
+
+	LiveStream(Flux<DataPoint> samples, ObjectMapper objectMapper, int queueSize, int maxClients,
+			Executor senders, Duration heartbeat) {
+		this.objectMapper = objectMapper;
+		this.queueSize = Math.max(1, queueSize);
+		this.maxClients = maxClients;
+		this.senders = senders;
+		this.source = samples.subscribe(this::publish);
+		this.heartbeat = Flux.interval(heartbeat, heartbeat).subscribe(t -> broadcast(HEARTBEAT));
+	}
+
+	// register a client, it gets the latest data point right away; false if there are too many
+	public boolean subscribe(ResponseBodyEmitter emitter) {
+		if (slots.incrementAndGet() > maxClients) {
+			slots.decrementAndGet();
+			return false;
+		}
+		Client client = new Client(emitter);
+		clients.add(client);
+		emitter.onCompletion(() -> remove(client));
+		emitter.onTimeout(() -> remove(client));
+		emitter.onError(e -> remove(client));
+		byte[] frame = latestFrame;
+		if (frame != null) client.offer(frame);
+		return true;
+	}
+
+	// serialize once, hand to all clients (data pump)
+	void publish(DataPoint dp) {
+		byte[] frame;
+		try {
+			frame = frame(dp);
+		} catch (JsonProcessingException e) {
+			logger.error("Error serializing data point: " + e.getMessage());
+			return;
+		}
+		latestFrame = frame;
+		published.incrementAndGet();
+		broadcast(frame);
+	}
+
+	// frees the slot once, however many callbacks report the client gone
+	private void remove(Client client) {
+		if (clients.remove(client)) slots.decrementAndGet();
+	}
+
+	private void broadcast(byte[] frame) {
+		for (Client client : clients) client.offer(frame);
+	}
+
+	private byte[] frame(DataPoint dp) throws JsonProcessingException {
+		byte[] json = objectMapper.writeValueAsBytes(dp);
+		byte[] head = ("id:" + dp.getTimeStamp() + "\nevent:datapoint\ndata:").getBytes(StandardCharsets.UTF_8);
+		byte[] frame = new byte[head.length + json.length + 2];
+		System.arraycopy(head, 0, frame, 0, head.length);
+		System.arraycopy(json, 0, frame, head.length, json.length);
+		frame[frame.length - 2] = '\n';
+		frame[frame.length - 1] = '\n';
+		return frame;
+	}
+
+	public int getClients() {
+		return clients.size();
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	public long getConflated() {
+		return conflated.get();
+	}
+
+	@PreDestroy
+	void close() {
+		source.dispose();
+		heartbeat.dispose();
+		for (Client client : clients) {
+			remove(client);
+			client.emitter.complete();
+		}
+		if (senders instanceof ExecutorService) ((ExecutorService) senders).shutdownNow();
+		else if (senders instanceof SimpleAsyncTaskExecutor) ((SimpleAsyncTaskExecutor) senders).close();
+	}
+
+	// one connected client: bounded frame queue, drained by at most one sender at a time
+	private class Client {
+
+		private final ResponseBodyEmitter emitter;
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(queueSize);
+		private final AtomicBoolean draining = new AtomicBoolean();
+
+		Client(ResponseBodyEmitter emitter) {
+			this.emitter = emitter;
+		}
+
+		void offer(byte[] frame) {
+			if (!queue.offer(frame)) {
+				// a full queue keeps the connection busy anyway, a heartbeat must not push out data
+				if (frame == HEARTBEAT) return;
+				// client is too slow: drop what it has not seen yet, keep only the latest
+				queue.clear();
+				queue.offer(frame);
+				conflated.incrementAndGet();
+			}
+			if (draining.compareAndSet(false, true)) senders.execute(this::drain);
+		}
+
+		private void drain() {
+			try {
+				while (true) {
+					byte[] frame = queue.poll();
+					if (frame == null) {
+						draining.set(false);
+						// a frame may have arrived after poll() but before draining was reset
+						if (queue.isEmpty() || !draining.compareAndSet(false, true)) return;
+						continue;
+					}
+					emitter.send(frame, FRAME_TYPE);
+				}
+			} catch (IOException | IllegalStateException e) {
+				// client went away
+				remove(this);
+				queue.clear();
+				emitter.completeWithError(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,167 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Durable queue of data points waiting for upload.
+ *
+ * Data points are appended to a data file (see DataFile), a second file holds
+ * the number of data points already acknowledged by the receiver. Both survive
+ * restarts, so nothing is lost while the receiver is down. When everything is
+ * acknowledged and the file has grown, it is started over.
+ *
+ * One thread appends, peeks and acknowledges; pending() may be called from any
+ * thread and never waits for the disk.
+ */
+public class Outbox implements Closeable {
+
+	public static final String FILE = "outbox.bin";
+	public static final String ACK_FILE = "outbox.ack";
+
+	// start over when everything up to this many data points is acknowledged
+	static final int COMPACT_RECORDS = 1000;
+
+	private final Path file;
+	private final SampleSchema schema;
+	private final FileChannel ackChannel;
+	private final ByteBuffer ackBuffer = ByteBuffer.allocate(Long.BYTES);
+	private DataFileWriter writer;
+	// kept open across batches, reopened when it does not reach far enough
+	private DataFileReader reader;
+
+	// data points in the file, and acknowledged ones of them
+	private long count;
+	private long acked;
+
+	private Outbox(Path file, SampleSchema schema, FileChannel ackChannel, DataFileWriter writer, long count, long acked) {
+		this.file = file;
+		this.schema = schema;
+		this.ackChannel = ackChannel;
+		this.writer = writer;
+		this.count = count;
+		this.acked = acked;
+	}
+
+	public static Outbox open(Path dir, SampleSchema schema) throws IOException {
+		Path file = dir.resolve(FILE);
+		DataFileWriter writer = DataFileWriter.open(file, schema);
+		FileChannel ackChannel = null;
+		try {
+			long count;
+			try (DataFileReader reader = DataFileReader.open(file, schema)) {
+				count = reader.count();
+			}
+			ackChannel = FileChannel.open(dir.resolve(ACK_FILE), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long acked = 0;
+			if (ackChannel.size() >= Long.BYTES) {
+				ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+				while (buffer.hasRemaining() && ackChannel.read(buffer, buffer.position()) >= 0);
+				acked = buffer.getLong(0);
+			}
+			// crash while starting over: the file is new, the ack file is not
+			if (acked < 0 || acked > count) acked = 0;
+			return new Outbox(file, schema, ackChannel, writer, count, acked);
+		} catch (IOException e) {
+			writer.close();
+			if (ackChannel != null) ackChannel.close();
+			throw e;
+		}
+	}
+
+	// append data points, visible to peek() right away
+	public void append(List<DataPoint> dps) throws IOException {
+		if (dps.isEmpty()) return;
+		for (DataPoint dp : dps) writer.append(dp);
+		writer.flush();
+		synchronized (this) {
+			count += dps.size();
+		}
+	}
+
+	// number of data points not yet acknowledged
+	public synchronized long pending() {
+		return count - acked;
+	}
+
+	// oldest max data points not yet acknowledged
+	public List<DataPoint> peek(int max) throws IOException {
+		long from;
+		long to;
+		synchronized (this) {
+			from = acked;
+			to = Math.min(count, acked + max);
+		}
+		List<DataPoint> result = new ArrayList<DataPoint>((int) (to - from));
+		if (from == to) return result;
+		// the reader maps the records present when it was opened
+		if (reader == null || reader.count() < to) {
+			closeReader();
+			reader = DataFileReader.open(file, schema);
+		}
+		for (long i = from; i < to; i++) result.add(reader.read((int) i));
+		return result;
+	}
+
+	// mark the oldest n pending data points as delivered
+	public void ack(int n) throws IOException {
+		long newCount;
+		long newAcked;
+		synchronized (this) {
+			if (n < 0 || n > count - acked) throw new IllegalArgumentException("cannot acknowledge " + n + " data points");
+			newCount = count;
+			newAcked = acked + n;
+		}
+		if (newAcked == newCount && newCount >= COMPACT_RECORDS) {
+			// everything delivered: start over with an empty file
+			closeReader();
+			writer.close();
+			Files.delete(file);
+			writer = DataFileWriter.open(file, schema);
+			newCount = 0;
+			newAcked = 0;
+		}
+		writeAck(newAcked);
+		synchronized (this) {
+			count = newCount;
+			acked = newAcked;
+		}
+	}
+
+	// force appended data points to disk
+	public void force() throws IOException {
+		writer.force();
+	}
+
+	private void writeAck(long acked) throws IOException {
+		ackBuffer.clear();
+		ackBuffer.putLong(acked).flip();
+		while (ackBuffer.hasRemaining()) ackChannel.write(ackBuffer, ackBuffer.position());
+		ackChannel.force(false);
+	}
+
+	private void closeReader() throws IOException {
+		if (reader == null) return;
+		reader.close();
+		reader = null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			closeReader();
+			writer.close();
+		} finally {
+			ackChannel.close();
+		}
+	}
+
+}
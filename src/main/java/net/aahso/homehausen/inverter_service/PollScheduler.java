@@ -0,0 +1,160 @@
+package net.aahso.homehausen.inverter_service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+/*
+ * Decides when the data pump polls the inverter next.
+ *
+ * Polls run on fixed-rate ticks: the next tick is the previous tick plus the
+ * interval, not the end of the previous poll plus the interval, so request
+ * latency does not make the period drift. If a poll overruns a whole interval,
+ * the missed ticks are skipped instead of being polled in a burst.
+ *
+ * The interval adapts to the readings:
+ *  - fast while power values change by more than the change threshold,
+ *    held for a number of polls after the last change,
+ *  - idle when there is no PV power and the readings have been stable for a while,
+ *  - doubled after every failed poll up to the maximum backoff.
+ *
+ * One instance per data pump (prototype scope), only used by its polls, one at a time.
+ */
+@Component
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+public class PollScheduler {
+
+	public enum Mode { NORMAL, FAST, IDLE, BACKOFF }
+
+	// WindowAggregator needs at most one data point per second
+	static final long MIN_INTERVAL_MILLIS = 1000;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	// injected
+	private final long intervalMillis;
+	private final long fastIntervalMillis;
+	private final long idleIntervalMillis;
+	private final long maxBackoffMillis;
+	private final int changeThreshold;
+	private final int fastHold;
+	private final int idleAfter;
+
+	private Mode mode = Mode.NORMAL;
+	private long currentIntervalMillis;
+	// scheduled time of the current and the next poll (monotonic milliseconds)
+	private long currentTick;
+	private long nextTick;
+	private boolean started = false;
+
+	private DataPoint previous;
+	private int fastRemaining = 0;
+	private int stableCount = 0;
+	private int failures = 0;
+	private long skippedTicks = 0;
+
+	public PollScheduler(@Value("${app.poll.interval:3000}") long intervalMillis,
+					@Value("${app.poll.fastinterval:1000}") long fastIntervalMillis,
+					@Value("${app.poll.idleinterval:30000}") long idleIntervalMillis,
+					@Value("${app.poll.maxbackoff:300000}") long maxBackoffMillis,
+					@Value("${app.poll.changethreshold:200}") int changeThreshold,
+					@Value("${app.poll.fasthold:10}") int fastHold,
+					@Value("${app.poll.idleafter:20}") int idleAfter) {
+		this.intervalMillis = Math.max(MIN_INTERVAL_MILLIS, intervalMillis);
+		this.fastIntervalMillis = Math.max(MIN_INTERVAL_MILLIS, Math.min(fastIntervalMillis, this.intervalMillis));
+		this.idleIntervalMillis = Math.max(idleIntervalMillis, this.intervalMillis);
+		this.maxBackoffMillis = Math.max(maxBackoffMillis, this.intervalMillis);
+		this.changeThreshold = changeThreshold;
+		this.fastHold = fastHold;
+		this.idleAfter = idleAfter;
+		this.currentIntervalMillis = this.intervalMillis;
+		if (fastIntervalMillis < MIN_INTERVAL_MILLIS) {
+			logger.warn("app.poll.fastinterval below " + MIN_INTERVAL_MILLIS + " ms, using " + MIN_INTERVAL_MILLIS);
+		}
+	}
+
+	// milliseconds to wait until the next poll is due; nowMillis from a monotonic clock
+	public long delayMillis(long nowMillis) {
+		if (!started) {
+			nextTick = nowMillis;
+			started = true;
+		}
+		if (nowMillis - nextTick >= currentIntervalMillis) {
+			// a poll overran whole intervals: skip the missed ticks and restart from now
+			skippedTicks += (nowMillis - nextTick) / currentIntervalMillis;
+			nextTick = nowMillis;
+		}
+		currentTick = nextTick;
+		return Math.max(0, nextTick - nowMillis);
+	}
+
+	// poll succeeded with this data point
+	public void success(DataPoint dp) {
+		failures = 0;
+		boolean changed = changed(previous, dp);
+		previous = dp;
+
+		if (changed) {
+			fastRemaining = fastHold;
+			stableCount = 0;
+		} else {
+			if (fastRemaining > 0) fastRemaining--;
+			stableCount = dp.getFromPV() == 0 ? stableCount + 1 : 0;
+		}
+
+		if (fastRemaining > 0) setMode(Mode.FAST, fastIntervalMillis);
+		else if (stableCount >= idleAfter) setMode(Mode.IDLE, idleIntervalMillis);
+		else setMode(Mode.NORMAL, intervalMillis);
+		nextTick = currentTick + currentIntervalMillis;
+	}
+
+	// poll failed (inverter unreachable, error response)
+	public void failure() {
+		failures++;
+		long backoff = intervalMillis << Math.min(failures, 20);
+		setMode(Mode.BACKOFF, Math.min(maxBackoffMillis, backoff));
+		nextTick = currentTick + currentIntervalMillis;
+	}
+
+	private boolean changed(DataPoint a, DataPoint b) {
+		if (a == null) return false;
+		return Math.abs(a.getFromPV() - b.getFromPV()) >= changeThreshold
+				|| Math.abs(a.getFromGrid() - b.getFromGrid()) >= changeThreshold
+				|| Math.abs(a.getFromBat() - b.getFromBat()) >= changeThreshold
+				|| Math.abs(a.getUseHome() - b.getUseHome()) >= changeThreshold;
+	}
+
+	private void setMode(Mode newMode, long newIntervalMillis) {
+		if (newMode != mode) {
+			logger.info("Polling " + newMode + " every " + newIntervalMillis + " ms"
+					+ (newMode == Mode.BACKOFF ? " (" + failures + " failures)" : ""));
+		}
+		mode = newMode;
+		currentIntervalMillis = newIntervalMillis;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public long getIntervalMillis() {
+		return currentIntervalMillis;
+	}
+
+	public int getFailures() {
+		return failures;
+	}
+
+	public long getSkippedTicks() {
+		return skippedTicks;
+	}
+
+	static long now() {
+		return System.nanoTime() / 1_000_000;
+	}
+
+}
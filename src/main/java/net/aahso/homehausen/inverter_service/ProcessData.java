@@ -0,0 +1,50 @@
+package net.aahso.homehausen.inverter_service;
+
+/*
+ * Reusable holder for the processdata values of one /processdata response,
+ * one int slot per polled (moduleid, processdata id).
+ */
+public class ProcessData {
+
+	final int[] values;
+	final boolean[] present;
+	int presentCount;
+
+	public ProcessData(int slots) {
+		this.values = new int[slots];
+		this.present = new boolean[slots];
+	}
+
+	void clear() {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = 0;
+			present[i] = false;
+		}
+		presentCount = 0;
+	}
+
+	void set(int slot, int value) {
+		if (!present[slot]) {
+			present[slot] = true;
+			presentCount++;
+		}
+		values[slot] = value;
+	}
+
+	public int get(int slot) {
+		return values[slot];
+	}
+
+	public boolean isPresent(int slot) {
+		return present[slot];
+	}
+
+	public boolean isComplete() {
+		return presentCount == values.length;
+	}
+
+	public int slots() {
+		return values.length;
+	}
+
+}
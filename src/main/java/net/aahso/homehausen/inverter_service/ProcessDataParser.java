@@ -0,0 +1,182 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/*
+ * Streaming extractor for /processdata responses:
+ *
+ *   [ { "moduleid": "devices:local:pv1", "processdata": [ { "id": "P", "unit": "W", "value": 123.4 }, ... ] }, ... ]
+ *
+ * Values are looked up by moduleid and processdata id, so the order of modules,
+ * processdata entries and fields does not matter. Module and processdata ids are
+ * compared on the parser's character buffer and numbers are converted from it
+ * directly, so apart from the parser itself nothing is allocated per response.
+ * Values are truncated to int, as JsonNode.asInt() did before.
+ *
+ * Not thread-safe: one parser per data pump.
+ */
+public class ProcessDataParser {
+
+	private final JsonFactory factory = new JsonFactory();
+
+	// distinct module ids and processdata ids of all sources
+	private final char[][] modules;
+	private final char[][] ids;
+	// slot of (module, id) or -1 if not polled
+	private final int[][] slotOf;
+	private final int slots;
+
+	// processdata entries of the module object being parsed (its moduleid may come last)
+	private int[] pendingId = new int[16];
+	private int[] pendingValue = new int[16];
+	private int pendingCount;
+
+	// sources: one { moduleid, processdata id } per slot
+	public ProcessDataParser(List<String[]> sources) {
+		List<String> moduleList = new ArrayList<String>();
+		List<String> idList = new ArrayList<String>();
+		for (String[] source : sources) {
+			if (!moduleList.contains(source[0])) moduleList.add(source[0]);
+			if (!idList.contains(source[1])) idList.add(source[1]);
+		}
+
+		this.modules = moduleList.stream().map(String::toCharArray).toArray(char[][]::new);
+		this.ids = idList.stream().map(String::toCharArray).toArray(char[][]::new);
+		this.slotOf = new int[modules.length][ids.length];
+		for (int[] row : slotOf) Arrays.fill(row, -1);
+		for (int slot = 0; slot < sources.size(); slot++) {
+			String[] source = sources.get(slot);
+			slotOf[moduleList.indexOf(source[0])][idList.indexOf(source[1])] = slot;
+		}
+		this.slots = sources.size();
+	}
+
+	public int slots() {
+		return slots;
+	}
+
+	// parse response into out (cleared first), returns number of values found
+	public int parse(byte[] json, ProcessData out) throws IOException {
+		out.clear();
+		try (JsonParser p = factory.createParser(json)) {
+			if (p.nextToken() != JsonToken.START_ARRAY)
+				throw new JsonParseException(p, "processdata response is not an array");
+
+			JsonToken token;
+			while ((token = p.nextToken()) != JsonToken.END_ARRAY) {
+				if (token == JsonToken.START_OBJECT) parseModule(p, out);
+				else if (token == null) throw new JsonParseException(p, "unexpected end of processdata response");
+				else p.skipChildren();
+			}
+		}
+		return out.presentCount;
+	}
+
+	private void parseModule(JsonParser p, ProcessData out) throws IOException {
+		int module = -1;
+		pendingCount = 0;
+
+		while (p.nextToken() == JsonToken.FIELD_NAME) {
+			String name = p.currentName();
+			JsonToken token = p.nextToken();
+			if ("moduleid".equals(name) && token == JsonToken.VALUE_STRING) {
+				module = match(modules, p);
+			} else if ("processdata".equals(name) && token == JsonToken.START_ARRAY) {
+				parseEntries(p);
+			} else {
+				p.skipChildren();
+			}
+		}
+
+		if (module < 0) return;
+		for (int i = 0; i < pendingCount; i++) {
+			int slot = slotOf[module][pendingId[i]];
+			if (slot >= 0) out.set(slot, pendingValue[i]);
+		}
+	}
+
+	private void parseEntries(JsonParser p) throws IOException {
+		JsonToken token;
+		while ((token = p.nextToken()) == JsonToken.START_OBJECT) {
+			int id = -1;
+			int value = 0;
+			boolean hasValue = false;
+
+			while (p.nextToken() == JsonToken.FIELD_NAME) {
+				String name = p.currentName();
+				JsonToken t = p.nextToken();
+				if ("id".equals(name) && t == JsonToken.VALUE_STRING) {
+					id = match(ids, p);
+				} else if ("value".equals(name) && t != null && t.isNumeric()) {
+					value = truncatedInt(p);
+					hasValue = true;
+				} else {
+					p.skipChildren();
+				}
+			}
+
+			if (id >= 0 && hasValue) {
+				if (pendingCount == pendingId.length) {
+					pendingId = Arrays.copyOf(pendingId, pendingCount * 2);
+					pendingValue = Arrays.copyOf(pendingValue, pendingCount * 2);
+				}
+				pendingId[pendingCount] = id;
+				pendingValue[pendingCount] = value;
+				pendingCount++;
+			}
+		}
+		if (token != JsonToken.END_ARRAY) throw new JsonParseException(p, "unexpected token in processdata: " + token);
+	}
+
+	// index of the current string value in candidates or -1
+	private static int match(char[][] candidates, JsonParser p) throws IOException {
+		char[] text = p.getTextCharacters();
+		int offset = p.getTextOffset();
+		int length = p.getTextLength();
+		for (int i = 0; i < candidates.length; i++) {
+			char[] c = candidates[i];
+			if (c.length == length && Arrays.equals(c, 0, length, text, offset, offset + length)) return i;
+		}
+		return -1;
+	}
+
+	// current number token truncated towards zero, without building a String
+	private static int truncatedInt(JsonParser p) throws IOException {
+		char[] text = p.getTextCharacters();
+		int i = p.getTextOffset();
+		int end = i + p.getTextLength();
+
+		boolean negative = false;
+		if (i < end && (text[i] == '-' || text[i] == '+')) {
+			negative = text[i] == '-';
+			i++;
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			char c = text[i];
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				if (value > Integer.MAX_VALUE) return (int) p.getDoubleValue();
+			} else if (c == '.') {
+				break;
+			} else {
+				// exponent notation, rare enough to take the slow path
+				return (int) p.getDoubleValue();
+			}
+		}
+		// an exponent may still follow the fraction
+		for (; i < end; i++) {
+			if (text[i] == 'e' || text[i] == 'E') return (int) p.getDoubleValue();
+		}
+		return (int) (negative ? -value : value);
+	}
+
+}
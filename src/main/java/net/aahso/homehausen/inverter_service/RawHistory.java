@@ -0,0 +1,544 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.aahso.homehausen.inverter_service.ArchiveManifest.Segment;
+
+/*
+ * All raw data points of one inverter: the days before today sealed into
+ * compressed segment files in archive/ (one per day, see ArchiveFile), listed
+ * in archive/manifest.json (see ArchiveManifest), today in the data file.
+ *
+ * Sealing writes the segments of the days before a midnight and forces them
+ * to disk, then replaces the manifest, then replaces the data file with its
+ * remaining records. Readers open the data file first and take the manifest
+ * second, and skip data file records the segments already hold, so they see
+ * every data point exactly once: while sealing runs, and after a crash in between.
+ *
+ * In the background, old segments are dropped (retention, the rollups remain)
+ * and the days of old months are compacted into one segment per month. A
+ * reader that finds a segment gone meanwhile continues with the new manifest.
+ * Either way a query opens only the segments overlapping it, however long the
+ * service has run.
+ */
+class RawHistory {
+
+	static final String ARCHIVE_DIR = "archive";
+	static final String MANIFEST_FILE = "manifest.json";
+	// single archive file of the previous version, split into segments on open
+	static final String LEGACY_ARCHIVE_FILE = "archive.bin";
+
+	// pause after each block while compacting, so it does not compete with the writer
+	private static final long COMPACT_PAUSE_MILLIS = 5;
+	// day or month, part number if the name was taken
+	private static final Pattern SEGMENT_FILE = Pattern.compile("(\\d{4}-\\d{2}(?:-\\d{2})?)(?:\\.\\d+)?\\.bin");
+
+	private static final Logger logger = LoggerFactory.getLogger(RawHistory.class);
+
+	// receives data points of a query
+	interface DataPointConsumer {
+		void accept(DataPoint dp) throws IOException;
+	}
+
+	private final SampleSchema schema;
+	private final ZoneId zone;
+	private final Path dataFile;
+	private final Path archiveDir;
+	private final Path manifestFile;
+	private final Path legacyArchiveFile;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	// sealing, compaction and retention change the manifest one at a time
+	private final Object manifestLock = new Object();
+	// current manifest, replaced as a whole; null until loaded
+	private volatile List<Segment> segments;
+
+	RawHistory(Path dataDir, SampleSchema schema) {
+		this(dataDir, schema, ZoneId.systemDefault());
+	}
+
+	RawHistory(Path dataDir, SampleSchema schema, ZoneId zone) {
+		this.schema = schema;
+		this.zone = zone;
+		this.dataFile = dataDir.resolve(DataPointWriter.DATA_FILE);
+		this.archiveDir = dataDir.resolve(ARCHIVE_DIR);
+		this.manifestFile = archiveDir.resolve(MANIFEST_FILE);
+		this.legacyArchiveFile = dataDir.resolve(LEGACY_ARCHIVE_FILE);
+	}
+
+	// load the manifest (rebuilt from the segment files if it is missing), split an archive file
+	// of the previous version into segments and delete files a crash left behind (data file
+	// writer only, before it seals)
+	void open() throws IOException {
+		synchronized (manifestLock) {
+			// without a manifest nothing tells leftovers from segments, so nothing is deleted
+			boolean loaded = Files.exists(manifestFile);
+			List<Segment> current = loaded ? segments() : rebuild();
+			if (Files.exists(legacyArchiveFile)) {
+				if (current.isEmpty()) current = migrate();
+				Files.delete(legacyArchiveFile);
+			}
+			if (!loaded || !Files.isDirectory(archiveDir)) return;
+			TreeSet<String> listed = new TreeSet<String>();
+			for (Segment segment : current) listed.add(segment.file);
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(archiveDir, "*.{bin,tmp}")) {
+				for (Path file : files) {
+					if (listed.contains(file.getFileName().toString())) continue;
+					logger.info("Deleting " + file + ", not in the manifest");
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	// manifest of the segment files found in the archive directory, from their footers; where
+	// files overlap (a crash while compacting), the one with more data points is taken, days
+	// before a month with as many
+	private List<Segment> rebuild() throws IOException {
+		if (!Files.isDirectory(archiveDir)) return segments();
+		List<Segment> found = new ArrayList<Segment>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(archiveDir, "*.bin")) {
+			for (Path file : files) {
+				String fileName = file.getFileName().toString();
+				Matcher m = SEGMENT_FILE.matcher(fileName);
+				if (!m.matches()) continue;
+				Segment segment = new Segment(m.group(1), fileName);
+				try (ArchiveReader reader = ArchiveReader.open(file, schema)) {
+					if (reader.blocks() == 0) continue;
+					segment.first = reader.firstTimeStamp(0);
+					segment.last = reader.lastTimeStamp();
+					segment.count = reader.count();
+				} catch (IOException e) {
+					logger.warn("Not taking " + file + " into the rebuilt manifest: " + e.getMessage());
+					continue;
+				}
+				segment.bytes = Files.size(file);
+				found.add(segment);
+			}
+		}
+		if (found.isEmpty()) return segments();
+
+		found.sort(Comparator.comparingLong((Segment s) -> -s.count).thenComparing(Segment::isMonth)
+				.thenComparing(s -> s.file));
+		List<Segment> taken = new ArrayList<Segment>();
+		for (Segment segment : found) {
+			boolean overlaps = false;
+			for (Segment t : taken) {
+				if (segment.first <= t.last && t.first <= segment.last) overlaps = true;
+			}
+			if (overlaps) logger.warn("Not taking " + segment.file + " into the rebuilt manifest, overlaps another segment");
+			else taken.add(segment);
+		}
+		logger.warn("No manifest in " + archiveDir + ", rebuilt it from " + taken.size() + " segment files");
+		return replace(List.of(), taken);
+	}
+
+	private List<Segment> migrate() throws IOException {
+		logger.info("Splitting " + legacyArchiveFile + " into segments per day in " + archiveDir);
+		List<Segment> written;
+		try (ArchiveReader reader = ArchiveReader.open(legacyArchiveFile, schema);
+				SegmentSplitter splitter = new SegmentSplitter(List.of())) {
+			for (int b = 0; b < reader.blocks(); b++) {
+				for (DataPoint dp : reader.read(b)) splitter.accept(dp);
+			}
+			written = splitter.finish();
+		}
+		return replace(List.of(), written);
+	}
+
+	// current segments, in time order
+	List<Segment> segments() throws IOException {
+		List<Segment> current = segments;
+		if (current != null) return current;
+		synchronized (manifestLock) {
+			if (segments == null) segments = ArchiveManifest.load(manifestFile, objectMapper);
+			return segments;
+		}
+	}
+
+	// reads segments from next[0] on, moving it past what it passed on
+	private interface SegmentVisitor {
+		void visit(List<Segment> snapshot, long[] next) throws IOException;
+	}
+
+	// visit the segments from a time stamp on; returns the manifest the visit ended with
+	private List<Segment> visitSegments(long from, SegmentVisitor visitor) throws IOException {
+		List<Segment> snapshot = segments();
+		// first time stamp not yet passed on
+		long[] next = { from };
+		for (int attempt = 1; ; attempt++) {
+			try {
+				visitor.visit(snapshot, next);
+				return snapshot;
+			} catch (NoSuchFileException e) {
+				// compacted or dropped meanwhile, the new manifest has the rest
+				List<Segment> current = segments();
+				if (current == snapshot || attempt == 3) throw e;
+				snapshot = current;
+			}
+		}
+	}
+
+	// pass all data points with from <= time stamp < to to the consumer, in order
+	void forEach(long from, long to, DataPointConsumer consumer) throws IOException {
+		DataFileReader recent = Files.exists(dataFile) ? DataFileReader.open(dataFile, schema) : null;
+		try {
+			List<Segment> snapshot = visitSegments(from, (segments, next) -> forEachArchived(segments, next, to, consumer));
+			if (recent == null) return;
+			long archived = lastTimeStamp(snapshot);
+			long start = archived == Long.MIN_VALUE ? from : Math.max(from, archived + 1);
+			for (int i = recent.lowerBound(start); i < recent.count(); i++) {
+				DataPoint dp = recent.read(i);
+				if (dp.getTimeStamp() >= to) break;
+				consumer.accept(dp);
+			}
+		} finally {
+			if (recent != null) recent.close();
+		}
+	}
+
+	private void forEachArchived(List<Segment> snapshot, long[] next, long to, DataPointConsumer consumer) throws IOException {
+		for (Segment segment : snapshot) {
+			if (segment.first >= to) return;
+			if (segment.last < next[0]) continue;
+			try (ArchiveReader archive = ArchiveReader.open(archiveDir.resolve(segment.file), schema)) {
+				// blocks outside the range are skipped by their footer
+				for (int b = archive.firstBlock(next[0]); b < archive.blocks() && archive.firstTimeStamp(b) < to; b++) {
+					for (DataPoint dp : archive.read(b)) {
+						if (dp.getTimeStamp() < next[0]) continue;
+						if (dp.getTimeStamp() >= to) return;
+						consumer.accept(dp);
+						next[0] = dp.getTimeStamp() + 1;
+					}
+				}
+			}
+		}
+	}
+
+	// all data points with from <= time stamp < to as one archive file (see ArchiveFile), in
+	// constant memory: runs of whole blocks in the range go from the segment files to the
+	// output as they are stored (FileChannel.transferTo), the blocks cut by the range and the
+	// data points of the data file are encoded as blocks of their own
+	void export(long from, long to, WritableByteChannel out) throws IOException {
+		DataFileReader recent = Files.exists(dataFile) ? DataFileReader.open(dataFile, schema) : null;
+		try {
+			write(out, ArchiveFile.header(schema));
+			List<Segment> snapshot = visitSegments(from, (segments, next) -> exportArchived(segments, next, to, out));
+			if (recent == null) return;
+			long archived = lastTimeStamp(snapshot);
+			long start = archived == Long.MIN_VALUE ? from : Math.max(from, archived + 1);
+			List<DataPoint> block = new ArrayList<DataPoint>();
+			long hour = Long.MIN_VALUE;
+			for (int i = recent.lowerBound(start); i < recent.count(); i++) {
+				DataPoint dp = recent.read(i);
+				if (dp.getTimeStamp() >= to) break;
+				long h = RollupTier.bucketStart(dp.getTimeStamp(), ArchiveFile.BLOCK_SECONDS);
+				if (h != hour && !block.isEmpty()) {
+					write(out, ArchiveFile.encodeBlock(block));
+					block.clear();
+				}
+				hour = h;
+				block.add(dp);
+			}
+			if (!block.isEmpty()) write(out, ArchiveFile.encodeBlock(block));
+		} finally {
+			if (recent != null) recent.close();
+		}
+	}
+
+	private void exportArchived(List<Segment> snapshot, long[] next, long to, WritableByteChannel out) throws IOException {
+		for (Segment segment : snapshot) {
+			if (segment.first >= to) return;
+			if (segment.last < next[0]) continue;
+			try (ArchiveReader archive = ArchiveReader.open(archiveDir.resolve(segment.file), schema)) {
+				// blocks of a segment written with other metrics are encoded again
+				boolean asStored = Arrays.equals(archive.names(), schema.names());
+				int b = archive.firstBlock(next[0]);
+				while (b < archive.blocks() && archive.firstTimeStamp(b) < to) {
+					int end = b;
+					while (asStored && end < archive.blocks() && archive.firstTimeStamp(end) >= next[0]
+							&& archive.lastTimeStamp(end) < to) end++;
+					if (end > b) {
+						archive.transferTo(b, end, out);
+						next[0] = archive.lastTimeStamp(end - 1) + 1;
+						b = end;
+						continue;
+					}
+					List<DataPoint> part = new ArrayList<DataPoint>();
+					for (DataPoint dp : archive.read(b)) {
+						if (dp.getTimeStamp() >= next[0] && dp.getTimeStamp() < to) part.add(dp);
+					}
+					if (!part.isEmpty()) {
+						write(out, ArchiveFile.encodeBlock(part));
+						next[0] = part.get(part.size() - 1).getTimeStamp() + 1;
+					}
+					b++;
+				}
+			}
+		}
+	}
+
+	private static void write(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) out.write(buffer);
+	}
+
+	// all data points with from <= time stamp < to
+	List<DataPoint> range(long from, long to) throws IOException {
+		List<DataPoint> result = new ArrayList<DataPoint>();
+		forEach(from, to, result::add);
+		return result;
+	}
+
+	// move the data points before the time stamp (usually a midnight) from the data file into
+	// new segments per day; returns their number (data file writer only, with the data file closed)
+	int seal(long before) throws IOException {
+		if (!Files.exists(dataFile)) return 0;
+		Path tmp = dataFile.resolveSibling(dataFile.getFileName() + ".tmp");
+		int sealed = 0;
+
+		synchronized (manifestLock) {
+			List<Segment> current = segments();
+			try (DataFileReader reader = DataFileReader.open(dataFile, schema)) {
+				int split = reader.lowerBound(before);
+				if (split == 0) return 0;
+
+				// already in a segment if a crash came before the data file was replaced
+				long archived = lastTimeStamp(current);
+				List<Segment> written;
+				try (SegmentSplitter splitter = new SegmentSplitter(current)) {
+					for (int i = archived == Long.MIN_VALUE ? 0 : reader.lowerBound(archived + 1); i < split; i++) {
+						splitter.accept(reader.read(i));
+						sealed++;
+					}
+					written = splitter.finish();
+				}
+				replace(List.of(), written);
+
+				Files.deleteIfExists(tmp);
+				try (DataFileWriter rest = DataFileWriter.open(tmp, schema)) {
+					for (int i = split; i < reader.count(); i++) {
+						rest.append(reader.read(i));
+						if (i % 10000 == 9999) rest.flush();
+					}
+					rest.force();
+				}
+			}
+			Files.move(tmp, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		return sealed;
+	}
+
+	// drop segments ending before the time stamp; returns their number
+	int drop(long before) throws IOException {
+		synchronized (manifestLock) {
+			List<Segment> dropped = new ArrayList<Segment>();
+			for (Segment segment : segments()) {
+				if (segment.last < before) dropped.add(segment);
+			}
+			if (!dropped.isEmpty()) replace(dropped, List.of());
+			return dropped.size();
+		}
+	}
+
+	// months completely before the day with more than one segment or one per day
+	List<YearMonth> compactable(LocalDate before) throws IOException {
+		TreeSet<YearMonth> months = new TreeSet<YearMonth>();
+		YearMonth month = null;
+		int count = 0;
+		for (Segment segment : segments()) {
+			if (!segment.month().equals(month)) {
+				month = segment.month();
+				count = 0;
+			}
+			count++;
+			if (month.atEndOfMonth().isBefore(before) && (count > 1 || !segment.isMonth())) months.add(month);
+		}
+		return new ArrayList<YearMonth>(months);
+	}
+
+	// merge the segments of a month into one, pausing after each block; false if it stopped
+	// or the segments changed meanwhile (runs next to sealing and queries)
+	boolean compact(YearMonth month, BooleanSupplier running) throws IOException, InterruptedException {
+		List<Segment> merged = new ArrayList<Segment>();
+		for (Segment segment : segments()) {
+			if (segment.month().equals(month)) merged.add(segment);
+		}
+		if (merged.isEmpty()) return false;
+
+		Path tmp = archiveDir.resolve(month + ".bin.tmp");
+		Files.deleteIfExists(tmp);
+		Segment compacted = new Segment(month.toString(), null);
+		boolean done = false;
+		try {
+			try (ArchiveWriter writer = ArchiveWriter.open(tmp, schema)) {
+				for (Segment segment : merged) {
+					try (ArchiveReader reader = ArchiveReader.open(archiveDir.resolve(segment.file), schema)) {
+						for (int b = 0; b < reader.blocks(); b++) {
+							if (!running.getAsBoolean()) return false;
+							List<DataPoint> block = reader.read(b);
+							writer.append(block);
+							if (compacted.first == Long.MIN_VALUE) compacted.first = reader.firstTimeStamp(b);
+							compacted.last = reader.lastTimeStamp(b);
+							compacted.count += block.size();
+							Thread.sleep(COMPACT_PAUSE_MILLIS);
+						}
+					}
+				}
+				writer.force();
+			}
+
+			synchronized (manifestLock) {
+				if (!segments().containsAll(merged)) return false;
+				compacted.file = fileName(compacted.name, segments());
+				Path file = archiveDir.resolve(compacted.file);
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				compacted.bytes = Files.size(file);
+				replace(merged, List.of(compacted));
+			}
+			done = true;
+			logger.info("Compacted " + merged.size() + " segments of " + month + " into " + compacted.file
+					+ " (" + compacted.count + " data points, " + compacted.bytes + " bytes)");
+			return true;
+		} finally {
+			if (!done) Files.deleteIfExists(tmp);
+		}
+	}
+
+	// save manifest without the removed and with the added segments, then delete the removed files
+	private List<Segment> replace(List<Segment> removed, List<Segment> added) throws IOException {
+		List<Segment> updated = new ArrayList<Segment>(segments());
+		updated.removeAll(removed);
+		updated.addAll(added);
+		updated.sort(Comparator.comparingLong((Segment s) -> s.first));
+		Files.createDirectories(archiveDir);
+		ArchiveManifest.save(manifestFile, updated, objectMapper);
+		segments = List.copyOf(updated);
+		// readers that still have them open continue, the others find them in the new manifest
+		for (Segment segment : removed) Files.deleteIfExists(archiveDir.resolve(segment.file));
+		return segments;
+	}
+
+	// file for a new segment, not taken by another one (a file left by a crash is overwritten)
+	private static String fileName(String name, List<Segment> taken) {
+		for (int part = 0; ; part++) {
+			String file = part == 0 ? name + ".bin" : name + "." + part + ".bin";
+			boolean free = true;
+			for (Segment segment : taken) {
+				if (segment.file.equals(file)) free = false;
+			}
+			if (free) return file;
+		}
+	}
+
+	private static long lastTimeStamp(List<Segment> segments) {
+		return segments.isEmpty() ? Long.MIN_VALUE : segments.get(segments.size() - 1).last;
+	}
+
+	// local day of a time stamp
+	LocalDate day(long timeStamp) {
+		return LocalDate.ofInstant(Instant.ofEpochSecond(timeStamp), zone);
+	}
+
+	// time stamp of the local midnight starting the day
+	long startOf(LocalDate day) {
+		return day.atStartOfDay(zone).toEpochSecond();
+	}
+
+	// size of all segment files
+	long archiveBytes() throws IOException {
+		long bytes = 0;
+		for (Segment segment : segments()) bytes += segment.bytes;
+		return bytes;
+	}
+
+	// writes data points in time order into new segment files, one per day, one block per hour
+	private class SegmentSplitter implements AutoCloseable {
+
+		private final List<Segment> taken;
+		private final List<Segment> written = new ArrayList<Segment>();
+		private final List<DataPoint> block = new ArrayList<DataPoint>();
+		private ArchiveWriter writer;
+		private Segment segment;
+		private LocalDate day;
+		private long hour = Long.MIN_VALUE;
+
+		SegmentSplitter(List<Segment> taken) {
+			this.taken = new ArrayList<Segment>(taken);
+		}
+
+		void accept(DataPoint dp) throws IOException {
+			LocalDate d = day(dp.getTimeStamp());
+			long h = RollupTier.bucketStart(dp.getTimeStamp(), ArchiveFile.BLOCK_SECONDS);
+			if (!d.equals(day)) {
+				finishSegment();
+				day = d;
+				segment = new Segment(d.toString(), null);
+				segment.file = fileName(segment.name, taken);
+				taken.add(segment);
+				Files.createDirectories(archiveDir);
+				Path file = archiveDir.resolve(segment.file);
+				Files.deleteIfExists(file);
+				writer = ArchiveWriter.open(file, schema);
+			} else if (h != hour) {
+				appendBlock();
+			}
+			hour = h;
+			block.add(dp);
+		}
+
+		private void appendBlock() throws IOException {
+			if (block.isEmpty()) return;
+			writer.append(block);
+			if (segment.first == Long.MIN_VALUE) segment.first = block.get(0).getTimeStamp();
+			segment.last = block.get(block.size() - 1).getTimeStamp();
+			segment.count += block.size();
+			block.clear();
+		}
+
+		private void finishSegment() throws IOException {
+			if (writer == null) return;
+			appendBlock();
+			writer.force();
+			writer.close();
+			writer = null;
+			segment.bytes = Files.size(archiveDir.resolve(segment.file));
+			written.add(segment);
+		}
+
+		// the segments written, forced to disk
+		List<Segment> finish() throws IOException {
+			finishSegment();
+			return written;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (writer != null) writer.close();
+		}
+	}
+
+}
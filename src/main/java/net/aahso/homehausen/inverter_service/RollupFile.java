@@ -0,0 +1,211 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Append-only file of rollup rows: the aggregates of all data points of one
+ * time bucket, ordered by bucket start. A FileHeader (magic "INVR", param is
+ * the bucket length) followed by fixed-width rows:
+ *
+ *   row: long bucketStart | int count | long firstTimeStamp | long lastTimeStamp | long sumTimeStamp
+ *        | long sum * fieldCount | int min * fieldCount | int max * fieldCount
+ */
+public class RollupFile implements Closeable {
+
+	public static final int MAGIC = 0x494E5652;	// "INVR"
+
+	// receives rollup rows of a query
+	public interface RowConsumer {
+		void accept(long bucketStart, WindowStats row);
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(RollupFile.class);
+
+	private final Path path;
+	private final int bucketSeconds;
+	private final SampleSchema schema;
+	private final FileChannel channel;
+	private final FileHeader header;
+	private final int[] fieldIndexes;
+	private final ByteBuffer record;
+	private long size;
+
+	private RollupFile(Path path, int bucketSeconds, SampleSchema schema, FileChannel channel, FileHeader header, long size) {
+		this.path = path;
+		this.bucketSeconds = bucketSeconds;
+		this.schema = schema;
+		this.channel = channel;
+		this.header = header;
+		this.fieldIndexes = header.fieldIndexes(schema);
+		this.record = ByteBuffer.allocate(header.recordSize);
+		this.size = size;
+	}
+
+	public static int recordSize(int fieldCount) {
+		return 8 + 4 + 8 + 8 + 8 + fieldCount * (8 + 4 + 4);
+	}
+
+	// open rollup file for appending and reading, create it if it does not exist;
+	// a file written with other metrics is rewritten for the schema first
+	public static RollupFile open(Path path, int bucketSeconds, SampleSchema schema) throws IOException {
+		if (path.getParent() != null) Files.createDirectories(path.getParent());
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long size = channel.size();
+			if (size == 0) {
+				FileHeader.write(channel, FileHeader.encode(MAGIC, recordSize(schema.size()), bucketSeconds, schema.names()));
+			}
+			FileHeader header = FileHeader.read(channel, MAGIC);
+			if (header.param != bucketSeconds)
+				throw new IOException("Rollup file " + path + " has buckets of " + header.param + " seconds");
+			if (size == 0) size = header.headerSize;
+
+			RollupFile file = new RollupFile(path, bucketSeconds, schema, channel, header, size);
+			if (!schema.sameMetrics(header.names) || header.version != FileHeader.VERSION) {
+				file.migrate();
+				return open(path, bucketSeconds, schema);
+			}
+
+			long end = header.headerSize + (size - header.headerSize) / header.recordSize * header.recordSize;
+			if (end != size) {
+				logger.warn("Truncating torn row at end of " + path);
+				channel.truncate(end);
+				file.size = end;
+			}
+			return file;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	// rewrite this file with the metrics of the schema (missing metrics become 0) and close it
+	private void migrate() throws IOException {
+		logger.warn("Rewriting " + path + " for new metrics " + Arrays.toString(schema.names())
+				+ " (was " + Arrays.toString(header.names) + ")");
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.deleteIfExists(tmp);
+		size = header.headerSize + (size - header.headerSize) / header.recordSize * header.recordSize;
+		try (RollupFile target = open(tmp, bucketSeconds, schema)) {
+			IOException[] failure = new IOException[1];
+			forEach(Long.MIN_VALUE, Long.MAX_VALUE, (bucketStart, row) -> {
+				try {
+					if (failure[0] == null) target.append(bucketStart, row);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			});
+			if (failure[0] != null) throw failure[0];
+			target.force();
+		} finally {
+			channel.close();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public int getBucketSeconds() {
+		return bucketSeconds;
+	}
+
+	public SampleSchema getSchema() {
+		return schema;
+	}
+
+	public synchronized int count() {
+		return (int) ((size - header.headerSize) / header.recordSize);
+	}
+
+	// start of the last bucket in the file or Long.MIN_VALUE if empty
+	public synchronized long lastBucketStart() throws IOException {
+		if (size == header.headerSize) return Long.MIN_VALUE;
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		channel.read(buffer, size - header.recordSize);
+		return buffer.getLong(0);
+	}
+
+	public synchronized void append(long bucketStart, WindowStats row) throws IOException {
+		if (row.schema != schema) throw new IllegalArgumentException("Row of a different schema");
+		int fields = schema.size();
+		record.clear();
+		record.putLong(bucketStart).putInt(row.count)
+				.putLong(row.firstTimeStamp).putLong(row.lastTimeStamp).putLong(row.sumTimeStamp);
+		for (int f = 0; f < fields; f++) record.putLong(row.sum[f]);
+		for (int f = 0; f < fields; f++) record.putInt(row.min[f]);
+		for (int f = 0; f < fields; f++) record.putInt(row.max[f]);
+		record.flip();
+		long position = size;
+		while (record.hasRemaining()) position += channel.write(record, position);
+		size = position;
+	}
+
+	public void force() throws IOException {
+		channel.force(false);
+	}
+
+	// pass all rows with from <= bucketStart < to to the consumer, in order; the row is reused
+	public void forEach(long from, long to, RowConsumer consumer) throws IOException {
+		long mapped;
+		synchronized (this) {
+			mapped = size;
+		}
+		int headerSize = header.headerSize;
+		int recordSize = header.recordSize;
+		if (mapped == headerSize) return;
+		MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, mapped);
+		int rows = (int) ((mapped - headerSize) / recordSize);
+		int fileFields = header.names.length;
+
+		// binary search for the first row >= from
+		int lo = 0;
+		int hi = rows;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (map.getLong(headerSize + mid * recordSize) < from) lo = mid + 1;
+			else hi = mid;
+		}
+
+		WindowStats row = new WindowStats(schema);
+		for (int i = lo; i < rows; i++) {
+			int offset = headerSize + i * recordSize;
+			long bucketStart = map.getLong(offset);
+			if (bucketStart >= to) break;
+			row.count = map.getInt(offset + 8);
+			row.firstTimeStamp = map.getLong(offset + 12);
+			row.lastTimeStamp = map.getLong(offset + 20);
+			row.sumTimeStamp = map.getLong(offset + 28);
+			int sums = offset + 36;
+			int mins = sums + fileFields * 8;
+			int maxs = mins + fileFields * 4;
+			for (int m = 0; m < fieldIndexes.length; m++) {
+				int f = fieldIndexes[m];
+				row.sum[m] = f < 0 ? 0 : map.getLong(sums + f * 8);
+				row.min[m] = f < 0 ? 0 : map.getInt(mins + f * 4);
+				row.max[m] = f < 0 ? 0 : map.getInt(maxs + f * 4);
+			}
+			consumer.accept(bucketStart, row);
+		}
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
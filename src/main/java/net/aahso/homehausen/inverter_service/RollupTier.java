@@ -0,0 +1,76 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/*
+ * One rollup resolution (e.g. 1 minute): the current, still open bucket in
+ * memory and all closed buckets in a RollupFile. Fed with data points in time
+ * order; a bucket is written when the first data point of a later bucket arrives.
+ */
+public class RollupTier implements Closeable {
+
+	private final RollupFile file;
+	private final int bucketSeconds;
+
+	// first time stamp not yet covered by a written bucket
+	private final long resumeFrom;
+
+	private final WindowStats open;
+	private long openStart = Long.MIN_VALUE;
+
+	public RollupTier(RollupFile file) throws IOException {
+		this.file = file;
+		this.bucketSeconds = file.getBucketSeconds();
+		this.open = new WindowStats(file.getSchema());
+		long last = file.lastBucketStart();
+		this.resumeFrom = last == Long.MIN_VALUE ? Long.MIN_VALUE : last + bucketSeconds;
+	}
+
+	public int getBucketSeconds() {
+		return bucketSeconds;
+	}
+
+	public long resumeFrom() {
+		return resumeFrom;
+	}
+
+	public synchronized void add(DataPoint dp) throws IOException {
+		long start = bucketStart(dp.getTimeStamp(), bucketSeconds);
+		// already rolled up (before a restart or before the clock went backwards)
+		if (dp.getTimeStamp() < resumeFrom || start < openStart) return;
+		if (start != openStart) {
+			if (!open.isEmpty()) file.append(openStart, open);
+			open.reset();
+			openStart = start;
+		}
+		open.add(dp);
+	}
+
+	// pass all buckets with from <= bucketStart < to to the consumer, including the open one
+	public synchronized void forEach(long from, long to, RollupFile.RowConsumer consumer) throws IOException {
+		file.forEach(from, to, consumer);
+		if (!open.isEmpty() && openStart >= from && openStart < to) {
+			consumer.accept(openStart, open);
+		}
+	}
+
+	// first time stamp not yet in a written bucket
+	public synchronized long rolledUpTo() {
+		return openStart == Long.MIN_VALUE ? resumeFrom : openStart;
+	}
+
+	public void force() throws IOException {
+		file.force();
+	}
+
+	static long bucketStart(long timeStamp, long bucketSeconds) {
+		return Math.floorDiv(timeStamp, bucketSeconds) * bucketSeconds;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+}
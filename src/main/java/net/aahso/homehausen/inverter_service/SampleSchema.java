@@ -0,0 +1,164 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Metrics sampled from the inverter and their order in every data point,
+ * buffer, aggregate and file.
+ *
+ * Each metric is the sum of one or more processdata values, written as
+ * "moduleid/id" and joined with "+", e.g.
+ *
+ *   fromPV = devices:local:pv1/P+devices:local:pv2/P
+ *
+ * The five core metrics (fromPV, fromGrid, fromBat, useHome, levelBat) must
+ * always be present, any number of further metrics can be added.
+ */
+public class SampleSchema {
+
+	public static final String FROM_PV = "fromPV";
+	public static final String FROM_GRID = "fromGrid";
+	public static final String FROM_BAT = "fromBat";
+	public static final String USE_HOME = "useHome";
+	public static final String LEVEL_BAT = "levelBat";
+
+	// the five values of the original DataPoint
+	public static final SampleSchema CORE = new SampleSchema(definitions(
+			FROM_PV, "devices:local:pv1/P+devices:local:pv2/P",
+			FROM_GRID, "devices:local/Grid_P",
+			FROM_BAT, "devices:local:battery/P",
+			USE_HOME, "devices:local/Home_P",
+			LEVEL_BAT, "devices:local:battery/SoC"));
+
+	// everything the inverter used to be asked for
+	public static final SampleSchema DEFAULT = new SampleSchema(definitions(
+			FROM_PV, "devices:local:pv1/P+devices:local:pv2/P",
+			FROM_GRID, "devices:local/Grid_P",
+			FROM_BAT, "devices:local:battery/P",
+			USE_HOME, "devices:local/Home_P",
+			LEVEL_BAT, "devices:local:battery/SoC",
+			"homeGrid", "devices:local/HomeGrid_P",
+			"homeOwn", "devices:local/HomeOwn_P",
+			"homeBat", "devices:local/HomeBat_P",
+			"pv2Bat", "devices:local/PV2Bat_P"));
+
+	private final String[] names;
+	private final String[] definitions;
+	// distinct { moduleid, processdata id } to poll; index is the ProcessData slot
+	private final List<String[]> sources;
+	// ProcessData slots summed up for each metric
+	private final int[][] metricSlots;
+
+	// indexes of the core metrics
+	final int fromPV;
+	final int fromGrid;
+	final int fromBat;
+	final int useHome;
+	final int levelBat;
+
+	// definitions: metric name -> "moduleid/id[+moduleid/id...]", in metric order
+	public SampleSchema(Map<String, String> definitions) {
+		this.names = definitions.keySet().toArray(new String[0]);
+		this.definitions = definitions.values().toArray(new String[0]);
+
+		List<String> sourceKeys = new ArrayList<String>();
+		List<String[]> sourceList = new ArrayList<String[]>();
+		this.metricSlots = new int[names.length][];
+		for (int m = 0; m < names.length; m++) {
+			String[] parts = this.definitions[m].split("\\+");
+			metricSlots[m] = new int[parts.length];
+			for (int p = 0; p < parts.length; p++) {
+				String part = parts[p].trim();
+				int slash = part.lastIndexOf('/');
+				if (slash <= 0 || slash == part.length() - 1)
+					throw new IllegalArgumentException("Metric " + names[m] + ": expected moduleid/id, got '" + part + "'");
+				int slot = sourceKeys.indexOf(part);
+				if (slot < 0) {
+					slot = sourceKeys.size();
+					sourceKeys.add(part);
+					sourceList.add(new String[] { part.substring(0, slash), part.substring(slash + 1) });
+				}
+				metricSlots[m][p] = slot;
+			}
+		}
+		this.sources = Collections.unmodifiableList(sourceList);
+
+		this.fromPV = required(FROM_PV);
+		this.fromGrid = required(FROM_GRID);
+		this.fromBat = required(FROM_BAT);
+		this.useHome = required(USE_HOME);
+		this.levelBat = required(LEVEL_BAT);
+	}
+
+	private int required(String name) {
+		int index = indexOf(name);
+		if (index < 0) throw new IllegalArgumentException("Metric " + name + " is missing");
+		return index;
+	}
+
+	static Map<String, String> definitions(String... nameDefinitionPairs) {
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for (int i = 0; i < nameDefinitionPairs.length; i += 2) {
+			map.put(nameDefinitionPairs[i], nameDefinitionPairs[i + 1]);
+		}
+		return map;
+	}
+
+	// number of metrics
+	public int size() {
+		return names.length;
+	}
+
+	public String name(int index) {
+		return names[index];
+	}
+
+	public String definition(int index) {
+		return definitions[index];
+	}
+
+	public String[] names() {
+		return names.clone();
+	}
+
+	public int indexOf(String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) return i;
+		}
+		return -1;
+	}
+
+	public List<String[]> getSources() {
+		return sources;
+	}
+
+	// metric values from the processdata values of one response
+	public void compute(ProcessData processData, int[] values) {
+		for (int m = 0; m < metricSlots.length; m++) {
+			int sum = 0;
+			for (int slot : metricSlots[m]) sum += processData.get(slot);
+			values[m] = sum;
+		}
+	}
+
+	// true if both schemas have the same metrics in the same order
+	public boolean sameMetrics(String[] otherNames) {
+		return Arrays.equals(names, otherNames);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int m = 0; m < names.length; m++) {
+			if (m > 0) sb.append(", ");
+			sb.append(names[m]).append('=').append(definitions[m]);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,49 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+@Configuration
+public class SampleSchemaConfig {
+
+	@Autowired
+	private Environment env;
+
+	private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+	// metrics from app.inverter.metrics (names in order) and app.inverter.metric.<name> (definition)
+	@Bean
+	public SampleSchema sampleSchema() {
+		String names = env.getProperty("app.inverter.metrics");
+		if (names == null || names.isBlank()) {
+			logger.info("Sampling default metrics: " + SampleSchema.DEFAULT);
+			return SampleSchema.DEFAULT;
+		}
+
+		Map<String, String> definitions = new LinkedHashMap<String, String>();
+		for (String name : names.split(",")) {
+			name = name.trim();
+			String definition = env.getProperty("app.inverter.metric." + name);
+			if (definition == null) {
+				// built-in metrics do not need to be defined again
+				int index = SampleSchema.DEFAULT.indexOf(name);
+				if (index < 0) throw new IllegalArgumentException("Missing property app.inverter.metric." + name);
+				definition = SampleSchema.DEFAULT.definition(index);
+			}
+			definitions.put(name, definition);
+		}
+
+		SampleSchema schema = new SampleSchema(definitions);
+		logger.info("Sampling metrics: " + schema);
+		return schema;
+	}
+
+}
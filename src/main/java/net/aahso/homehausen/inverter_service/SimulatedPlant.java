@@ -0,0 +1,122 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Synthetic PV plant, battery and household behind the simulator.
+ *
+ *  - PV follows the sun: day length and height change with the season, drifting
+ *    clouds dim it; split 60/40 over two strings.
+ *  - The household draws a base load with morning and evening peaks, plus
+ *    random appliances running for a few minutes.
+ *  - The battery takes the PV surplus and covers the deficit within its power
+ *    limit and state of charge; the grid balances the rest.
+ *
+ * Values are keyed moduleid/id like the processdata API. The state advances by
+ * the time passed between two readings, so it follows an accelerated clock.
+ */
+class SimulatedPlant {
+
+	private static final double YEAR_DAYS = 365.25;
+	// day of the year with the longest day
+	private static final int SOLSTICE = 172;
+	// local time of the highest sun (summer time in central Europe)
+	private static final double SOLAR_NOON = 13.0;
+
+	// configured
+	private final double peakPV;
+	private final double batteryWh;
+	private final double batteryMaxW;
+	private final double baseLoad;
+	private final Random random;
+
+	private double soc = 50;
+	private double cloud = 1;
+	private long lastEpochSecond = 0;
+	private double applianceW = 0;
+	private long applianceUntil = 0;
+
+	SimulatedPlant(double peakPV, double batteryWh, double batteryMaxW, double baseLoad, Random random) {
+		this.peakPV = peakPV;
+		this.batteryWh = batteryWh;
+		this.batteryMaxW = batteryMaxW;
+		this.baseLoad = baseLoad;
+		this.random = random;
+	}
+
+	// readings at this time, moduleid/id -> value
+	synchronized Map<String, Double> read(ZonedDateTime time) {
+		long now = time.toEpochSecond();
+		double dt = lastEpochSecond == 0 ? 0 : Math.min(3600, Math.max(0, now - lastEpochSecond));
+		lastEpochSecond = now;
+
+		double hour = time.getHour() + time.getMinute() / 60.0 + time.getSecond() / 3600.0;
+		double pv = pv(hour, time.getDayOfYear(), dt);
+		double home = home(hour, now, dt);
+
+		// battery: P < 0 charging, P > 0 discharging
+		double surplus = pv - home;
+		double bat = 0;
+		if (surplus > 0 && soc < 100) bat = -Math.min(surplus, batteryMaxW);
+		else if (surplus < 0 && soc > 5) bat = Math.min(-surplus, batteryMaxW);
+		soc = Math.max(0, Math.min(100, soc - bat * dt / 3600 / batteryWh * 100));
+
+		// home = pv + grid + bat
+		double grid = home - pv - bat;
+		double homeBat = Math.max(0, bat);
+		double homeGrid = Math.max(0, grid);
+
+		Map<String, Double> values = new LinkedHashMap<String, Double>();
+		values.put("devices:local:pv1/P", pv * 0.6);
+		values.put("devices:local:pv2/P", pv * 0.4);
+		values.put("devices:local:battery/P", bat);
+		values.put("devices:local:battery/SoC", (double) Math.round(soc));
+		values.put("devices:local/Grid_P", grid);
+		values.put("devices:local/Home_P", home);
+		values.put("devices:local/HomeBat_P", homeBat);
+		values.put("devices:local/HomeGrid_P", homeGrid);
+		values.put("devices:local/HomeOwn_P", home - homeBat - homeGrid);
+		values.put("devices:local/PV2Bat_P", Math.max(0, -bat));
+		return values;
+	}
+
+	static String unit(String key) {
+		return key.endsWith("/SoC") ? "%" : "W";
+	}
+
+	private double pv(double hour, int dayOfYear, double dt) {
+		double season = Math.cos(2 * Math.PI * (dayOfYear - SOLSTICE) / YEAR_DAYS);
+		double dayLength = 12 + 4 * season;
+		double sunrise = SOLAR_NOON - dayLength / 2;
+		if (hour <= sunrise || hour >= sunrise + dayLength) return 0;
+
+		// clouds drift slowly, mean reverting to a slightly hazy sky
+		cloud += (0.8 - cloud) * Math.min(1, dt / 3600) + random.nextGaussian() * 0.05 * Math.sqrt(dt / 60);
+		cloud = Math.max(0.15, Math.min(1, cloud));
+
+		double sun = Math.sin(Math.PI * (hour - sunrise) / dayLength);
+		return peakPV * Math.pow(sun, 1.2) * (0.55 + 0.45 * season) * cloud;
+	}
+
+	private double home(double hour, long now, double dt) {
+		// an appliance (kettle, washing machine, oven) every half hour on average
+		if (now >= applianceUntil) {
+			applianceW = 0;
+			if (random.nextDouble() < dt / 1800) {
+				applianceW = 1500 + random.nextDouble() * 1500;
+				applianceUntil = now + 120 + random.nextInt(480);
+			}
+		}
+		return baseLoad + 500 * peak(hour, 7, 0.7) + 1100 * peak(hour, 19, 1.5)
+				+ applianceW + random.nextGaussian() * 20;
+	}
+
+	private static double peak(double hour, double at, double width) {
+		double d = (hour - at) / width;
+		return Math.exp(-d * d / 2);
+	}
+
+}
@@ -0,0 +1,50 @@
+package net.aahso.homehausen.inverter_service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+/*
+ * Optional virtual threads, switched on with spring.threads.virtual.enabled=true
+ * (the same property makes Tomcat serve requests on virtual threads).
+ *
+ * The service is built for Java 17; virtual threads need a Java 21 runtime. On
+ * older runtimes the property is ignored with a warning and everything runs on
+ * platform threads as before.
+ */
+final class VirtualThreads {
+
+	static final String PROPERTY = "spring.threads.virtual.enabled";
+
+	private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+	private static volatile boolean warned = false;
+
+	private VirtualThreads() {
+	}
+
+	static boolean supported() {
+		return Runtime.version().feature() >= 21;
+	}
+
+	// true if virtual threads are requested and the runtime has them
+	static boolean use(boolean requested) {
+		if (!requested) return false;
+		if (supported()) return true;
+		if (!warned) {
+			warned = true;
+			logger.warn(PROPERTY + " needs Java 21 or newer, running on Java " + Runtime.version().feature()
+					+ " with platform threads");
+		}
+		return false;
+	}
+
+	// a new virtual thread per task; close() waits up to terminationMillis for running tasks
+	static SimpleAsyncTaskExecutor executor(String namePrefix, long terminationMillis) {
+		SimpleAsyncTaskExecutor t = new SimpleAsyncTaskExecutor(namePrefix);
+		t.setVirtualThreads(true);
+		t.setTaskTerminationTimeout(terminationMillis);
+		return t;
+	}
+
+}
@@ -1,36 +1,80 @@
 package net.aahso.homehausen.inverter_service;
 
+import java.time.Duration;
+
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.env.Environment;
 import org.springframework.context.annotation.Bean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelOption;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/*
+ * HTTP clients of the inverter and aahso.net, each with its own connection pool
+ * (kept-alive connections, reused across polls), timeout budget and circuit breaker.
+ * Pool metrics: reactor.netty.connection.provider.* (name inverter or aahso),
+ * breaker metrics: inverter.http.breaker.* (tag target).
+ */
 @Configuration
 public class WebClientConfig {
 
 	@Autowired
 	private Environment env;
-	
+
+
+	@Bean(destroyMethod = "dispose")
+	public ConnectionProvider inverterConnections() {
+		return connections("inverter", env.getProperty("app.inverter.connecttimeout", Long.class, 2000L));
+	}
 
 	@Bean
-	public WebClient inverterWebClient(WebClient.Builder builder) {
+	public CircuitBreaker inverterCircuitBreaker(MeterRegistry registry) {
+		return circuitBreaker(env.getProperty("app.inverter.name", "inverter"), registry);
+	}
+
+	@Bean
+	public WebClient inverterWebClient(WebClient.Builder builder, ConnectionProvider inverterConnections,
+					CircuitBreaker inverterCircuitBreaker) {
 		//System.out.println("Inverter API URL: "+env.getProperty("dailysun.inverter.apiurl"));
         return builder
             .baseUrl(env.getProperty("app.inverter.apiurl"))
             .defaultHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE)
             .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+            .clientConnector(connector(inverterConnections,
+            		env.getProperty("app.inverter.connecttimeout", Long.class, 2000L),
+            		env.getProperty("app.inverter.timeout", Long.class, 5000L)))
+            .filter(inverterCircuitBreaker)
             .build();
 	}
-	
+
+	@Bean(destroyMethod = "dispose")
+	public ConnectionProvider aahsoConnections() {
+		return connections("aahso", env.getProperty("app.aahso.connecttimeout", Long.class, 5000L));
+	}
+
 	@Bean
-	public WebClient aahsoWebClient(WebClient.Builder builder) {
+	public CircuitBreaker aahsoCircuitBreaker(MeterRegistry registry) {
+		return circuitBreaker("aahso", registry);
+	}
+
+	@Bean
+	public WebClient aahsoWebClient(WebClient.Builder builder, ConnectionProvider aahsoConnections,
+					CircuitBreaker aahsoCircuitBreaker) {
         return builder
-            .baseUrl("https://aahso.net/o/pv")
+            .baseUrl(env.getProperty("app.aahso.apiurl", "https://aahso.net/o/pv"))
             .defaultHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE)
             .defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+            .clientConnector(connector(aahsoConnections,
+            		env.getProperty("app.aahso.connecttimeout", Long.class, 5000L),
+            		env.getProperty("app.aahso.timeout", Long.class, 10000L)))
+            .filter(aahsoCircuitBreaker)
             .build();
 	}
 
@@ -39,4 +83,32 @@ public class WebClientConfig {
 		return env.getProperty("app.inverter.userpasswordfile");
 	}
 
+	// pool of kept-alive connections per host; waiting for a free one is limited like connecting
+	private ConnectionProvider connections(String name, long connectTimeoutMillis) {
+		return ConnectionProvider.builder(name)
+				.maxConnections(env.getProperty("app.http.maxconnections", Integer.class, 4))
+				.pendingAcquireTimeout(Duration.ofMillis(connectTimeoutMillis))
+				.maxIdleTime(Duration.ofMillis(env.getProperty("app.http.maxidletime", Long.class, 20000L)))
+				.maxLifeTime(Duration.ofMillis(env.getProperty("app.http.maxlifetime", Long.class, 300000L)))
+				.evictInBackground(Duration.ofSeconds(30))
+				.metrics(true)
+				.build();
+	}
+
+	// no response within the timeout fails the request in Netty, so a hung target frees the connection
+	private static ReactorClientHttpConnector connector(ConnectionProvider connections, long connectTimeoutMillis,
+			long responseTimeoutMillis) {
+		HttpClient client = HttpClient.create(connections)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeoutMillis)
+				.option(ChannelOption.SO_KEEPALIVE, true)
+				.keepAlive(true)
+				.responseTimeout(Duration.ofMillis(responseTimeoutMillis));
+		return new ReactorClientHttpConnector(client);
+	}
+
+	private CircuitBreaker circuitBreaker(String target, MeterRegistry registry) {
+		return new CircuitBreaker(target, env.getProperty("app.http.breaker.failures", Integer.class, 5),
+				env.getProperty("app.http.breaker.open", Long.class, 30000L), registry);
+	}
+
 }
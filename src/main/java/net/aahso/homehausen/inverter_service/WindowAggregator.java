@@ -0,0 +1,173 @@
+package net.aahso.homehausen.inverter_service;
+
+import java.lang.invoke.VarHandle;
+
+/*
+ * Streaming aggregates over the most recent data points.
+ *
+ * Every ingested data point updates
+ *  - running sums, so the sum of any suffix is a single subtraction,
+ *  - a sparse table of min/max values, so the min/max of any suffix is
+ *    the min/max of two precomputed power-of-two ranges,
+ *  - a per-second index pointing at the first data point of each second.
+ * A query for the last N seconds (N <= MAX_WINDOW_SECONDS) is therefore answered
+ * in constant time without allocating anything.
+ *
+ * Single writer (the data pump), any number of readers. Readers retry if the
+ * writer changed the aggregates while they were reading (sequence lock).
+ */
+public class WindowAggregator {
+
+	public static final int MAX_WINDOW_SECONDS = 120;
+
+	// per-second index, must cover MAX_WINDOW_SECONDS
+	private static final int SECONDS = 128;
+	// largest window in data points (at least one data point per second)
+	private static final int MAX_SPAN = 128;
+	// sparse table levels: ranges of 1, 2, 4, ... MAX_SPAN data points
+	private static final int LEVELS = 8;
+	// data point history, large enough that all ranges of the sparse table stay valid
+	private static final int SAMPLES = 2 * MAX_SPAN;
+
+	private final SampleSchema schema;
+	// number of metrics
+	private final int fields;
+
+	// running sums before each data point: [slot * fields + field]
+	private final long[] sumBefore;
+	private final long[] sumTimeStampBefore = new long[SAMPLES];
+	private final long[] timeStamps = new long[SAMPLES];
+	// min/max of the range [seq, seq + 2^level): [(level * SAMPLES + slot) * fields + field]
+	private final int[] min;
+	private final int[] max;
+	// first data point (sequence number) with time stamp >= second
+	private final long[] firstSeqAt = new long[SECONDS];
+
+	// writer state
+	private final long[] total;
+	private long totalTimeStamp = 0;
+	private long count = 0;
+	private long lastTimeStamp = Long.MIN_VALUE;
+
+	// odd while the writer is updating
+	private volatile long version = 0;
+
+	public WindowAggregator(SampleSchema schema) {
+		this.schema = schema;
+		this.fields = schema.size();
+		this.sumBefore = new long[SAMPLES * fields];
+		this.min = new int[LEVELS * SAMPLES * fields];
+		this.max = new int[LEVELS * SAMPLES * fields];
+		this.total = new long[fields];
+	}
+
+	public SampleSchema getSchema() {
+		return schema;
+	}
+
+	// ingest data point (single writer only!)
+	public void add(DataPoint dp) {
+		if (dp.getSchema() != schema) throw new IllegalArgumentException("Data point of a different schema");
+		long ts = dp.getTimeStamp();
+
+		long v = version;
+		version = v + 1;
+		VarHandle.storeStoreFence();
+
+		long seq = count;
+		int slot = slot(seq);
+
+		// running sums
+		for (int f = 0; f < fields; f++) {
+			sumBefore[slot * fields + f] = total[f];
+			total[f] += dp.get(f);
+		}
+		sumTimeStampBefore[slot] = totalTimeStamp;
+		totalTimeStamp += ts;
+		timeStamps[slot] = ts;
+
+		// sparse table: level 0 is the value itself, level k combines two ranges of level k-1
+		for (int f = 0; f < fields; f++) {
+			min[idx(0, slot, f)] = dp.get(f);
+			max[idx(0, slot, f)] = dp.get(f);
+		}
+		for (int level = 1; level < LEVELS; level++) {
+			long start = seq - (1L << level) + 1;
+			if (start < 0) break;
+			int a = slot(start);
+			int b = slot(start + (1L << (level - 1)));
+			for (int f = 0; f < fields; f++) {
+				min[idx(level, a, f)] = Math.min(min[idx(level - 1, a, f)], min[idx(level - 1, b, f)]);
+				max[idx(level, a, f)] = Math.max(max[idx(level - 1, a, f)], max[idx(level - 1, b, f)]);
+			}
+		}
+
+		// per-second index: all seconds since the previous data point start here
+		if (ts > lastTimeStamp) {
+			long from = Math.max(lastTimeStamp + 1, ts - SECONDS + 1);
+			for (long sec = from; sec <= ts; sec++) {
+				firstSeqAt[(int) Math.floorMod(sec, (long) SECONDS)] = seq;
+			}
+			lastTimeStamp = ts;
+		}
+		count = seq + 1;
+
+		version = v + 2;
+	}
+
+	// aggregates of all data points with time stamp >= now - seconds; false if there are none
+	public boolean query(int seconds, long now, WindowStats out) {
+		if (seconds < 0 || seconds > MAX_WINDOW_SECONDS)
+			throw new IllegalArgumentException("window must be 0.." + MAX_WINDOW_SECONDS + " seconds: " + seconds);
+		if (out.schema != schema) throw new IllegalArgumentException("Window stats of a different schema");
+
+		while (true) {
+			long v = version;
+			if ((v & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			read(seconds, now, out);
+			VarHandle.acquireFence();
+			if (version == v) return out.count > 0;
+		}
+	}
+
+	private void read(int seconds, long now, WindowStats out) {
+		out.count = 0;
+		long n = count;
+		long last = lastTimeStamp;
+		long threshold = Math.max(now - seconds, last - SECONDS + 1);
+		if (n == 0 || threshold > last) return;
+
+		long hi = n - 1;
+		long lo = Math.max(firstSeqAt[(int) Math.floorMod(threshold, (long) SECONDS)], hi - MAX_SPAN + 1);
+		if (lo > hi || lo < 0) return;	// torn read, caller retries
+		int loSlot = slot(lo);
+		int hiSlot = slot(hi);
+
+		int len = (int) (hi - lo + 1);
+		int level = 31 - Integer.numberOfLeadingZeros(len);
+		int a = loSlot;
+		int b = slot(hi - (1L << level) + 1);
+
+		for (int f = 0; f < fields; f++) {
+			out.sum[f] = total[f] - sumBefore[loSlot * fields + f];
+			out.min[f] = Math.min(min[idx(level, a, f)], min[idx(level, b, f)]);
+			out.max[f] = Math.max(max[idx(level, a, f)], max[idx(level, b, f)]);
+		}
+		out.sumTimeStamp = totalTimeStamp - sumTimeStampBefore[loSlot];
+		out.firstTimeStamp = timeStamps[loSlot];
+		out.lastTimeStamp = timeStamps[hiSlot];
+		out.count = len;
+	}
+
+	private static int slot(long seq) {
+		return (int) (seq & (SAMPLES - 1));
+	}
+
+	private int idx(int level, int slot, int field) {
+		return (level * SAMPLES + slot) * fields + field;
+	}
+
+}
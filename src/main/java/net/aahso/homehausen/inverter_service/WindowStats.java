@@ -0,0 +1,115 @@
+package net.aahso.homehausen.inverter_service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/*
+ * Count, sum, min and max of the data points of a time window.
+ * Filled by WindowAggregator and the rollup tiers; instances can be reused.
+ */
+public class WindowStats {
+
+	final SampleSchema schema;
+
+	int count;
+	long firstTimeStamp;
+	long lastTimeStamp;
+	long sumTimeStamp;
+	// one entry per metric of the schema
+	final long[] sum;
+	final int[] min;
+	final int[] max;
+
+	public WindowStats(SampleSchema schema) {
+		this.schema = schema;
+		this.sum = new long[schema.size()];
+		this.min = new int[schema.size()];
+		this.max = new int[schema.size()];
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getFrom() {
+		return firstTimeStamp;
+	}
+
+	public long getTo() {
+		return lastTimeStamp;
+	}
+
+	public DataPoint getAverage() {
+		if (count == 0) return null;
+		int[] values = new int[sum.length];
+		for (int m = 0; m < values.length; m++) values[m] = (int) (sum[m] / count);
+		return new DataPoint(schema, sumTimeStamp / count, values);
+	}
+
+	public DataPoint getMin() {
+		if (count == 0) return null;
+		return new DataPoint(schema, firstTimeStamp, min.clone());
+	}
+
+	public DataPoint getMax() {
+		if (count == 0) return null;
+		return new DataPoint(schema, lastTimeStamp, max.clone());
+	}
+
+	@JsonIgnore
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	void reset() {
+		count = 0;
+		firstTimeStamp = 0;
+		lastTimeStamp = 0;
+		sumTimeStamp = 0;
+		for (int m = 0; m < sum.length; m++) {
+			sum[m] = 0;
+			min[m] = 0;
+			max[m] = 0;
+		}
+	}
+
+	// add a data point (data points must be added in time order)
+	void add(DataPoint dp) {
+		if (count == 0) {
+			firstTimeStamp = dp.getTimeStamp();
+			for (int m = 0; m < sum.length; m++) {
+				min[m] = dp.get(m);
+				max[m] = dp.get(m);
+			}
+		}
+		for (int m = 0; m < sum.length; m++) {
+			int value = dp.get(m);
+			sum[m] += value;
+			if (value < min[m]) min[m] = value;
+			if (value > max[m]) max[m] = value;
+		}
+		sumTimeStamp += dp.getTimeStamp();
+		lastTimeStamp = dp.getTimeStamp();
+		count++;
+	}
+
+	// add the data points of another window (windows must be merged in time order)
+	void merge(WindowStats other) {
+		if (other.count == 0) return;
+		if (count == 0) {
+			firstTimeStamp = other.firstTimeStamp;
+			for (int m = 0; m < sum.length; m++) {
+				min[m] = other.min[m];
+				max[m] = other.max[m];
+			}
+		}
+		for (int m = 0; m < sum.length; m++) {
+			sum[m] += other.sum[m];
+			if (other.min[m] < min[m]) min[m] = other.min[m];
+			if (other.max[m] > max[m]) max[m] = other.max[m];
+		}
+		sumTimeStamp += other.sumTimeStamp;
+		lastTimeStamp = other.lastTimeStamp;
+		count += other.count;
+	}
+
+}
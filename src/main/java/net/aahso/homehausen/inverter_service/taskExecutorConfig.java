@@ -1,5 +1,8 @@
 package net.aahso.homehausen.inverter_service;
 
+import java.util.Arrays;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.task.TaskExecutor;
@@ -8,22 +11,23 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 @Configuration
 public class taskExecutorConfig {
 
+    // one thread per long running worker: data file writer of every inverter, uploader, spare
     @Bean
-    public TaskExecutor taskExecutor() {
+    public TaskExecutor taskExecutor(@Value("${app.devices:}") String devices,
+                    @Value("${" + VirtualThreads.PROPERTY + ":false}") boolean virtual) {
+            // virtual threads: no pool, a thread per worker; waits for them on shutdown like the pool
+            if (VirtualThreads.use(virtual)) return VirtualThreads.executor("inverter-datapump-", 5000);
+
+            int workers = 3 + (int) Arrays.stream(devices.split(",")).filter(d -> !d.isBlank()).count();
             ThreadPoolTaskExecutor t = new ThreadPoolTaskExecutor();
-            t.setCorePoolSize(2);
-            t.setMaxPoolSize(3);
+            t.setCorePoolSize(workers);
+            t.setMaxPoolSize(workers);
             t.setThreadNamePrefix("inverter-datapump-");
             // Ensure the executor attempts to stop tasks on context shutdown
             t.setWaitForTasksToCompleteOnShutdown(true);
             t.setAwaitTerminationSeconds(5);
             // Create daemon threads so JVM can exit if something blocks shutdown
-            t.setThreadFactory(r -> {
-                Thread th = new Thread(r);
-                th.setDaemon(true);
-                th.setName("inverter-datapump-" + System.nanoTime());
-                return th;
-            });
+            t.setDaemon(true);
             t.initialize();
             return t;
     }
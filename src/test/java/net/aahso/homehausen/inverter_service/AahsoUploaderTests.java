@@ -0,0 +1,132 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class AahsoUploaderTests {
+
+	@TempDir
+	Path dir;
+
+	private HttpServer server;
+	private final List<String> received = new CopyOnWriteArrayList<String>();
+	// requests the stub rejects before accepting again
+	private final AtomicInteger failNext = new AtomicInteger();
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+	@BeforeEach
+	void startStub() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/send_data.php", exchange -> {
+			String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			int status = failNext.getAndUpdate(n -> Math.max(0, n - 1)) > 0 ? 503 : 200;
+			if (status == 200) received.add(body);
+			exchange.sendResponseHeaders(status, -1);
+			exchange.close();
+		});
+		server.start();
+	}
+
+	@AfterEach
+	void stopStub() {
+		server.stop(0);
+	}
+
+	private AahsoUploader uploader(int batchSize) {
+		WebClient client = WebClient.create("http://127.0.0.1:" + server.getAddress().getPort());
+		AahsoUploader uploader = new AahsoUploader(client, dir.toString(), SampleSchema.CORE, batchSize, 1000,
+				2000, 20, 100, task -> new Thread(task).start(), registry);
+		uploader.start();
+		return uploader;
+	}
+
+	private static void awaitUploaded(AahsoUploader uploader, long count) throws InterruptedException {
+		for (int i = 0; i < 500 && uploader.getUploaded() < count; i++) Thread.sleep(10);
+		assertEquals(count, uploader.getUploaded());
+	}
+
+	@Test
+	void singleDataPointsAreObjects() throws Exception {
+		AahsoUploader uploader = uploader(1);
+		uploader.offer(new DataPoint(1000, 1, 2, 3, 4, 5));
+		awaitUploaded(uploader, 1);
+		uploader.stopThread();
+
+		JsonNode json = new ObjectMapper().readTree(received.get(0));
+		assertTrue(json.isObject());
+		assertEquals(1, json.get("PV").asInt());
+		assertEquals(5, json.get("Battery_Level").asInt());
+	}
+
+	@Test
+	void retriesInBatchesWithoutLosingData() throws Exception {
+		failNext.set(3);
+		AahsoUploader uploader = uploader(4);
+		for (int i = 0; i < 10; i++) uploader.offer(new DataPoint(1000 + i, i, 0, 0, 0, 0));
+		awaitUploaded(uploader, 10);
+		uploader.stopThread();
+
+		assertTrue(uploader.getFailures() >= 3);
+		assertEquals(0, uploader.getPending());
+		assertEquals(uploader.getFailures(), registry.get("inverter.upload.failures").functionCounter().count());
+		assertEquals(uploader.getRequests() - uploader.getFailures(), registry.get("inverter.upload").timer().count());
+		int next = 0;
+		for (String body : received) {
+			JsonNode batch = new ObjectMapper().readTree(body);
+			assertTrue(batch.size() <= 4);
+			for (JsonNode dp : batch) assertEquals(next++, dp.get("PV").asInt());
+		}
+		assertEquals(10, next);
+	}
+
+	@Test
+	void fullQueueDropsAndCounts() throws Exception {
+		WebClient client = WebClient.create("http://127.0.0.1:" + server.getAddress().getPort());
+		// sender never runs, nothing leaves the queue
+		AahsoUploader uploader = new AahsoUploader(client, dir.toString(), SampleSchema.CORE, 1, 2,
+				2000, 20, 100, task -> {}, registry);
+		uploader.start();
+		assertTrue(uploader.offer(new DataPoint(1000, 1, 0, 0, 0, 0)));
+		assertTrue(uploader.offer(new DataPoint(1001, 2, 0, 0, 0, 0)));
+		assertFalse(uploader.offer(new DataPoint(1002, 3, 0, 0, 0, 0)));
+		assertEquals(1, uploader.getLost());
+		assertEquals(2.0, registry.get("inverter.upload.queue").gauge().value());
+	}
+
+	@Test
+	void pendingDataPointsSurviveRestart() throws Exception {
+		failNext.set(Integer.MAX_VALUE);
+		AahsoUploader uploader = uploader(10);
+		for (int i = 0; i < 3; i++) uploader.offer(new DataPoint(1000 + i, i, 0, 0, 0, 0));
+		uploader.stopThread();
+		assertEquals(3, uploader.getPending());
+
+		failNext.set(0);
+		AahsoUploader restarted = uploader(10);
+		awaitUploaded(restarted, 3);
+		restarted.stopThread();
+		assertEquals(3, new ObjectMapper().readTree(received.get(0)).size());
+	}
+
+}
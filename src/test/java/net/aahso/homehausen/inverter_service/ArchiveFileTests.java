@@ -0,0 +1,120 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ArchiveFileTests {
+
+	@TempDir
+	Path dir;
+
+	private static final String ARCHIVE_FILE = "archive.bin";
+	private static final long START = 1_700_000_000L - 1_700_000_000L % 86400;
+
+	// a day of the simulated plant at 3 seconds, with a few missed polls
+	static List<DataPoint> day(long from) {
+		SimulatedPlant plant = new SimulatedPlant(9000, 10000, 5000, 300, new Random(1));
+		List<DataPoint> dps = new ArrayList<DataPoint>();
+		for (long ts = from; ts < from + 86400; ts += ts % 997 == 0 ? 6 : 3) {
+			Map<String, Double> v = plant.read(ZonedDateTime.ofInstant(Instant.ofEpochSecond(ts), ZoneId.of("Europe/Berlin")));
+			dps.add(new DataPoint(ts, (int) (v.get("devices:local:pv1/P") + v.get("devices:local:pv2/P")),
+					v.get("devices:local/Grid_P").intValue(), v.get("devices:local:battery/P").intValue(),
+					v.get("devices:local/Home_P").intValue(), v.get("devices:local:battery/SoC").intValue()));
+		}
+		return dps;
+	}
+
+	static void assertSame(List<DataPoint> expected, List<DataPoint> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			DataPoint e = expected.get(i);
+			DataPoint a = actual.get(i);
+			assertEquals(e.getTimeStamp(), a.getTimeStamp());
+			for (int m = 0; m < e.getSchema().size(); m++) assertEquals(e.get(m), a.get(m));
+		}
+	}
+
+	@Test
+	void blocksRoundTripWithFooter() throws IOException {
+		Path file = dir.resolve(ARCHIVE_FILE);
+		List<DataPoint> first = List.of(new DataPoint(1000, 0, -5000, Integer.MAX_VALUE, 7, 100),
+				new DataPoint(1003, 12, 4000, Integer.MIN_VALUE, 7, 99),
+				new DataPoint(1001, 3, 0, 0, 7, 98));
+		List<DataPoint> second = List.of(new DataPoint(5000, 1, 2, 3, 4, 5));
+		try (ArchiveWriter writer = ArchiveWriter.open(file, SampleSchema.CORE)) {
+			writer.append(first);
+			writer.append(second);
+		}
+
+		try (ArchiveReader reader = ArchiveReader.open(file, SampleSchema.CORE)) {
+			assertEquals(2, reader.blocks());
+			assertEquals(4, reader.count());
+			assertEquals(1000, reader.firstTimeStamp(0));
+			assertEquals(1001, reader.lastTimeStamp(0));
+			assertEquals(5000, reader.lastTimeStamp());
+			assertEquals(-5000, reader.min(0, 1));
+			assertEquals(4000, reader.max(0, 1));
+			assertEquals(1, reader.firstBlock(1002));
+			assertSame(first, reader.read(0));
+			assertSame(second, reader.read(1));
+		}
+	}
+
+	@Test
+	void tornBlockIsIgnoredAndTruncated() throws IOException {
+		Path file = dir.resolve(ARCHIVE_FILE);
+		try (ArchiveWriter writer = ArchiveWriter.open(file, SampleSchema.CORE)) {
+			writer.append(day(START).subList(0, 1200));
+		}
+		long size = Files.size(file);
+		try (ArchiveWriter writer = ArchiveWriter.open(file, SampleSchema.CORE)) {
+			writer.append(day(START).subList(1200, 2400));
+		}
+		// crash in the middle of the second block
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(Files.size(file) - 10);
+		}
+
+		try (ArchiveReader reader = ArchiveReader.open(file, SampleSchema.CORE)) {
+			assertEquals(1, reader.blocks());
+		}
+		try (ArchiveWriter writer = ArchiveWriter.open(file, SampleSchema.CORE)) {
+			assertEquals(size, Files.size(file));
+			assertEquals(day(START).get(1199).getTimeStamp(), writer.getLastTimeStamp());
+		}
+	}
+
+	@Test
+	void archiveIsMigratedWhenMetricsChange() throws IOException {
+		Path file = dir.resolve(ARCHIVE_FILE);
+		try (ArchiveWriter writer = ArchiveWriter.open(file, SampleSchema.CORE)) {
+			writer.append(List.of(new DataPoint(1000, 1, 2, 3, 4, 5)));
+		}
+		try (ArchiveWriter writer = ArchiveWriter.open(file, SampleSchema.DEFAULT)) {
+			assertEquals(1000, writer.getLastTimeStamp());
+		}
+		try (ArchiveReader reader = ArchiveReader.open(file, SampleSchema.DEFAULT)) {
+			assertArrayEquals(SampleSchema.DEFAULT.names(), reader.names());
+			DataPoint dp = reader.read(0).get(0);
+			assertEquals(4, dp.get(SampleSchema.DEFAULT.indexOf(SampleSchema.USE_HOME)));
+			assertEquals(0, dp.get(SampleSchema.DEFAULT.size() - 1));
+		}
+	}
+
+}
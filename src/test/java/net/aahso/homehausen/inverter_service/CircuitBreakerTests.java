@@ -0,0 +1,126 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+class CircuitBreakerTests {
+
+	private static final ClientRequest REQUEST = ClientRequest.create(HttpMethod.POST, URI.create("http://inverter/api/v1/processdata")).build();
+
+	private final AtomicLong nanos = new AtomicLong();
+	private final AtomicInteger sent = new AtomicInteger();
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final CircuitBreaker breaker = new CircuitBreaker("inverter", 3, 30000, registry, nanos::get);
+
+	// target answering with the status, or not at all (null)
+	private ExchangeFunction target(HttpStatus status) {
+		return request -> {
+			sent.incrementAndGet();
+			if (status == null) return Mono.error(new IOException("Connection refused"));
+			return Mono.just(ClientResponse.create(status).build());
+		};
+	}
+
+	private HttpStatus call(HttpStatus status) {
+		return HttpStatus.valueOf(breaker.filter(REQUEST, target(status)).block().statusCode().value());
+	}
+
+	private void fail() {
+		assertThrows(Exception.class, () -> breaker.filter(REQUEST, target(null)).block());
+	}
+
+	@Test
+	void opensAfterFailuresInARowAndFailsFast() {
+		fail();
+		fail();
+		// a success starts counting again, 401 is a working inverter
+		assertEquals(HttpStatus.UNAUTHORIZED, call(HttpStatus.UNAUTHORIZED));
+		fail();
+		fail();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, call(HttpStatus.SERVICE_UNAVAILABLE));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(6, sent.get());
+
+		Exception e = assertThrows(Exception.class, () -> breaker.filter(REQUEST, target(HttpStatus.OK)).block());
+		assertEquals(CircuitBreaker.CircuitOpenException.class, e.getCause().getClass());
+		assertEquals(6, sent.get());
+		assertEquals(1, breaker.getRejected());
+		assertEquals(2.0, registry.get("inverter.http.breaker.state").tag("target", "inverter").gauge().value());
+		assertEquals(1.0, registry.get("inverter.http.breaker.opened").functionCounter().count());
+	}
+
+	@Test
+	void halfOpenLetsOneProbeThrough() {
+		for (int i = 0; i < 3; i++) fail();
+		nanos.addAndGet(Duration.ofSeconds(30).toNanos());
+
+		// the probe hangs: other requests still fail fast
+		Mono<ClientResponse> probe = breaker.filter(REQUEST, request -> Mono.never());
+		probe.subscribe();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertThrows(Exception.class, () -> breaker.filter(REQUEST, target(HttpStatus.OK)).block());
+		assertEquals(1, breaker.getRejected());
+		// the rejected request was not sent
+		assertEquals(3, sent.get());
+	}
+
+	@Test
+	void failedProbeOpensAgainSuccessfulProbeCloses() {
+		for (int i = 0; i < 3; i++) fail();
+		nanos.addAndGet(Duration.ofSeconds(30).toNanos());
+		// a probe cancelled by the caller's timeout counts as failed
+		assertThrows(Exception.class, () -> breaker.filter(REQUEST, request -> Mono.never()).timeout(Duration.ofMillis(10)).block());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(2, breaker.getOpened());
+
+		nanos.addAndGet(Duration.ofSeconds(29).toNanos());
+		assertThrows(Exception.class, () -> breaker.filter(REQUEST, target(HttpStatus.OK)).block());
+		nanos.addAndGet(Duration.ofSeconds(1).toNanos());
+		assertEquals(HttpStatus.OK, call(HttpStatus.OK));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(HttpStatus.OK, call(HttpStatus.OK));
+	}
+
+	@Test
+	void lateOutcomeOfAnEarlierRequestIsIgnored() {
+		// started while closed, answers only after the breaker opened
+		Sinks.One<ClientResponse> slow = Sinks.one();
+		breaker.filter(REQUEST, request -> slow.asMono()).subscribe();
+		for (int i = 0; i < 3; i++) fail();
+		nanos.addAndGet(Duration.ofSeconds(30).toNanos());
+		breaker.filter(REQUEST, request -> Mono.never()).subscribe();
+
+		// its success does not close the breaker while the probe is out
+		slow.tryEmitValue(ClientResponse.create(HttpStatus.OK).build());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertThrows(Exception.class, () -> breaker.filter(REQUEST, target(HttpStatus.OK)).block());
+	}
+
+	@Test
+	void otherTargetHasItsOwnState() {
+		CircuitBreaker garage = breaker.forTarget("garage");
+		for (int i = 0; i < 3; i++) fail();
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.State.CLOSED, garage.getState());
+		assertEquals(0.0, registry.get("inverter.http.breaker.state").tag("target", "garage").gauge().value());
+	}
+
+}
@@ -0,0 +1,133 @@
+package net.aahso.homehausen.inverter_service;
+
+import static net.aahso.homehausen.inverter_service.ArchiveFileTests.assertSame;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class DataExportTests {
+
+	@TempDir
+	Path dir;
+
+	private static final long START = LocalDate.of(2024, 1, 20).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final List<DataPoint> all = new ArrayList<DataPoint>();
+	private RawHistory raw;
+	private DataExport export;
+
+	// two days sealed into segments, the third one still in the data file
+	@BeforeEach
+	void setUp() throws IOException {
+		for (int d = 0; d < 3; d++) all.addAll(ArchiveFileTests.day(START + d * 86400L));
+		try (DataFileWriter writer = DataFileWriter.open(dir.resolve(DataPointWriter.DATA_FILE), SampleSchema.CORE)) {
+			for (DataPoint dp : all) writer.append(dp);
+		}
+		raw = new RawHistory(dir, SampleSchema.CORE, ZoneOffset.UTC);
+		raw.open();
+		raw.seal(START + 2 * 86400);
+		export = new DataExport(raw, SampleSchema.CORE, ZoneOffset.UTC, objectMapper);
+	}
+
+	private String text(DataExport.Format format, long from, long to) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		export.write(format, from, to, out);
+		return out.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void csvHasAHeaderAndOneLinePerDataPoint() throws IOException {
+		// from the middle of the second day into the third
+		long from = START + 86400 + 5000;
+		long to = START + 2 * 86400 + 7000;
+		List<DataPoint> expected = raw.range(from, to);
+		String[] lines = text(DataExport.Format.CSV, from, to).split("\n");
+
+		assertEquals(expected.size() + 1, lines.length);
+		assertEquals("timeStamp,time," + String.join(",", SampleSchema.CORE.names()), lines[0]);
+		DataPoint first = expected.get(0);
+		String[] fields = lines[1].split(",");
+		assertEquals(String.valueOf(first.getTimeStamp()), fields[0]);
+		assertEquals(Instant.ofEpochSecond(first.getTimeStamp()).toString(), fields[1]);
+		for (int m = 0; m < SampleSchema.CORE.size(); m++) assertEquals(String.valueOf(first.get(m)), fields[m + 2]);
+		assertEquals(String.valueOf(expected.get(expected.size() - 1).getTimeStamp()), lines[lines.length - 1].split(",")[0]);
+	}
+
+	@Test
+	void jsonLinesAreOneObjectEach() throws IOException {
+		long from = START + 80000;
+		long to = START + 90000;
+		List<DataPoint> expected = raw.range(from, to);
+		String[] lines = text(DataExport.Format.JSONL, from, to).split("\n");
+
+		assertEquals(expected.size(), lines.length);
+		// as /data/latest has them, no separator before the next line
+		for (int i = 0; i < lines.length; i++) assertEquals(objectMapper.writeValueAsString(expected.get(i)), lines[i]);
+	}
+
+	@Test
+	void binaryIsAnArchiveFileOfTheRange() throws IOException {
+		// cuts blocks at both ends, spans both segments and the data file
+		long from = START + 1800;
+		long to = START + 2 * 86400 + 5400;
+		Path file = dir.resolve("export.bin");
+		try (OutputStream out = Files.newOutputStream(file)) {
+			assertEquals(-1, export.write(DataExport.Format.BINARY, from, to, out));
+		}
+
+		List<DataPoint> read = new ArrayList<DataPoint>();
+		try (ArchiveReader reader = ArchiveReader.open(file, SampleSchema.CORE)) {
+			for (int b = 0; b < reader.blocks(); b++) read.addAll(reader.read(b));
+			// 24 hours a day, the cut first hour, one and a half hours of the third day
+			assertEquals(24 + 24 + 2, reader.blocks());
+		}
+		assertSame(raw.range(from, to), read);
+		assertEquals(all.stream().filter(dp -> dp.getTimeStamp() >= from && dp.getTimeStamp() < to).count(), read.size());
+	}
+
+	@Test
+	void writeAndReadFailuresAreTold() throws IOException {
+		OutputStream gone = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("Broken pipe");
+			}
+		};
+		assertThrows(DataExport.ClientWriteException.class, () -> export.write(DataExport.Format.BINARY, START, START + 86400, gone));
+
+		// a segment file lost: not the client's fault
+		Files.delete(dir.resolve("archive").resolve("2024-01-21.bin"));
+		IOException e = assertThrows(IOException.class,
+				() -> export.write(DataExport.Format.CSV, START + 86400, START + 2 * 86400, new ByteArrayOutputStream()));
+		assertFalse(e instanceof DataExport.ClientWriteException);
+	}
+
+	@Test
+	void unknownFormatIsNull() {
+		assertEquals(DataExport.Format.JSONL, DataExport.Format.of("jsonl"));
+		assertEquals(DataExport.Format.BINARY, DataExport.Format.of("Binary"));
+		assertNull(DataExport.Format.of("xml"));
+		assertNull(DataExport.Format.of(null));
+	}
+
+}
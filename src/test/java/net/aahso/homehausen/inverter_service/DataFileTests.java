@@ -0,0 +1,156 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DataFileTests {
+
+	@TempDir
+	Path dir;
+
+	private void write(Path file, long fromTs, int count) throws IOException {
+		try (DataFileWriter writer = DataFileWriter.open(file, SampleSchema.CORE)) {
+			for (int i = 0; i < count; i++) {
+				writer.append(new DataPoint(fromTs + 3 * i, i, -i, 2 * i, 3 * i, i % 101));
+			}
+		}
+	}
+
+	@Test
+	void writeAndReadBack() throws IOException {
+		Path file = dir.resolve("samples.bin");
+		write(file, 1000, 100);
+		write(file, 1300, 100);
+
+		assertEquals(DataFile.header(SampleSchema.CORE).remaining() + 200 * DataFile.recordSize(5), Files.size(file));
+		try (DataFileReader reader = DataFileReader.open(file, SampleSchema.CORE)) {
+			assertEquals(200, reader.count());
+			DataPoint dp = reader.read(150);
+			assertEquals(1300 + 3 * 50, dp.getTimeStamp());
+			assertEquals(50, dp.getFromPV());
+			assertEquals(-50, dp.getFromGrid());
+			assertEquals(150, dp.getUseHome());
+		}
+	}
+
+	@Test
+	void binarySearchByTimeStamp() throws IOException {
+		Path file = dir.resolve("samples.bin");
+		write(file, 1000, 1000);
+
+		try (DataFileReader reader = DataFileReader.open(file, SampleSchema.CORE)) {
+			assertEquals(0, reader.lowerBound(0));
+			assertEquals(10, reader.lowerBound(1030));
+			assertEquals(11, reader.lowerBound(1031));
+			assertEquals(1000, reader.lowerBound(5000));
+
+			List<DataPoint> range = reader.range(1030, 1060);
+			assertEquals(10, range.size());
+			assertEquals(1030, range.get(0).getTimeStamp());
+			assertEquals(1057, range.get(9).getTimeStamp());
+		}
+	}
+
+	@Test
+	void tornRecordIsTruncatedOnOpen() throws IOException {
+		Path file = dir.resolve("samples.bin");
+		write(file, 1000, 10);
+		Files.write(file, new byte[] { 1, 2, 3 }, StandardOpenOption.APPEND);
+
+		try (DataFileReader reader = DataFileReader.open(file, SampleSchema.CORE)) {
+			assertEquals(10, reader.count());
+		}
+		write(file, 2000, 1);
+		try (DataFileReader reader = DataFileReader.open(file, SampleSchema.CORE)) {
+			assertEquals(11, reader.count());
+			assertEquals(2000, reader.read(10).getTimeStamp());
+		}
+	}
+
+	@Test
+	void zeroFilledTailIsIgnoredAndTruncated() throws IOException {
+		Path file = dir.resolve("samples.bin");
+		write(file, 1000, 10);
+		// power loss: file size written, the data not
+		Files.write(file, new byte[2 * DataFile.recordSize(5) + 5], StandardOpenOption.APPEND);
+
+		try (DataFileReader reader = DataFileReader.open(file, SampleSchema.CORE)) {
+			assertEquals(10, reader.count());
+			assertEquals(5, reader.lowerBound(1015));
+		}
+		write(file, 2000, 1);
+		try (DataFileReader reader = DataFileReader.open(file, SampleSchema.CORE)) {
+			assertEquals(11, reader.count());
+			assertEquals(2000, reader.read(10).getTimeStamp());
+		}
+	}
+
+	@Test
+	void convertJsonLines() throws IOException {
+		Path json = dir.resolve("inverter_data.dat");
+		Files.writeString(json,
+				"{\"timeStamp\":1000,\"fromPV\":1,\"fromGrid\":2,\"fromBat\":3,\"useHome\":4,\"levelBat\":5}\n"
+				+ "{\"timeStamp\":1003,\"fromPV\":6,\"fromGrid\":7,\"fromBat\":8,\"useHome\":9,\"levelBat\":10}\n"
+				+ "{\"fromPV\":6}\n"
+				+ "{\"timeStamp\":\"yesterday\"}\n"
+				+ "[1004]\n"
+				+ "{\"timeStamp\":1006,\"fromPV\":6,\"fr");
+		Path file = dir.resolve("samples.bin");
+
+		assertEquals(2, JsonLinesConverter.convert(json, file, SampleSchema.CORE));
+		try (DataFileReader reader = DataFileReader.open(file, SampleSchema.CORE)) {
+			assertEquals(2, reader.count());
+			assertEquals(9, reader.read(1).getUseHome());
+		}
+	}
+
+	@Test
+	void fileIsMigratedWhenMetricsChange() throws IOException {
+		Path file = dir.resolve("samples.bin");
+		write(file, 1000, 10);
+
+		// default schema adds four metrics, existing records get 0 for them
+		try (DataFileWriter writer = DataFileWriter.open(file, SampleSchema.DEFAULT)) {
+			writer.append(new DataPoint(SampleSchema.DEFAULT, 2000, new int[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 }));
+		}
+		try (DataFileReader reader = DataFileReader.open(file, SampleSchema.DEFAULT)) {
+			assertEquals(11, reader.count());
+			assertEquals(5, reader.read(5).getFromPV());
+			assertEquals(0, reader.read(5).get("homeOwn"));
+			assertEquals(7, reader.read(10).get("homeOwn"));
+		}
+
+		// readers of the old schema still find their metrics by name
+		try (DataFileReader reader = DataFileReader.open(file, SampleSchema.CORE)) {
+			assertEquals(5, reader.read(10).getLevelBat());
+		}
+	}
+
+	@Test
+	void rollupFileIsMigratedWhenMetricsChange() throws IOException {
+		Path file = dir.resolve("rollup-60.bin");
+		try (RollupFile rollup = RollupFile.open(file, 60, SampleSchema.CORE)) {
+			WindowStats row = new WindowStats(SampleSchema.CORE);
+			row.add(new DataPoint(1000, 1, 2, 3, 4, 5));
+			rollup.append(960, row);
+		}
+
+		try (RollupFile rollup = RollupFile.open(file, 60, SampleSchema.DEFAULT)) {
+			assertEquals(1, rollup.count());
+			rollup.forEach(0, Long.MAX_VALUE, (bucketStart, row) -> {
+				assertEquals(960, bucketStart);
+				assertEquals(4, row.getAverage().getUseHome());
+				assertEquals(0, row.getMax().get("pv2Bat"));
+			});
+		}
+	}
+
+}
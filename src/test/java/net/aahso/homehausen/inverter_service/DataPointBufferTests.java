@@ -0,0 +1,76 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+class DataPointBufferTests {
+
+	private static DataPoint dp(long ts, int v) {
+		return new DataPoint(ts, v, v, v, v, v);
+	}
+
+	@Test
+	void emptyBuffer() {
+		DataPointBuffer buffer = new DataPointBuffer(SampleSchema.CORE, 4);
+		assertNull(buffer.latest());
+		assertTrue(buffer.since(0).isEmpty());
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	void overwritesOldestWhenFull() {
+		DataPointBuffer buffer = new DataPointBuffer(SampleSchema.CORE, 4);
+		for (int i = 1; i <= 10; i++) buffer.add(dp(100 + i, i));
+
+		assertEquals(4, buffer.size());
+		assertEquals(110, buffer.latest().getTimeStamp());
+
+		List<DataPoint> all = buffer.since(0);
+		assertEquals(4, all.size());
+		assertEquals(110, all.get(0).getTimeStamp());
+		assertEquals(107, all.get(3).getTimeStamp());
+	}
+
+	@Test
+	void sinceStopsAtThreshold() {
+		DataPointBuffer buffer = new DataPointBuffer(SampleSchema.CORE, 100);
+		for (int i = 0; i < 50; i++) buffer.add(dp(1000 + 3 * i, i));
+
+		List<DataPoint> recent = buffer.since(1147 - 30);
+		assertEquals(11, recent.size());
+		assertEquals(49, recent.get(0).getFromPV());
+		assertEquals(39, recent.get(10).getFromPV());
+	}
+
+	@Test
+	void readersNeverSeeTornDataPoints() throws Exception {
+		DataPointBuffer buffer = new DataPointBuffer(SampleSchema.CORE, 8);
+		AtomicReference<String> failure = new AtomicReference<>();
+
+		Thread writer = new Thread(() -> {
+			for (int i = 0; i < 2_000_000; i++) buffer.add(dp(i, i));
+		});
+		Thread reader = new Thread(() -> {
+			while (writer.isAlive()) {
+				for (DataPoint d : buffer.since(0)) {
+					if (d.getFromPV() != d.getTimeStamp() || d.getLevelBat() != d.getTimeStamp()) {
+						failure.set("torn data point at " + d.getTimeStamp());
+					}
+				}
+			}
+		});
+		writer.start();
+		reader.start();
+		writer.join();
+		reader.join();
+
+		assertNull(failure.get());
+	}
+
+}
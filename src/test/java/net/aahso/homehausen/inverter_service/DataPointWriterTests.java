@@ -0,0 +1,40 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class DataPointWriterTests {
+
+	@TempDir
+	Path dir;
+
+	private static final long START = 1_700_000_000L - 1_700_000_000L % 86400;
+	private static final int COUNT = 300000;
+
+	@Test
+	void shutdownDuringAWriteKeepsTheBatch() throws Exception {
+		HistoryStore store = new HistoryStore(dir.toString(), SampleSchema.CORE, 300);
+		DataPointWriter writer = new DataPointWriter(dir.toString(), "", COUNT, 0, "batch", 60000, 0, 31,
+				task -> new Thread(task).start(), store, SampleSchema.CORE, new SimpleMeterRegistry(), "inverter");
+		// ten days, one data point every 3 s
+		for (int i = 0; i < COUNT; i++) {
+			long ts = START + 3L * i;
+			writer.offer(new DataPoint(ts, (int) (ts % 1000), 0, 0, 500, 50));
+		}
+		writer.start();
+
+		// the writer took the batch: stop it while it writes and seals
+		while (writer.getQueueDepth() > 0) Thread.sleep(1);
+		writer.stopThread();
+
+		assertEquals(0, writer.getWriteErrors());
+		assertEquals(COUNT, new RawHistory(dir, SampleSchema.CORE).range(0, Long.MAX_VALUE).size());
+	}
+
+}
@@ -0,0 +1,105 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class EnergyIntegratorTests {
+
+	@TempDir
+	Path dir;
+
+	private static final ZoneId ZONE = ZoneId.of("Europe/Berlin");
+	// 2026-06-30 23:00 local time
+	private static final long START = ZonedDateTime.of(2026, 6, 30, 23, 0, 0, 0, ZONE).toEpochSecond();
+
+	private final EnergyIntegrator energy = new EnergyIntegrator(SampleSchema.CORE, ZONE, 300);
+
+	// one hour at 3 seconds with constant power
+	private void hour(long from, int pv, int grid, int bat, int home) {
+		for (long ts = from; ts <= from + 3600; ts += 3) {
+			energy.add(new DataPoint(ts, pv, grid, bat, home, 50));
+		}
+	}
+
+	@Test
+	void powerIsIntegratedBySign() {
+		// midday: 5 kW PV, 1 kW home, 2 kW into the battery, 2 kW exported
+		hour(START - 12 * 3600, 5000, -2000, -2000, 1000);
+		EnergyTotals t = energy.lifetime();
+		assertEquals(5000, t.getPv(), 1e-6);
+		assertEquals(2000, t.getGridExport(), 1e-6);
+		assertEquals(0, t.getGridImport(), 1e-6);
+		assertEquals(2000, t.getBatteryCharge(), 1e-6);
+		assertEquals(0, t.getBatteryDischarge(), 1e-6);
+		assertEquals(1000, t.getHome(), 1e-6);
+		assertEquals(3600, t.getSeconds());
+		assertEquals(0.6, t.getSelfConsumption(), 1e-9);
+		assertEquals(1.0, t.getAutarky(), 1e-9);
+	}
+
+	@Test
+	void gapsAreNotCountedAndOldDataPointsIgnored() {
+		energy.add(new DataPoint(START, 0, 1000, 0, 1000, 50));
+		energy.add(new DataPoint(START + 3, 0, 1000, 0, 1000, 50));
+		// unreachable for 10 minutes
+		energy.add(new DataPoint(START + 603, 0, 1000, 0, 1000, 50));
+		energy.add(new DataPoint(START + 300, 0, 9000, 0, 9000, 50));
+		energy.add(new DataPoint(START + 606, 0, 1000, 0, 1000, 50));
+		assertEquals(6, energy.lifetime().getSeconds());
+		assertEquals(1000 * 6 / 3600.0, energy.lifetime().getGridImport(), 1e-9);
+		assertEquals(0.0, energy.lifetime().getAutarky(), 1e-9);
+		assertNull(energy.lifetime().getSelfConsumption());
+	}
+
+	@Test
+	void daysAndMonthsInLocalTime() {
+		// 23:00 on June 30 to 01:00 on July 1
+		hour(START, 0, 600, 0, 600);
+		hour(START + 3600, 0, 300, 0, 300);
+
+		// the interval ending at midnight counts for July 1, within 1 Wh
+		Map<String, EnergyTotals> days = energy.days(LocalDate.of(2026, 6, 1), LocalDate.of(2026, 7, 31));
+		assertEquals(600, days.get("2026-06-30").getGridImport(), 1);
+		assertEquals(300, days.get("2026-07-01").getGridImport(), 1);
+		Map<String, EnergyTotals> months = energy.months(YearMonth.of(2026, 1), YearMonth.of(2026, 12));
+		assertEquals(2, months.size());
+		assertEquals(600, months.get("2026-06").getHome(), 1);
+
+		Map<String, EnergyTotals> report = energy.report(START + 7200);
+		assertEquals(300, report.get("day").getHome(), 1);
+		assertEquals(300, report.get("month").getHome(), 1);
+		assertEquals(900, report.get("lifetime").getHome(), 1);
+		assertEquals(0, energy.report(START + 86400 * 3).get("day").getHome(), 1);
+	}
+
+	@Test
+	void continuesAfterLoad() throws IOException {
+		ObjectMapper objectMapper = new ObjectMapper();
+		Path file = dir.resolve(HistoryStore.ENERGY_FILE);
+		hour(START, 1000, 0, 0, 1000);
+		energy.save(file, objectMapper);
+
+		EnergyIntegrator restarted = new EnergyIntegrator(SampleSchema.CORE, ZONE, 300);
+		restarted.load(file, objectMapper);
+		assertEquals(START + 3600, restarted.getLastTimeStamp());
+		// the interval from the last saved data point counts
+		restarted.add(new DataPoint(START + 3603, 1000, 0, 0, 1000, 50));
+		assertEquals(1000 * 3603 / 3600.0, restarted.lifetime().getPv(), 1e-6);
+		assertEquals(1000 * 3603 / 3600.0, restarted.days(LocalDate.of(2026, 6, 30), LocalDate.of(2026, 7, 1))
+				.values().stream().mapToDouble(EnergyTotals::getPv).sum(), 1e-6);
+	}
+
+}
@@ -0,0 +1,129 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HistoryStoreTests {
+
+	@TempDir
+	Path dir;
+
+	private static final long START = 1_700_000_000L - 1_700_000_000L % 86400;
+
+	private List<DataPoint> samples(long from, int count) {
+		List<DataPoint> list = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			long ts = from + 3 * i;
+			list.add(new DataPoint(ts, (int) (ts % 1000), (int) (ts % 77) - 30, 0, 500, (int) (ts % 101)));
+		}
+		return list;
+	}
+
+	private void append(List<DataPoint> batch) throws IOException {
+		try (DataFileWriter writer = DataFileWriter.open(dir.resolve(DataPointWriter.DATA_FILE), SampleSchema.CORE)) {
+			for (DataPoint dp : batch) writer.append(dp);
+		}
+	}
+
+	private static void assertSameBuckets(List<HistoryBucket> expected, List<HistoryBucket> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			HistoryBucket e = expected.get(i);
+			HistoryBucket a = actual.get(i);
+			assertEquals(e.getBucket(), a.getBucket());
+			assertEquals(e.getCount(), a.getCount());
+			assertEquals(e.getFrom(), a.getFrom());
+			assertEquals(e.getTo(), a.getTo());
+			assertEquals(e.getAverage().getFromPV(), a.getAverage().getFromPV());
+			assertEquals(e.getMin().getFromGrid(), a.getMin().getFromGrid());
+			assertEquals(e.getMax().getLevelBat(), a.getMax().getLevelBat());
+		}
+	}
+
+	@Test
+	void rollupsMatchRawData() throws IOException {
+		HistoryStore store = new HistoryStore(dir.toString(), SampleSchema.CORE, 300);
+		store.open();
+
+		// two days of data, written in batches like the writer does
+		List<DataPoint> all = samples(START, 2 * 28800);
+		for (int i = 0; i < all.size(); i += 5) {
+			List<DataPoint> batch = all.subList(i, Math.min(i + 5, all.size()));
+			append(batch);
+			store.add(batch);
+		}
+
+		long to = START + 2 * 86400;
+		// 7200 is served from the 1 hour tier, 7201 from raw data points
+		List<HistoryBucket> fromTier = store.query(START, to, 7200);
+		assertEquals(24, fromTier.size());
+		assertEquals(2400, fromTier.get(0).getCount());
+
+		List<HistoryBucket> raw = store.query(START, to, 1);
+		assertEquals(all.size(), raw.size());
+
+		// same buckets, computed from raw data points
+		List<HistoryBucket> expected = new ArrayList<>();
+		for (DataPoint dp : all) {
+			long bucket = dp.getTimeStamp() - Math.floorMod(dp.getTimeStamp(), 7200);
+			if (expected.isEmpty() || expected.get(expected.size() - 1).getBucket() != bucket) {
+				expected.add(new HistoryBucket(SampleSchema.CORE, bucket));
+			}
+			expected.get(expected.size() - 1).add(dp);
+		}
+		assertSameBuckets(expected, fromTier);
+	}
+
+	@Test
+	void tiersCatchUpAfterRestart() throws IOException {
+		HistoryStore store = new HistoryStore(dir.toString(), SampleSchema.CORE, 300);
+		store.open();
+		List<DataPoint> first = samples(START, 1000);
+		append(first);
+		store.add(first);
+		List<HistoryBucket> before = store.query(START, START + 86400, 900);
+
+		// data points written while the rollups were not updated
+		append(samples(START + 3000, 1000));
+
+		HistoryStore restarted = new HistoryStore(dir.toString(), SampleSchema.CORE, 300);
+		restarted.open();
+		List<HistoryBucket> after = restarted.query(START, START + 86400, 900);
+
+		assertEquals(before.get(0).getCount(), after.get(0).getCount());
+		assertEquals(2000, after.stream().mapToInt(HistoryBucket::getCount).sum());
+	}
+
+	@Test
+	void energyIsCountedOnceAcrossRestarts() throws IOException {
+		List<DataPoint> all = samples(START, 3000);
+		EnergyIntegrator expected = new EnergyIntegrator(SampleSchema.CORE, java.time.ZoneId.systemDefault(), 300);
+		for (DataPoint dp : all) expected.add(dp);
+
+		HistoryStore store = new HistoryStore(dir.toString(), SampleSchema.CORE, 300);
+		store.open();
+		List<DataPoint> first = all.subList(0, 1000);
+		append(first);
+		store.add(first);
+		store.close();
+
+		// written, but the store was gone before it saw them
+		append(all.subList(1000, 3000));
+
+		HistoryStore restarted = new HistoryStore(dir.toString(), SampleSchema.CORE, 300);
+		restarted.open();
+		EnergyTotals lifetime = restarted.getEnergy().lifetime();
+		assertEquals(expected.lifetime().getPv(), lifetime.getPv(), 1e-6);
+		assertEquals(expected.lifetime().getGridExport(), lifetime.getGridExport(), 1e-6);
+		assertEquals(3 * 2999, lifetime.getSeconds());
+		restarted.close();
+	}
+
+}
@@ -0,0 +1,57 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+
+@SpringBootTest(properties = { "app.datadir=target/test-data-registry", "app.savefilename=",
+		"app.devices=garage", "app.device.garage.apiurl=http://127.0.0.1:9/api/v1" })
+@AutoConfigureMockMvc
+class InverterRegistryTests {
+
+	@Autowired
+	InverterRegistry registry;
+
+	@Autowired
+	MockMvc mvc;
+
+	@Test
+	void devicesFromConfiguration() throws Exception {
+		assertEquals(2, registry.getAll().size());
+		assertEquals("inverter", registry.getPrimary().getName());
+		assertEquals("garage", registry.get("garage").getName());
+
+		mvc.perform(get("/data/devices")).andExpect(status().isOk())
+				.andExpect(jsonPath("$[0].name").value("inverter"))
+				.andExpect(jsonPath("$[1].name").value("garage"));
+		mvc.perform(get("/data/garage/latest")).andExpect(status().isOk());
+		mvc.perform(get("/data/cellar/latest")).andExpect(status().isNotFound());
+	}
+
+	@Test
+	void siteTotalsAddPowerAndAverageTheBatteryLevel() {
+		SampleSchema schema = SampleSchema.CORE;
+		DataPoint roof = new DataPoint(1000, 3000, 0, -500, 2500, 80);
+		DataPoint garage = new DataPoint(1002, 1000, 200, 300, 1500, 40);
+
+		DataPoint site = InverterRegistry.sum(schema, List.of(roof, garage));
+		assertEquals(1002, site.getTimeStamp());
+		assertEquals(4000, site.getFromPV());
+		assertEquals(200, site.getFromGrid());
+		assertEquals(-200, site.getFromBat());
+		assertEquals(4000, site.getUseHome());
+		assertEquals(60, site.getLevelBat());
+		assertNull(InverterRegistry.sum(schema, List.of()));
+	}
+
+}
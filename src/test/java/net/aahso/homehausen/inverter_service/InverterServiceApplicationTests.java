@@ -3,7 +3,7 @@ package net.aahso.homehausen.inverter_service;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+@SpringBootTest(properties = { "app.datadir=target/test-data", "app.savefilename=" })
 class InverterServiceApplicationTests {
 
 	@Test
@@ -0,0 +1,166 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+class InverterSessionTests {
+
+	// logins answered by the test
+	private final List<Sinks.One<String>> logins = new ArrayList<Sinks.One<String>>();
+
+	private InverterSession session(long refreshAfterMillis) {
+		return new InverterSession(() -> {
+			Sinks.One<String> login = Sinks.one();
+			logins.add(login);
+			return login.asMono();
+		}, 5000, refreshAfterMillis);
+	}
+
+	@Test
+	void concurrentCallersShareOneLogin() {
+		InverterSession session = session(0);
+		Mono<String> a = session.get();
+		Mono<String> b = session.get();
+		a.subscribe();
+		b.subscribe();
+		assertEquals(1, logins.size());
+
+		logins.get(0).tryEmitValue("s1");
+		assertEquals("s1", a.block());
+		assertEquals("s1", b.block());
+		assertEquals("s1", session.get().block());
+		assertEquals(1, logins.size());
+	}
+
+	@Test
+	void oldSessionIsUsedWhileRenewing() throws InterruptedException {
+		InverterSession session = session(1);
+		Mono<String> first = session.get();
+		first.subscribe();
+		logins.get(0).tryEmitValue("s1");
+		assertEquals("s1", first.block());
+
+		Thread.sleep(5);
+		// too old: renewed in the background, polls go on with the old session
+		assertEquals("s1", session.get().block());
+		assertEquals("s1", session.get().block());
+		assertEquals(2, logins.size());
+
+		logins.get(1).tryEmitValue("s2");
+		assertEquals("s2", session.get().block());
+	}
+
+	@Test
+	void rejectedSessionIsRenewedOnce() {
+		InverterSession session = session(0);
+		session.get().subscribe();
+		logins.get(0).tryEmitValue("s1");
+
+		session.invalidate("s1");
+		assertFalse(session.isValid());
+		// a second poll rejected with the same session does not start another login
+		session.invalidate("s1");
+		assertEquals(2, logins.size());
+
+		logins.get(1).tryEmitValue("s2");
+		assertEquals("s2", session.get().block());
+		// late 401 of a poll with the old session
+		session.invalidate("s1");
+		assertEquals("s2", session.get().block());
+		assertEquals(2, logins.size());
+	}
+
+	@Test
+	void failedLoginIsRetriedByNextCaller() {
+		InverterSession session = session(0);
+		session.get().subscribe(id -> { }, e -> { });
+		logins.get(0).tryEmitError(new IllegalStateException("wrong password"));
+		assertEquals(1, session.getFailedLogins());
+
+		Mono<String> retry = session.get();
+		retry.subscribe();
+		logins.get(1).tryEmitValue("s1");
+		assertEquals("s1", retry.block());
+	}
+
+	@Test
+	void statesFollowTheHandshake() throws InterruptedException {
+		InverterSession session = session(1);
+		assertEquals(InverterSession.State.NONE, session.getState());
+		session.get().subscribe(id -> { }, e -> { });
+		assertEquals(InverterSession.State.AUTHENTICATING, session.getState());
+		logins.get(0).tryEmitError(new IllegalStateException("timeout"));
+		assertEquals(InverterSession.State.FAILED, session.getState());
+
+		session.get().subscribe();
+		logins.get(1).tryEmitValue("s1");
+		assertEquals(InverterSession.State.VALID, session.getState());
+
+		Thread.sleep(5);
+		session.get().block();
+		assertEquals(InverterSession.State.RENEWING, session.getState());
+		// a failed renewal keeps the old session
+		logins.get(2).tryEmitError(new IllegalStateException("timeout"));
+		assertEquals(InverterSession.State.VALID, session.getState());
+		assertEquals(3, session.getAttempts());
+		assertEquals(1, session.getLogins());
+		assertEquals(2, session.getFailedLogins());
+		// (getting it may already start the next renewal)
+		assertEquals("s1", session.get().block());
+	}
+
+	@Test
+	void manyThreadsStartExactlyOneHandshake() throws Exception {
+		AtomicInteger started = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		InverterSession session = new InverterSession(() -> Mono.fromCallable(() -> {
+			started.incrementAndGet();
+			release.await();
+			return "s1";
+		}), 5000, 0);
+
+		ExecutorService callers = Executors.newFixedThreadPool(16);
+		CountDownLatch go = new CountDownLatch(1);
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < 16; i++) {
+			results.add(callers.submit(() -> {
+				go.await();
+				return session.get().block();
+			}));
+		}
+		go.countDown();
+		Thread.sleep(100);
+		release.countDown();
+		for (Future<String> result : results) assertEquals("s1", result.get(5, TimeUnit.SECONDS));
+		callers.shutdown();
+
+		assertEquals(1, started.get());
+		assertEquals(1, session.getAttempts());
+	}
+
+	@Test
+	void saltedPasswordIsDerivedOncePerSaltAndRounds() throws Exception {
+		String salt = Base64.getEncoder().encodeToString("0123456789abcdef".getBytes());
+		byte[] a = InverterAuthenticator.getSaltedPassword("secret", salt, 1000);
+		assertSame(a, InverterAuthenticator.getSaltedPassword("secret", salt, 1000));
+		assertFalse(a == InverterAuthenticator.getSaltedPassword("secret", salt, 1001));
+		assertFalse(a == InverterAuthenticator.getSaltedPassword("other", salt, 1000));
+	}
+
+}
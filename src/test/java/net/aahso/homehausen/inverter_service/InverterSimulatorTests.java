@@ -0,0 +1,110 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+		"app.datadir=target/test-data-simulator", "app.simulator.rounds=1000",
+		"app.simulator.latency=0", "app.simulator.jitter=0", "app.simulator.seed=1",
+		"app.simulator.unauthorized=0", "app.simulator.servererrors=0", "app.simulator.timeouts=0" })
+@ActiveProfiles("simulator")
+class InverterSimulatorTests {
+
+	@LocalServerPort
+	int port;
+
+	@Autowired
+	InverterSimulator simulator;
+
+	private WebClient client() {
+		return WebClient.builder().baseUrl("http://localhost:" + port + "/simulator/api/v1")
+				.defaultHeader(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE)
+				.defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+				.build();
+	}
+
+	private static String request(SampleSchema schema) {
+		ObjectMapper mapper = new ObjectMapper();
+		ArrayNode request = mapper.createArrayNode();
+		for (String[] source : schema.getSources()) {
+			request.addObject().put("moduleid", source[0]).putArray("processdataids").add(source[1]);
+		}
+		return request.toString();
+	}
+
+	@Test
+	void authenticatorLogsInAndReadsProcessData() throws Exception {
+		String sessionId = InverterAuthenticator.authenticateAsync(client(), "target/test-data-simulator/simulator.creden").block();
+		assertTrue(sessionId != null && !sessionId.isEmpty());
+
+		byte[] response = client().post().uri("/processdata").header(HttpHeaders.AUTHORIZATION, "Session " + sessionId)
+				.bodyValue(request(SampleSchema.DEFAULT)).retrieve().bodyToMono(byte[].class).block();
+		ProcessData data = new ProcessData(SampleSchema.DEFAULT.getSources().size());
+		new ProcessDataParser(SampleSchema.DEFAULT.getSources()).parse(response, data);
+		assertTrue(data.isComplete());
+		assertTrue(simulator.getLogins() >= 1);
+	}
+
+	@Test
+	void wrongPasswordIsRejected() throws Exception {
+		Path wrong = Path.of("target/test-data-simulator/wrong.creden");
+		Files.writeString(wrong, "not the password\n");
+		assertThrows(Exception.class, () -> InverterAuthenticator.authenticateAsync(client(), wrong.toString()).block());
+	}
+
+	@Test
+	void processDataNeedsASession() {
+		WebClientResponseException e = assertThrows(WebClientResponseException.class, () -> client().post()
+				.uri("/processdata").header(HttpHeaders.AUTHORIZATION, "Session unknown")
+				.bodyValue(request(SampleSchema.CORE)).retrieve().toBodilessEntity().block());
+		assertEquals(HttpStatus.UNAUTHORIZED, e.getStatusCode());
+	}
+
+	@Test
+	void plantBalancesEnergyDayAndNight() {
+		SimulatedPlant plant = new SimulatedPlant(9000, 10000, 3000, 250, new Random(1));
+		ZonedDateTime t = ZonedDateTime.of(2026, 6, 21, 0, 0, 0, 0, ZoneId.of("Europe/Berlin"));
+		for (int i = 0; i < 24 * 60; i++, t = t.plusMinutes(1)) {
+			Map<String, Double> v = plant.read(t);
+			double pv = v.get("devices:local:pv1/P") + v.get("devices:local:pv2/P");
+			double home = v.get("devices:local/Home_P");
+			assertEquals(home, pv + v.get("devices:local/Grid_P") + v.get("devices:local:battery/P"), 1e-6);
+			assertTrue(v.get("devices:local/HomeOwn_P") >= -1e-6);
+			if (t.getHour() < 4) assertEquals(0, pv);
+			if (t.getHour() == 13) assertTrue(pv > 1000);
+			double soc = v.get("devices:local:battery/SoC");
+			assertTrue(soc >= 0 && soc <= 100);
+		}
+	}
+
+	@Test
+	void acceleratedClockRunsFaster() throws InterruptedException {
+		AcceleratedClock clock = new AcceleratedClock(1000, ZoneId.systemDefault());
+		long start = clock.millis();
+		Thread.sleep(20);
+		assertTrue(clock.millis() - start >= 20_000);
+	}
+
+}
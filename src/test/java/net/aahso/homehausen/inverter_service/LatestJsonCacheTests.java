@@ -0,0 +1,70 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class LatestJsonCacheTests {
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final LatestJsonCache cache = new LatestJsonCache(objectMapper);
+
+	private static DataPoint dp(long timeStamp, int pv) {
+		return new DataPoint(timeStamp, pv, 0, 0, 500, 50);
+	}
+
+	@Test
+	void rendersOncePerTick() throws Exception {
+		DataPoint first = dp(1000, 1200);
+		LatestJsonCache.Rendered r = cache.get("inverter/latest", first, 1000, latest -> latest);
+		assertEquals(objectMapper.writeValueAsString(first), new String(r.json, StandardCharsets.UTF_8));
+		assertEquals(1000_000, r.lastModifiedMillis());
+
+		// same tick: the same bytes, not rendered again
+		assertSame(r, cache.get("inverter/latest", first, 1000, latest -> latest));
+		assertEquals(1, cache.getRenders());
+		assertEquals(1, cache.getHits());
+
+		// next tick: new bytes and ETag
+		LatestJsonCache.Rendered next = cache.get("inverter/latest", dp(1003, 1300), 1003, latest -> latest);
+		assertNotEquals(r.etag, next.etag);
+		assertEquals(2, cache.getRenders());
+	}
+
+	@Test
+	void windowsAreCachedApart() {
+		DataPoint latest = dp(1000, 1200);
+		LatestJsonCache.Rendered a = cache.get("inverter/average30", latest, 1001, dp -> dp(1000, 1000));
+		LatestJsonCache.Rendered b = cache.get("inverter/average60", latest, 1001, dp -> dp(1000, 900));
+		assertNotEquals(a.etag, b.etag);
+		assertSame(a, cache.get("inverter/average30", latest, 1001, dp -> dp(1000, 1000)));
+		assertEquals(2, cache.getRenders());
+	}
+
+	@Test
+	void windowsMoveOnWithoutNewDataPoints() {
+		// the inverter is unreachable, the window end goes on
+		DataPoint latest = dp(1000, 1200);
+		LatestJsonCache.Rendered a = cache.get("inverter/average30", latest, 1001, dp -> dp(1000, 1000));
+		LatestJsonCache.Rendered b = cache.get("inverter/average30", latest, 1002, dp -> dp(1000, 1000));
+		assertNotEquals(a.etag, b.etag);
+		assertEquals(1002_000, b.lastModifiedMillis());
+		// the window has left the last data point: no body, like without data
+		assertNull(cache.get("inverter/average30", latest, 1031, dp -> null));
+	}
+
+	@Test
+	void nothingWithoutData() {
+		assertNull(cache.get("inverter/latest", null, 0, latest -> latest));
+		assertNull(cache.get("inverter/average30", dp(1000, 0), 1001, latest -> null));
+		assertEquals(0, cache.getRenders());
+	}
+
+}
@@ -0,0 +1,161 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import reactor.core.publisher.Sinks;
+
+class LiveStreamTests {
+
+	private final Sinks.Many<DataPoint> samples = Sinks.many().multicast().directBestEffort();
+	private final ExecutorService senders = Executors.newFixedThreadPool(2);
+	private final LiveStream stream = new LiveStream(samples.asFlux(), new ObjectMapper(), 2, 3,
+			senders, Duration.ofHours(1));
+
+	// records the frames sent, optionally blocked like a slow client
+	private static class RecordingEmitter extends ResponseBodyEmitter {
+		final List<Object> frames = new CopyOnWriteArrayList<Object>();
+		volatile CountDownLatch blocked = new CountDownLatch(0);
+
+		@Override
+		public void send(Object object, MediaType mediaType) throws IOException {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			frames.add(object);
+		}
+	}
+
+	@AfterEach
+	void close() {
+		stream.close();
+	}
+
+	private static String text(Object frame) {
+		return new String((byte[]) frame, StandardCharsets.UTF_8);
+	}
+
+	private static void await(List<Object> frames, int count) throws InterruptedException {
+		for (int i = 0; i < 200 && frames.size() < count; i++) Thread.sleep(10);
+		assertEquals(count, frames.size());
+	}
+
+	@Test
+	void framesAreSerializedOnceAndShared() throws Exception {
+		RecordingEmitter a = new RecordingEmitter();
+		RecordingEmitter b = new RecordingEmitter();
+		assertTrue(stream.subscribe(a));
+		assertTrue(stream.subscribe(b));
+
+		samples.tryEmitNext(new DataPoint(1000, 1, 2, 3, 4, 5));
+		await(a.frames, 1);
+		await(b.frames, 1);
+		assertSame(a.frames.get(0), b.frames.get(0));
+		String frame = text(a.frames.get(0));
+		assertTrue(frame.startsWith("id:1000\nevent:datapoint\ndata:{"));
+		assertTrue(frame.endsWith("}\n\n"));
+		assertTrue(frame.contains("\"levelBat\":5"));
+	}
+
+	@Test
+	void newClientGetsLatestRightAway() throws Exception {
+		samples.tryEmitNext(new DataPoint(1000, 1, 2, 3, 4, 5));
+		samples.tryEmitNext(new DataPoint(1003, 6, 7, 8, 9, 10));
+		RecordingEmitter a = new RecordingEmitter();
+		stream.subscribe(a);
+		await(a.frames, 1);
+		assertTrue(text(a.frames.get(0)).startsWith("id:1003"));
+	}
+
+	@Test
+	void slowClientIsConflatedToLatest() throws Exception {
+		RecordingEmitter slow = new RecordingEmitter();
+		RecordingEmitter fast = new RecordingEmitter();
+		slow.blocked = new CountDownLatch(1);
+		stream.subscribe(slow);
+		stream.subscribe(fast);
+
+		for (int i = 0; i < 10; i++) {
+			samples.tryEmitNext(new DataPoint(1000 + i, i, 0, 0, 0, 0));
+			await(fast.frames, i + 1);
+		}
+
+		slow.blocked.countDown();
+		senders.shutdown();
+		senders.awaitTermination(2, TimeUnit.SECONDS);
+		// the frame being sent when blocked, then at most the queue, ending with the latest
+		assertTrue(slow.frames.size() <= 3);
+		assertTrue(text(slow.frames.get(slow.frames.size() - 1)).startsWith("id:1009"));
+		assertTrue(stream.getConflated() > 0);
+	}
+
+	@Test
+	void heartbeatDoesNotPushOutTheLatestFrame() throws Exception {
+		LiveStream beating = new LiveStream(samples.asFlux(), new ObjectMapper(), 2, 3, senders, Duration.ofMillis(5));
+		RecordingEmitter slow = new RecordingEmitter();
+		slow.blocked = new CountDownLatch(1);
+		beating.subscribe(slow);
+		for (int i = 0; i < 10; i++) samples.tryEmitNext(new DataPoint(1000 + i, i, 0, 0, 0, 0));
+		// heartbeats while the queue is full
+		Thread.sleep(100);
+
+		slow.blocked.countDown();
+		// later heartbeats keep coming, the latest data point must not be lost to them
+		boolean latest = false;
+		for (int i = 0; i < 200 && !latest; i++) {
+			Thread.sleep(10);
+			latest = slow.frames.stream().anyMatch(frame -> text(frame).startsWith("id:1009"));
+		}
+		beating.close();
+		assertTrue(latest);
+	}
+
+	@Test
+	void concurrentConnectsStayWithinTheLimit() throws Exception {
+		ExecutorService connects = Executors.newFixedThreadPool(16);
+		CountDownLatch go = new CountDownLatch(1);
+		for (int i = 0; i < 64; i++) {
+			connects.execute(() -> {
+				try {
+					go.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				stream.subscribe(new RecordingEmitter());
+			});
+		}
+		go.countDown();
+		connects.shutdown();
+		assertTrue(connects.awaitTermination(2, TimeUnit.SECONDS));
+		assertEquals(3, stream.getClients());
+	}
+
+	@Test
+	void limitsClients() {
+		for (int i = 0; i < 3; i++) assertTrue(stream.subscribe(new RecordingEmitter()));
+		assertFalse(stream.subscribe(new RecordingEmitter()));
+		assertEquals(3, stream.getClients());
+	}
+
+}
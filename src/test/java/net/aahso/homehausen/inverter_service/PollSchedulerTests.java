@@ -0,0 +1,90 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class PollSchedulerTests {
+
+	private static PollScheduler scheduler() {
+		return new PollScheduler(3000, 1000, 30000, 60000, 200, 3, 5);
+	}
+
+	private static DataPoint dp(int pv, int home) {
+		return new DataPoint(0, pv, 0, 0, home, 50);
+	}
+
+	@Test
+	void fixedRateDoesNotDrift() {
+		PollScheduler s = scheduler();
+		assertEquals(0, s.delayMillis(10_000));
+		s.success(dp(1000, 500));
+
+		// poll took 700 ms: wait only for the rest of the interval
+		assertEquals(2300, s.delayMillis(10_700));
+		s.success(dp(1000, 500));
+		assertEquals(3000, s.delayMillis(13_000));
+	}
+
+	@Test
+	void overrunSkipsMissedTicks() {
+		PollScheduler s = scheduler();
+		s.delayMillis(0);
+		s.success(dp(1000, 500));
+		// poll hung for 10 s: poll right away, then continue from there
+		assertEquals(0, s.delayMillis(10_000));
+		assertEquals(2, s.getSkippedTicks());
+		s.success(dp(1000, 500));
+		assertEquals(3000, s.delayMillis(10_000));
+	}
+
+	@Test
+	void fastWhileValuesChange() {
+		PollScheduler s = scheduler();
+		s.delayMillis(0);
+		s.success(dp(1000, 500));
+		s.delayMillis(0);
+		s.success(dp(1000, 1500));
+		assertEquals(PollScheduler.Mode.FAST, s.getMode());
+		assertEquals(1000, s.getIntervalMillis());
+
+		// held for two more stable polls, then back to normal
+		s.success(dp(1000, 1500));
+		s.success(dp(1000, 1500));
+		assertEquals(PollScheduler.Mode.FAST, s.getMode());
+		s.success(dp(1000, 1500));
+		assertEquals(PollScheduler.Mode.NORMAL, s.getMode());
+	}
+
+	@Test
+	void idleAtNight() {
+		PollScheduler s = scheduler();
+		s.delayMillis(0);
+		for (int i = 0; i < 4; i++) s.success(dp(0, 300));
+		assertEquals(PollScheduler.Mode.NORMAL, s.getMode());
+		s.success(dp(0, 300));
+		assertEquals(PollScheduler.Mode.IDLE, s.getMode());
+		assertEquals(30000, s.getIntervalMillis());
+
+		// sun rises
+		s.success(dp(50, 300));
+		assertEquals(PollScheduler.Mode.NORMAL, s.getMode());
+	}
+
+	@Test
+	void exponentialBackoff() {
+		PollScheduler s = scheduler();
+		s.delayMillis(0);
+		s.failure();
+		assertEquals(6000, s.getIntervalMillis());
+		s.failure();
+		assertEquals(12000, s.getIntervalMillis());
+		for (int i = 0; i < 10; i++) s.failure();
+		assertEquals(60000, s.getIntervalMillis());
+
+		s.success(dp(1000, 500));
+		assertEquals(PollScheduler.Mode.NORMAL, s.getMode());
+		assertEquals(0, s.getFailures());
+	}
+
+}
@@ -0,0 +1,79 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class ProcessDataParserTests {
+
+	private static final List<String[]> SOURCES = List.of(
+			new String[] { "devices:local:pv1", "P" },
+			new String[] { "devices:local:pv2", "P" },
+			new String[] { "devices:local:battery", "SoC" },
+			new String[] { "devices:local:battery", "P" },
+			new String[] { "devices:local", "Grid_P" },
+			new String[] { "devices:local", "Home_P" });
+
+	static byte[] recordedResponse() throws IOException {
+		try (InputStream in = ProcessDataParserTests.class.getResourceAsStream("/processdata.json")) {
+			return in.readAllBytes();
+		}
+	}
+
+	@Test
+	void parsesRecordedResponse() throws IOException {
+		ProcessDataParser parser = new ProcessDataParser(SOURCES);
+		ProcessData data = new ProcessData(SOURCES.size());
+
+		assertEquals(6, parser.parse(recordedResponse(), data));
+		assertTrue(data.isComplete());
+		assertEquals(2318, data.get(0));
+		assertEquals(1204, data.get(1));
+		assertEquals(63, data.get(2));
+		assertEquals(-1032, data.get(3));
+		assertEquals(-1544, data.get(4));
+		assertEquals(893, data.get(5));
+	}
+
+	@Test
+	void toleratesReorderedModulesAndFields() throws IOException {
+		String json = "[{\"processdata\":[{\"value\":-12.9,\"id\":\"Grid_P\"},{\"id\":\"Home_P\",\"value\":7}],\"moduleid\":\"devices:local\"},"
+				+ "{\"moduleid\":\"devices:local:battery\",\"processdata\":[{\"id\":\"SoC\",\"value\":1E2},{\"id\":\"P\",\"value\":0}]},"
+				+ "{\"moduleid\":\"devices:local:pv3\",\"processdata\":[{\"id\":\"P\",\"value\":999}]},"
+				+ "{\"moduleid\":\"devices:local:pv2\",\"processdata\":[{\"id\":\"P\",\"unit\":\"W\",\"value\":5}]}]";
+		ProcessDataParser parser = new ProcessDataParser(SOURCES);
+		ProcessData data = new ProcessData(SOURCES.size());
+
+		assertEquals(5, parser.parse(json.getBytes(StandardCharsets.UTF_8), data));
+		assertFalse(data.isPresent(0));
+		assertEquals(5, data.get(1));
+		assertEquals(100, data.get(2));
+		assertEquals(-12, data.get(4));
+		assertEquals(7, data.get(5));
+	}
+
+	@Test
+	void allocatesLittleInSteadyState() throws IOException {
+		ProcessDataParser parser = new ProcessDataParser(SOURCES);
+		ProcessData data = new ProcessData(SOURCES.size());
+		byte[] json = recordedResponse();
+		for (int i = 0; i < 20_000; i++) parser.parse(json, data);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long before = threads.getCurrentThreadAllocatedBytes();
+		for (int i = 0; i < 10_000; i++) parser.parse(json, data);
+		long perParse = (threads.getCurrentThreadAllocatedBytes() - before) / 10_000;
+
+		// only the parser object itself, no strings, numbers or nodes
+		assertTrue(perParse < 1024, "allocated " + perParse + " bytes per parse");
+	}
+
+}
@@ -0,0 +1,246 @@
+package net.aahso.homehausen.inverter_service;
+
+import static net.aahso.homehausen.inverter_service.ArchiveFileTests.assertSame;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.aahso.homehausen.inverter_service.ArchiveManifest.Segment;
+
+class RawHistoryTests {
+
+	@TempDir
+	Path dir;
+
+	private static final LocalDate FIRST_DAY = LocalDate.of(2024, 1, 20);
+	private static final long START = FIRST_DAY.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+
+	private RawHistory raw() {
+		return new RawHistory(dir, SampleSchema.CORE, ZoneOffset.UTC);
+	}
+
+	private void writeDataFile(List<DataPoint> dps) throws IOException {
+		try (DataFileWriter writer = DataFileWriter.open(dir.resolve(DataPointWriter.DATA_FILE), SampleSchema.CORE)) {
+			for (DataPoint dp : dps) writer.append(dp);
+		}
+	}
+
+	// one data point every 10 minutes
+	private static List<DataPoint> sparse(long from, int days) {
+		List<DataPoint> dps = new ArrayList<DataPoint>();
+		for (long ts = from; ts < from + days * 86400L; ts += 600) {
+			dps.add(new DataPoint(ts, (int) (ts % 9000), (int) (ts % 77) - 30, 0, 500, (int) (ts % 101)));
+		}
+		return dps;
+	}
+
+	private static List<DataPoint> between(List<DataPoint> dps, long from, long to) {
+		List<DataPoint> result = new ArrayList<DataPoint>();
+		for (DataPoint dp : dps) {
+			if (dp.getTimeStamp() >= from && dp.getTimeStamp() < to) result.add(dp);
+		}
+		return result;
+	}
+
+	@Test
+	void sealMovesDaysIntoSegmentsAndQueriesSeeEverythingOnce() throws IOException {
+		List<DataPoint> all = new ArrayList<DataPoint>();
+		for (int d = 0; d < 3; d++) all.addAll(ArchiveFileTests.day(START + d * 86400L));
+		writeDataFile(all);
+		long dataFileSize = Files.size(dir.resolve(DataPointWriter.DATA_FILE));
+		RawHistory raw = raw();
+		raw.open();
+
+		// midnight before the third day
+		int sealed = raw.seal(START + 2 * 86400);
+		assertEquals(between(all, START, START + 2 * 86400).size(), sealed);
+		List<Segment> segments = raw.segments();
+		assertEquals(2, segments.size());
+		assertEquals("2024-01-20", segments.get(0).name);
+		assertEquals("2024-01-21.bin", segments.get(1).file);
+		try (ArchiveReader reader = ArchiveReader.open(dir.resolve("archive").resolve(segments.get(0).file), SampleSchema.CORE)) {
+			// one block per hour
+			assertEquals(24, reader.blocks());
+			assertEquals(segments.get(0).count, reader.count());
+		}
+		try (DataFileReader reader = DataFileReader.open(dir.resolve(DataPointWriter.DATA_FILE), SampleSchema.CORE)) {
+			assertEquals(all.size() - sealed, reader.count());
+		}
+
+		// 10 times smaller or better
+		assertTrue(raw.archiveBytes() * 10 < dataFileSize * sealed / all.size(), "archive " + raw.archiveBytes() + " bytes");
+
+		assertSame(all, raw.range(0, Long.MAX_VALUE));
+		// across segments and data file
+		long from = START + 86400 + 19 * 3600 + 5;
+		long to = START + 2 * 86400 + 3600;
+		assertSame(between(all, from, to), raw.range(from, to));
+
+		// the manifest is read again after a restart
+		assertEquals(2, new RawHistory(dir, SampleSchema.CORE, ZoneOffset.UTC).segments().size());
+	}
+
+	@Test
+	void crashBeforeTheDataFileIsReplaced() throws IOException {
+		List<DataPoint> all = sparse(START, 4);
+		writeDataFile(all);
+		Path saved = dir.resolve("saved.bin");
+		Files.copy(dir.resolve(DataPointWriter.DATA_FILE), saved);
+		RawHistory raw = raw();
+
+		raw.seal(START + 86400);
+		// segment and manifest written, old data file still in place
+		Files.copy(saved, dir.resolve(DataPointWriter.DATA_FILE), StandardCopyOption.REPLACE_EXISTING);
+		assertSame(all, raw.range(0, Long.MAX_VALUE));
+
+		// sealing again does not archive anything twice
+		raw.seal(START + 3 * 86400);
+		assertSame(all, raw.range(0, Long.MAX_VALUE));
+		assertEquals(3, raw.segments().size());
+	}
+
+	@Test
+	void segmentsNotInTheManifestAreDeleted() throws IOException {
+		List<DataPoint> all = sparse(START, 3);
+		writeDataFile(all);
+		RawHistory raw = raw();
+		raw.seal(START + 86400);
+
+		// crash after writing a segment, before the manifest
+		Path archive = dir.resolve("archive");
+		Path orphan = archive.resolve("2024-01-21.bin");
+		Files.copy(archive.resolve("2024-01-20.bin"), orphan);
+		Files.writeString(archive.resolve("manifest.json.tmp"), "{");
+
+		RawHistory restarted = raw();
+		restarted.open();
+		assertFalse(Files.exists(orphan));
+		assertFalse(Files.exists(archive.resolve("manifest.json.tmp")));
+		assertSame(all, restarted.range(0, Long.MAX_VALUE));
+	}
+
+	@Test
+	void missingManifestIsRebuiltFromTheSegments() throws Exception {
+		List<DataPoint> all = sparse(START, 40);
+		writeDataFile(all);
+		RawHistory raw = raw();
+		raw.seal(START + 39 * 86400L);
+		assertTrue(raw.compact(YearMonth.of(2024, 1), () -> true));
+		List<Segment> sealed = raw.segments();
+
+		// manifest deleted or not restored, a month file and its days both there after a crash
+		Path archive = dir.resolve("archive");
+		Files.delete(archive.resolve("manifest.json"));
+		Files.copy(archive.resolve("2024-02-01.bin"), archive.resolve("2024-02.bin"));
+		Files.writeString(archive.resolve("README"), "backup");
+
+		RawHistory restarted = raw();
+		restarted.open();
+		List<Segment> rebuilt = restarted.segments();
+		assertEquals(sealed.size(), rebuilt.size());
+		for (int i = 0; i < sealed.size(); i++) {
+			assertEquals(sealed.get(i).file, rebuilt.get(i).file);
+			assertEquals(sealed.get(i).name, rebuilt.get(i).name);
+			assertEquals(sealed.get(i).count, rebuilt.get(i).count);
+			assertEquals(sealed.get(i).last, rebuilt.get(i).last);
+		}
+		assertSame(all, restarted.range(0, Long.MAX_VALUE));
+		// nothing is deleted without a manifest, the overlapping copy goes with the next start
+		assertTrue(Files.exists(archive.resolve("2024-02.bin")));
+		raw().open();
+		assertFalse(Files.exists(archive.resolve("2024-02.bin")));
+		assertTrue(Files.exists(archive.resolve("README")));
+	}
+
+	@Test
+	void oldMonthsAreCompactedAndOldDaysDropped() throws Exception {
+		// 12 days in January, 5 in February
+		List<DataPoint> all = sparse(START, 17);
+		writeDataFile(all);
+		RawHistory raw = raw();
+		raw.seal(START + 16 * 86400);
+		assertEquals(16, raw.segments().size());
+
+		// January is over, February is not
+		assertEquals(List.of(), raw.compactable(LocalDate.of(2024, 1, 31)));
+		assertEquals(List.of(YearMonth.of(2024, 1)), raw.compactable(LocalDate.of(2024, 2, 5)));
+		assertFalse(raw.compact(YearMonth.of(2024, 1), () -> false));
+		assertEquals(16, raw.segments().size());
+
+		assertTrue(raw.compact(YearMonth.of(2024, 1), () -> true));
+		List<Segment> segments = raw.segments();
+		assertEquals(5, segments.size());
+		assertEquals("2024-01", segments.get(0).name);
+		assertEquals(12 * 144, segments.get(0).count);
+		assertEquals(List.of("2024-01.bin", "2024-02-01.bin", "2024-02-02.bin", "2024-02-03.bin", "2024-02-04.bin",
+				"manifest.json"), list(dir.resolve("archive")));
+		assertSame(all, raw.range(0, Long.MAX_VALUE));
+		assertEquals(List.of(), raw.compactable(LocalDate.of(2024, 2, 5)));
+
+		// January stays until all its days are out, then February goes day by day
+		assertEquals(0, raw.drop(LocalDate.of(2024, 1, 31).atStartOfDay(ZoneOffset.UTC).toEpochSecond()));
+		assertEquals(3, raw.drop(LocalDate.of(2024, 2, 3).atStartOfDay(ZoneOffset.UTC).toEpochSecond()));
+		assertEquals(List.of("2024-02-03.bin", "2024-02-04.bin", "manifest.json"), list(dir.resolve("archive")));
+		long kept = LocalDate.of(2024, 2, 3).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+		assertSame(between(all, kept, Long.MAX_VALUE), raw.range(0, Long.MAX_VALUE));
+	}
+
+	@Test
+	void queryContinuesWhenSegmentsAreCompactedMeanwhile() throws Exception {
+		List<DataPoint> all = sparse(START, 17);
+		writeDataFile(all);
+		RawHistory raw = raw();
+		raw.seal(START + 16 * 86400);
+
+		List<DataPoint> seen = new ArrayList<DataPoint>();
+		raw.forEach(0, Long.MAX_VALUE, dp -> {
+			// the daily segments after the first are gone by the time the query gets there
+			if (seen.isEmpty()) {
+				try {
+					assertTrue(raw.compact(YearMonth.of(2024, 1), () -> true));
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			seen.add(dp);
+		});
+		assertSame(all, seen);
+	}
+
+	@Test
+	void archiveOfThePreviousVersionIsSplitIntoDays() throws IOException {
+		List<DataPoint> all = sparse(START, 3);
+		try (ArchiveWriter writer = ArchiveWriter.open(dir.resolve(RawHistory.LEGACY_ARCHIVE_FILE), SampleSchema.CORE)) {
+			for (int i = 0; i < all.size(); i += 6) writer.append(all.subList(i, Math.min(i + 6, all.size())));
+		}
+		RawHistory raw = raw();
+		raw.open();
+		assertFalse(Files.exists(dir.resolve(RawHistory.LEGACY_ARCHIVE_FILE)));
+		assertEquals(3, raw.segments().size());
+		assertSame(all, raw.range(0, Long.MAX_VALUE));
+	}
+
+	private static List<String> list(Path dir) throws IOException {
+		List<String> names = new ArrayList<String>();
+		try (Stream<Path> files = Files.list(dir)) {
+			files.forEach(f -> names.add(f.getFileName().toString()));
+		}
+		names.sort(null);
+		return names;
+	}
+
+}
@@ -0,0 +1,50 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+class TaskExecutorConfigTests {
+
+	private static Thread runOn(TaskExecutor executor) throws Exception {
+		CompletableFuture<Thread> thread = new CompletableFuture<Thread>();
+		executor.execute(() -> thread.complete(Thread.currentThread()));
+		return thread.get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void platformThreadsAreNamedDaemons() throws Exception {
+		ThreadPoolTaskExecutor executor = (ThreadPoolTaskExecutor) new taskExecutorConfig().taskExecutor("garage, shed", false);
+		try {
+			assertEquals(5, executor.getMaxPoolSize());
+			Thread t = runOn(executor);
+			assertTrue(t.isDaemon());
+			assertEquals("inverter-datapump-1", t.getName());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void virtualThreadsOnlyWhereSupported() throws Exception {
+		TaskExecutor executor = new taskExecutorConfig().taskExecutor("", true);
+		try {
+			// Java 21 runs every worker on a virtual thread, older Java falls back to the pool
+			assertEquals(VirtualThreads.supported(), executor instanceof SimpleAsyncTaskExecutor);
+			Thread t = runOn(executor);
+			assertTrue(t.isDaemon());
+			assertTrue(t.getName().startsWith("inverter-datapump-"));
+		} finally {
+			if (executor instanceof SimpleAsyncTaskExecutor) ((SimpleAsyncTaskExecutor) executor).close();
+			else ((ThreadPoolTaskExecutor) executor).shutdown();
+		}
+	}
+
+}
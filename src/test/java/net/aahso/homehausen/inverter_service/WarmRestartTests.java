@@ -0,0 +1,65 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.web.servlet.MockMvc;
+
+@SpringBootTest(properties = { "app.datadir=target/test-data-restart", "app.savefilename=",
+		"app.inverter.apiurl=http://127.0.0.1:9/api/v1", "app.buffer.restore=600" })
+@AutoConfigureMockMvc
+class WarmRestartTests {
+
+	private static final Path DATA_FILE = Path.of("target/test-data-restart", DataPointWriter.DATA_FILE);
+	private static long last;
+
+	@Autowired
+	InverterRegistry registry;
+
+	@Autowired
+	MockMvc mvc;
+
+	// the data file of the previous run: the last 20 minutes, ending in a torn record
+	@BeforeAll
+	static void previousRun() throws IOException {
+		Files.deleteIfExists(DATA_FILE);
+		long now = Instant.now().getEpochSecond();
+		try (DataFileWriter writer = DataFileWriter.open(DATA_FILE, SampleSchema.CORE)) {
+			for (long ts = now - 1200; ts < now - 5; ts += 3) {
+				writer.append(new DataPoint(ts, 1000, 200, 0, 1200, 80));
+				last = ts;
+			}
+		}
+		Files.write(DATA_FILE, new byte[] { 1, 2, 3 }, StandardOpenOption.APPEND);
+	}
+
+	@Test
+	void recentDataPointsAreRestored() throws Exception {
+		Inverter inverter = registry.getPrimary();
+		assertEquals(last, inverter.getLatestData().getTimeStamp());
+		// only the last app.buffer.restore seconds
+		int restored = inverter.getLatestDataPoints(3600).size();
+		assertTrue(restored >= 195 && restored <= 200, "restored " + restored);
+
+		mvc.perform(get("/data/latest")).andExpect(status().isOk())
+				.andExpect(jsonPath("$.timeStamp").value(last));
+		mvc.perform(get("/data/latestAverage?seconds=60")).andExpect(status().isOk())
+				.andExpect(jsonPath("$.fromPV").value(1000))
+				.andExpect(jsonPath("$.levelBat").value(80));
+	}
+
+}
@@ -0,0 +1,62 @@
+package net.aahso.homehausen.inverter_service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class WindowAggregatorTests {
+
+	@Test
+	void emptyAggregator() {
+		WindowAggregator aggregator = new WindowAggregator(SampleSchema.CORE);
+		assertFalse(aggregator.query(30, 1000, new WindowStats(SampleSchema.CORE)));
+	}
+
+	@Test
+	void staleDataIsNotReported() {
+		WindowAggregator aggregator = new WindowAggregator(SampleSchema.CORE);
+		aggregator.add(new DataPoint(1000, 1, 2, 3, 4, 5));
+		assertTrue(aggregator.query(30, 1010, new WindowStats(SampleSchema.CORE)));
+		assertFalse(aggregator.query(30, 1031, new WindowStats(SampleSchema.CORE)));
+	}
+
+	@Test
+	void matchesBruteForceForEveryWindow() {
+		WindowAggregator aggregator = new WindowAggregator(SampleSchema.CORE);
+		List<DataPoint> all = new ArrayList<>();
+		Random random = new Random(42);
+		WindowStats stats = new WindowStats(SampleSchema.CORE);
+
+		long ts = 1_700_000_000L;
+		for (int i = 0; i < 1000; i++) {
+			ts += 1 + random.nextInt(5);
+			DataPoint dp = new DataPoint(ts, random.nextInt(10000), random.nextInt(8000) - 4000,
+					random.nextInt(6000) - 3000, random.nextInt(5000), random.nextInt(101));
+			aggregator.add(dp);
+			all.add(dp);
+
+			for (int seconds = 4; seconds <= WindowAggregator.MAX_WINDOW_SECONDS; seconds += 7) {
+				long now = ts + random.nextInt(3);
+				long threshold = now - seconds;
+				List<DataPoint> window = all.stream().filter(d -> d.getTimeStamp() >= threshold).toList();
+
+				assertEquals(!window.isEmpty(), aggregator.query(seconds, now, stats));
+				if (window.isEmpty()) continue;
+
+				assertEquals(window.size(), stats.getCount());
+				DataPoint avg = stats.getAverage();
+				assertEquals((int) (window.stream().mapToLong(DataPoint::getFromPV).sum() / window.size()), avg.getFromPV());
+				assertEquals(window.stream().mapToInt(DataPoint::getFromGrid).min().getAsInt(), stats.getMin().getFromGrid());
+				assertEquals(window.stream().mapToInt(DataPoint::getFromBat).max().getAsInt(), stats.getMax().getFromBat());
+				assertEquals(window.get(0).getTimeStamp(), stats.getFrom());
+			}
+		}
+	}
+
+}